@@ -76,13 +76,34 @@ import ca.nrc.cadc.auth.RunnableAction;
 import ca.nrc.cadc.net.event.TransferEvent;
 import ca.nrc.cadc.net.event.TransferListener;
 import ca.nrc.cadc.util.ArgumentMap;
+import ca.nrc.cadc.util.Base64;
+import ca.nrc.cadc.util.FileMetadata;
+import ca.nrc.cadc.util.HexUtil;
 import ca.nrc.cadc.util.Log4jInit;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.LineNumberReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import javax.security.auth.Subject;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -135,7 +156,24 @@ public class Main implements TransferListener
                 }
             }
             Main m = new Main(s, urls);
-            m.run();
+            if (isBatchMode(am))
+            {
+                if (am.isSet("threads"))
+                    m.threads = parseCount("threads", am.getValue("threads"));
+                m.sync = am.isSet("sync");
+                if (am.isSet("host-threads"))
+                    m.hostThreads = parseCount("host-threads", am.getValue("host-threads"));
+                if (am.isSet("journal"))
+                {
+                    String jname = am.getValue("journal");
+                    if ("true".equals(jname))
+                        jname = JOURNAL_NAME;
+                    m.journalFile = new File(jname);
+                }
+                m.runBatch();
+            }
+            else
+                m.run();
         }
         catch(Throwable t)
         {
@@ -143,16 +181,68 @@ public class Main implements TransferListener
         }
     }
     
+    // any batch option selects batch mode (threads=1 unless set)
+    static boolean isBatchMode(ArgumentMap am)
+    {
+        return am.isSet("threads") || am.isSet("sync") || am.isSet("journal") || am.isSet("host-threads");
+    }
+    
+    // positive integer option value; prints usage and exits if missing or invalid
+    private static int parseCount(String name, String value)
+    {
+        int ret = toCount(value);
+        if (ret < 1)
+        {
+            if ("true".equals(value))
+                System.out.println("missing value for --" + name);
+            else
+                System.out.println("invalid value for --" + name + ": " + value);
+            usage();
+        }
+        return ret;
+    }
+    
+    // positive integer or -1 if value is not a positive integer
+    static int toCount(String value)
+    {
+        if (value == null)
+            return -1;
+        try
+        {
+            int ret = Integer.parseInt(value.trim());
+            if (ret > 0)
+                return ret;
+        }
+        catch(NumberFormatException ex)
+        {
+            log.debug("invalid number: " + value);
+        }
+        return -1;
+    }
+    
     private static void usage()
     {
-        System.out.println("usage: cadc-http-client [-v|--verbose|-d|--debug] [--in=<fname>] [<url> ...]");
+        System.out.println("usage: cadc-http-client [-v|--verbose|-d|--debug] [--cert=<pem file>] [--in=<fname>]");
+        System.out.println("                        [--threads=<N> [--host-threads=<M>] [--journal[=<fname>]] [--sync]] [<url> ...]");
         System.out.println("         --in : file name with URLs (one per line)");
+        System.out.println("         --threads : batch mode: download with N concurrent transfers and print a summary");
+        System.out.println("                     (default: 1 when another batch mode option is set)");
+        System.out.println("         --host-threads : batch mode: at most M concurrent transfers per host");
+        System.out.println("         --journal : batch mode: record completed downloads and skip them when restarted");
+        System.out.println("                     (default: " + JOURNAL_NAME + ")");
+        System.out.println("         --sync : batch mode: only download files that are new or changed (HTTP HEAD)");
         System.out.println("         <url> : URLs directly on the command line");
         System.exit(1);
     }
     
     private Subject subject;
     private List<String> urls;
+    private int threads = 1;
+    private int hostThreads = 0; // no per-host limit
+    private File journalFile;
+    private boolean sync = false;
+    
+    private static final String JOURNAL_NAME = ".cadc-http-client.journal";
     
     private Main() { }
     private Main(Subject s, List<String> urls)
@@ -180,6 +270,357 @@ public class Main implements TransferListener
         }
     }
 
+    /**
+     * Download all URLs with a bounded number of concurrent transfers. All transfers
+     * run with the same Subject (and hence share SSL setup). If a per-host limit is set,
+     * URLs for a busy host are deferred while URLs for other hosts proceed. With a
+     * journal, URLs downloaded by a previous run are skipped. In sync mode, remote
+     * metadata is checked with concurrent HEAD requests and only new or changed files
+     * are downloaded.
+     */
+    public void runBatch()
+        throws Exception
+    {
+        final List<URL> pending = new LinkedList<URL>();
+        int invalid = 0;
+        for (String surl : urls)
+        {
+            try
+            {
+                pending.add(new URL(surl));
+            }
+            catch(MalformedURLException ex)
+            {
+                log.error("invalid input URL: " + surl);
+                invalid++;
+            }
+        }
+        log.info("batch: " + pending.size() + " URLs, threads=" + threads + " host-threads=" + hostThreads
+            + " sync=" + sync);
+        
+        final BatchSummary summary = new BatchSummary();
+        summary.failed = invalid;
+        final TransferJournal journal = (journalFile == null ? null : new TransferJournal(journalFile));
+        if (journal != null)
+        {
+            Iterator<URL> i = pending.iterator();
+            while (i.hasNext())
+            {
+                if (journal.isComplete(i.next()))
+                {
+                    i.remove();
+                    summary.skipped++;
+                }
+            }
+            log.info("journal: " + journalFile + " skipped " + summary.skipped + " completed URLs");
+        }
+        long start = System.currentTimeMillis();
+        try
+        {
+            Subject.doAs(subject, new PrivilegedExceptionAction<Object>()
+            {
+                @Override
+                public Object run() throws Exception
+                {
+                    if (sync)
+                        syncCheck(pending, summary);
+                    doBatch(pending, summary, journal);
+                    return null;
+                }
+            });
+            if (journal != null)
+                journal.compact();
+        }
+        finally
+        {
+            if (journal != null)
+                journal.close();
+        }
+        summary.elapsed = System.currentTimeMillis() - start;
+        summary.print(System.out);
+    }
+    
+    private void doBatch(List<URL> pending, BatchSummary summary, TransferJournal journal)
+        throws InterruptedException, IOException
+    {
+        HttpTransferExecutor exec = new HttpTransferExecutor(threads);
+        BlockingQueue<TransferFuture<HttpDownload>> completed = new LinkedBlockingQueue<TransferFuture<HttpDownload>>();
+        Map<String,Integer> hostActive = new HashMap<String,Integer>();
+        File dest = new File(System.getProperty("user.dir"));
+        int running = 0;
+        try
+        {
+            while (!pending.isEmpty() || running > 0)
+            {
+                // start as many transfers as the limits allow
+                Iterator<URL> i = pending.iterator();
+                while (running < threads && i.hasNext())
+                {
+                    URL url = i.next();
+                    Integer num = hostActive.get(url.getHost());
+                    if (num == null)
+                        num = 0;
+                    if (hostThreads <= 0 || num < hostThreads)
+                    {
+                        i.remove();
+                        hostActive.put(url.getHost(), num + 1);
+                        HttpDownload doit = new HttpDownload(url, dest);
+                        doit.setOverwrite(true);
+                        doit.setTransferListener(this);
+                        exec.submit(doit, completed);
+                        running++;
+                    }
+                }
+
+                // wait for one to finish
+                TransferFuture<HttpDownload> f = completed.take();
+                running--;
+                HttpDownload dl = f.getTransfer();
+                String host = dl.getURL().getHost();
+                hostActive.put(host, hostActive.get(host) - 1);
+                summary.add(dl);
+                if (sync && dl.getThrowable() == null && dl.getFile() != null)
+                    syncUpdate(dl);
+                if (journal != null && dl.getThrowable() == null && dl.getFile() != null)
+                    journal.record(dl.getURL(), dl.getFile(), dl.getContentMD5(), dl.getResponseHeader("ETag"));
+            }
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+    
+    /**
+     * Remove URLs from the pending list if the local copy of the file is up to date. 
+     * The remote metadata is checked with concurrent HEAD requests; a failed HEAD 
+     * request leaves the URL in the list.
+     */
+    private void syncCheck(List<URL> pending, BatchSummary summary)
+        throws InterruptedException
+    {
+        File dest = new File(System.getProperty("user.dir"));
+        Map<String,MetadataProbe.Result> results;
+        MetadataProbe probe = new MetadataProbe(threads);
+        try
+        {
+            results = probe.probe(pending);
+        }
+        finally
+        {
+            probe.shutdown();
+        }
+        log.info("sync: " + probe.getStats());
+        
+        Iterator<URL> i = pending.iterator();
+        while (i.hasNext())
+        {
+            MetadataProbe.Result r = results.get(i.next().toExternalForm());
+            if (!r.isSuccessful())
+            {
+                log.debug("HEAD failed: " + r.getURL() + " " + r.getThrowable());
+                continue;
+            }
+            FileMetadata meta = r.getMetadata();
+            File local = new File(dest, meta.getFileName());
+            if (isUnchanged(meta, local))
+            {
+                log.debug("unchanged: " + r.getURL() + " -> " + local);
+                i.remove();
+                summary.unchanged++;
+                summary.saved += local.length();
+            }
+        }
+        log.info("sync: " + summary.unchanged + " unchanged, " + pending.size() + " new or changed");
+    }
+    
+    /**
+     * Compare the remote metadata with the local file. The file is unchanged if the
+     * size matches and either the Content-MD5 matches the local checksum file (written
+     * after each sync download) or the file is no older than the remote Last-Modified.
+     */
+    static boolean isUnchanged(FileMetadata meta, File local)
+    {
+        if (!local.isFile())
+            return false;
+        Long len = meta.getContentLength();
+        if (len != null && len != local.length())
+            return false;
+        String md5 = normalizeMD5(meta.getMd5Sum());
+        String localMD5 = readChecksum(local);
+        if (md5 != null && localMD5 != null)
+            return md5.equals(localMD5);
+        Date lastModified = meta.getLastModified();
+        if (lastModified != null)
+            return lastModified.getTime() <= local.lastModified();
+        return false;
+    }
+    
+    /**
+     * Write the local checksum file and set the file modification time to the remote
+     * Last-Modified so the next sync can detect changes.
+     */
+    private void syncUpdate(HttpDownload dl)
+    {
+        File f = dl.getFile();
+        try
+        {
+            String md5 = computeMD5(f);
+            String remoteMD5 = normalizeMD5(dl.getContentMD5());
+            if (remoteMD5 != null && !remoteMD5.equals(md5))
+                log.warn("Content-MD5 mismatch: " + dl.getURL() + " remote=" + remoteMD5 + " local=" + md5);
+            PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getChecksumFile(f)), "UTF-8"));
+            try
+            {
+                // md5sum format
+                w.println(md5 + "  " + f.getName());
+            }
+            finally
+            {
+                w.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            log.warn("failed to write checksum file for " + f + ": " + ex);
+        }
+        Date lastModified = dl.getLastModified();
+        if (lastModified != null)
+            f.setLastModified(lastModified.getTime());
+    }
+    
+    private static File getChecksumFile(File f)
+    {
+        return new File(f.getParentFile(), f.getName() + ".md5");
+    }
+    
+    // the checksum from the local checksum file or null if not found
+    static String readChecksum(File f)
+    {
+        File cf = getChecksumFile(f);
+        if (!cf.isFile())
+            return null;
+        try
+        {
+            LineNumberReader r = new LineNumberReader(new FileReader(cf));
+            try
+            {
+                String line = r.readLine();
+                if (line == null)
+                    return null;
+                return normalizeMD5(line.trim().split("\\s+")[0]);
+            }
+            finally
+            {
+                r.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            log.debug("failed to read checksum file " + cf + ": " + ex);
+            return null;
+        }
+    }
+    
+    // Content-MD5 is hex (common) or base64 (RFC 1864): return lower case hex
+    static String normalizeMD5(String md5)
+    {
+        if (md5 == null)
+            return null;
+        String s = md5.trim();
+        if (s.matches("[0-9a-fA-F]{32}"))
+            return s.toLowerCase();
+        try
+        {
+            byte[] b = Base64.decode(s);
+            if (b != null && b.length == 16)
+                return HexUtil.toHex(b);
+        }
+        catch(RuntimeException ex)
+        {
+            log.debug("invalid Content-MD5: " + md5);
+        }
+        return null;
+    }
+    
+    private static String computeMD5(File f)
+        throws IOException
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            InputStream in = new FileInputStream(f);
+            try
+            {
+                byte[] buf = new byte[HttpTransfer.DEFAULT_BUFFER_SIZE];
+                int n = in.read(buf);
+                while (n != -1)
+                {
+                    md.update(buf, 0, n);
+                    n = in.read(buf);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return HexUtil.toHex(md.digest());
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException("BUG: MD5 not available", ex);
+        }
+    }
+    
+    private static class BatchSummary
+    {
+        int files = 0;
+        int failed = 0;
+        int skipped = 0;
+        int unchanged = 0;
+        long saved = 0L;
+        long bytes = 0L;
+        long elapsed = 0L;
+        List<String> failures = new ArrayList<String>();
+        
+        void add(HttpDownload dl)
+        {
+            if (dl.getThrowable() == null)
+            {
+                files++;
+                bytes += dl.getBytesTransferred();
+            }
+            else
+            {
+                failed++;
+                failures.add(dl.getURL() + " " + dl.getThrowable().getMessage());
+            }
+        }
+        
+        void print(PrintStream out)
+        {
+            double sec = elapsed / 1000.0;
+            double mb = bytes / (1024.0 * 1024.0);
+            out.println("      files: " + files);
+            if (skipped > 0)
+                out.println("    skipped: " + skipped);
+            out.println("      bytes: " + bytes);
+            if (unchanged > 0)
+            {
+                long full = bytes + saved;
+                out.println("  unchanged: " + unchanged);
+                out.println("      saved: " + saved + " bytes of " + full 
+                    + String.format(" (%.1f%%)", 100.0 * saved / full));
+            }
+            out.println("       time: " + String.format("%.1f sec", sec));
+            if (sec > 0.0)
+                out.println(" throughput: " + String.format("%.2f MB/sec", mb / sec));
+            out.println("   failures: " + failed);
+            for (String s : failures)
+                out.println("     " + s);
+        }
+    }
+
     @Override
     public void transferEvent(TransferEvent te)
     {
@@ -0,0 +1,258 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.ArgumentMap;
+import ca.nrc.cadc.util.Base64;
+import ca.nrc.cadc.util.FileMetadata;
+import ca.nrc.cadc.util.HexUtil;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Date;
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the sync comparison rules and option parsing in Main.
+ */
+public class MainTest
+{
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private File tmpDir;
+    private File local;
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = Files.createTempDirectory(MainTest.class.getSimpleName()).toFile();
+        local = new File(tmpDir, "file.dat");
+        Files.write(local.toPath(), new byte[100]);
+        local.setLastModified(1000000000000L);
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] files = tmpDir.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                f.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testToCount() throws Exception
+    {
+        Assert.assertEquals(4, Main.toCount("4"));
+        Assert.assertEquals(4, Main.toCount(" 4 "));
+        Assert.assertEquals(-1, Main.toCount(null));
+        Assert.assertEquals(-1, Main.toCount("true")); // option without a value
+        Assert.assertEquals(-1, Main.toCount("four"));
+        Assert.assertEquals(-1, Main.toCount("0"));
+        Assert.assertEquals(-1, Main.toCount("-2"));
+    }
+
+    @Test
+    public void testIsBatchMode() throws Exception
+    {
+        Assert.assertFalse(Main.isBatchMode(new ArgumentMap(new String[] { "http://example.net/a" })));
+        Assert.assertTrue(Main.isBatchMode(new ArgumentMap(new String[] { "--threads=2", "http://example.net/a" })));
+        Assert.assertTrue(Main.isBatchMode(new ArgumentMap(new String[] { "--sync", "http://example.net/a" })));
+        Assert.assertTrue(Main.isBatchMode(new ArgumentMap(new String[] { "--journal", "http://example.net/a" })));
+        Assert.assertTrue(Main.isBatchMode(new ArgumentMap(new String[] { "--journal=j.txt", "http://example.net/a" })));
+        Assert.assertTrue(Main.isBatchMode(new ArgumentMap(new String[] { "--host-threads=2", "http://example.net/a" })));
+    }
+
+    @Test
+    public void testNormalizeMD5() throws Exception
+    {
+        Assert.assertNull(Main.normalizeMD5(null));
+        Assert.assertEquals(MD5, Main.normalizeMD5(MD5));
+        Assert.assertEquals(MD5, Main.normalizeMD5(" " + MD5.toUpperCase() + " "));
+
+        // RFC 1864 base64
+        byte[] b = MessageDigest.getInstance("MD5").digest(new byte[100]);
+        Assert.assertEquals(HexUtil.toHex(b), Main.normalizeMD5(new String(Base64.encode(b))));
+
+        Assert.assertNull(Main.normalizeMD5("0123456789abcdef"));
+        Assert.assertNull(Main.normalizeMD5(new String(Base64.encode(new byte[8]))));
+        Assert.assertNull(Main.normalizeMD5("not a checksum"));
+    }
+
+    @Test
+    public void testReadChecksum() throws Exception
+    {
+        Assert.assertNull(Main.readChecksum(local));
+
+        writeChecksum(MD5.toUpperCase() + "  " + local.getName());
+        Assert.assertEquals(MD5, Main.readChecksum(local));
+
+        writeChecksum(MD5);
+        Assert.assertEquals(MD5, Main.readChecksum(local));
+
+        writeChecksum("garbage  " + local.getName());
+        Assert.assertNull(Main.readChecksum(local));
+
+        writeChecksum("");
+        Assert.assertNull(Main.readChecksum(local));
+    }
+
+    @Test
+    public void testIsUnchangedSize() throws Exception
+    {
+        FileMetadata meta = new FileMetadata();
+        meta.setLastModified(new Date(local.lastModified()));
+        meta.setContentLength(100L);
+        Assert.assertTrue(Main.isUnchanged(meta, local));
+
+        meta.setContentLength(101L);
+        Assert.assertFalse(Main.isUnchanged(meta, local));
+
+        // missing local file
+        meta.setContentLength(100L);
+        Assert.assertFalse(Main.isUnchanged(meta, new File(tmpDir, "no-such-file")));
+    }
+
+    @Test
+    public void testIsUnchangedMD5() throws Exception
+    {
+        writeChecksum(MD5 + "  " + local.getName());
+        FileMetadata meta = new FileMetadata();
+        meta.setContentLength(100L);
+        meta.setMd5Sum(MD5);
+        Assert.assertTrue(Main.isUnchanged(meta, local));
+
+        // checksum takes precedence over Last-Modified
+        meta.setLastModified(new Date(local.lastModified() - 60000L));
+        meta.setMd5Sum("fedcba9876543210fedcba9876543210");
+        Assert.assertFalse(Main.isUnchanged(meta, local));
+
+        meta.setLastModified(new Date(local.lastModified() + 60000L));
+        meta.setMd5Sum(MD5);
+        Assert.assertTrue(Main.isUnchanged(meta, local));
+    }
+
+    @Test
+    public void testIsUnchangedLastModified() throws Exception
+    {
+        // no checksum file: fall back to Last-Modified
+        FileMetadata meta = new FileMetadata();
+        meta.setContentLength(100L);
+        meta.setMd5Sum(MD5);
+        Assert.assertFalse(Main.isUnchanged(meta, local));
+
+        meta.setLastModified(new Date(local.lastModified()));
+        Assert.assertTrue(Main.isUnchanged(meta, local));
+
+        meta.setLastModified(new Date(local.lastModified() - 60000L));
+        Assert.assertTrue(Main.isUnchanged(meta, local));
+
+        meta.setLastModified(new Date(local.lastModified() + 60000L));
+        Assert.assertFalse(Main.isUnchanged(meta, local));
+
+        // no remote Content-MD5
+        writeChecksum(MD5 + "  " + local.getName());
+        meta.setMd5Sum(null);
+        Assert.assertFalse(Main.isUnchanged(meta, local));
+        meta.setLastModified(new Date(local.lastModified()));
+        Assert.assertTrue(Main.isUnchanged(meta, local));
+    }
+
+    private void writeChecksum(String line) throws Exception
+    {
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(new File(tmpDir, local.getName() + ".md5")), "UTF-8"));
+        try
+        {
+            w.println(line);
+        }
+        finally
+        {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.rest;
+
+import ca.nrc.cadc.net.ResourceNotFoundException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Base class for a PUT action that supports resumable (chunked) uploads as 
+ * implemented by HttpUpload (see HttpUpload.setChunkSize). Chunks are appended
+ * to a staging file; the request protocol is:
+ * <ul>
+ * <li><code>Content-Range: bytes start-end/total</code>: append the chunk if start
+ * matches the number of committed bytes, otherwise respond with 416 (Range Not Satisfiable)
+ * without reading the body</li>
+ * <li><code>Content-Range: bytes *&#47;total</code> (no body): query the committed bytes</li>
+ * <li>no Content-Range: the body is the complete content</li>
+ * </ul>
+ * The response is 204 (No Content) while the upload is incomplete and 201 (Created) after
+ * the last chunk, when uploadComplete has been called. Responses include a
+ * <code>Range: bytes=0-last</code> header with the committed bytes (if any). Bytes 
+ * received before a connection failure remain committed, so the client resumes from 
+ * the last byte actually stored. Concurrent requests for the same staging file are 
+ * serialised with an in-process lock (keyed by the canonical staging file path) and 
+ * a file lock. The total length from the first chunk is kept in a
+ * <code>.total</code> file next to the staging file and later chunks with a different 
+ * total are rejected (400). A status query completes an upload when all the content
+ * has been committed but uploadComplete has not succeeded (e.g. it failed after the last
+ * chunk) and responds with 416 if more than the total bytes are staged.
+ * 
+ * <p>Subclasses that need to check the readable/writable state should do so in 
+ * getStagingFile, which is called before any content is written.
+ */
+public abstract class ResumableUploadAction extends RestAction {
+    private static final Logger log = Logger.getLogger(ResumableUploadAction.class);
+
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String RANGE = "Range";
+
+    private static final int HTTP_NO_CONTENT = 204;
+    private static final int HTTP_CREATED = 201;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // a FileLock is held by the whole JVM, so requests in this JVM are serialised first
+    private static final Map<String,StagingLock> STAGING_LOCKS = new HashMap<String,StagingLock>();
+    
+    private File stagingFile;
+    private long committed = -1L;
+    private long total = -1L;
+    private boolean rangeMismatch = false;
+    private boolean contentReceived = false;
+
+    protected ResumableUploadAction() {
+        super();
+    }
+
+    /**
+     * Get the staging file for the target of the current request (usually based on 
+     * syncInput.getPath()). The same file must be returned for all requests that upload
+     * to the same target.
+     * 
+     * @return the staging file
+     * @throws ResourceNotFoundException if the target is not found
+     */
+    protected abstract File getStagingFile() throws ResourceNotFoundException;
+
+    /**
+     * Called once all the content has been received. Implementations normally move 
+     * the staging file to permanent storage.
+     * 
+     * @param stagingFile the complete staged content
+     * @throws Exception for any failure
+     */
+    protected abstract void uploadComplete(File stagingFile) throws Exception;
+
+    @Override
+    protected InlineContentHandler getInlineContentHandler() {
+        return new ChunkHandler();
+    }
+
+    @Override
+    public void doAction() throws Exception {
+        if (committed < 0) {
+            // no content handled: treat as query
+            stagingFile = getStagingFile();
+            committed = stagingFile.length();
+            long[] cr = parseContentRange(syncInput.getHeader(CONTENT_RANGE));
+            if (cr != null) {
+                total = cr[2];
+            }
+        }
+        log.debug("committed: " + committed + " total: " + total);
+
+        int code = HTTP_NO_CONTENT;
+        if (rangeMismatch || (total >= 0 && committed > total)) {
+            code = HTTP_RANGE_NOT_SATISFIABLE;
+        } else if (committed == total && (contentReceived || readTotal(stagingFile) == total)) {
+            // the .total file is removed on completion: still there if uploadComplete failed
+            uploadComplete(stagingFile);
+            getTotalFile(stagingFile).delete();
+            code = HTTP_CREATED;
+        }
+        if (committed > 0) {
+            syncOutput.setHeader(RANGE, "bytes=0-" + (committed - 1));
+        }
+        syncOutput.setCode(code);
+    }
+
+    private class ChunkHandler implements InlineContentHandler {
+        @Override
+        public Content accept(String name, String contentType, InputStream inputStream)
+            throws InlineContentException, IOException, ResourceNotFoundException {
+            long[] cr = parseContentRange(syncInput.getHeader(CONTENT_RANGE));
+            stagingFile = getStagingFile();
+            File dir = stagingFile.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+
+            String key = stagingFile.getCanonicalPath();
+            StagingLock slock = acquire(key);
+            try {
+                writeChunk(cr, inputStream);
+            } finally {
+                release(key, slock);
+            }
+
+            Content ret = new Content();
+            ret.name = "stagingFile";
+            ret.value = stagingFile;
+            return ret;
+        }
+
+        private void writeChunk(long[] cr, InputStream inputStream) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(stagingFile, "rw");
+            try {
+                FileLock lock = raf.getChannel().lock();
+                try {
+                    long cur = raf.length();
+                    if (cr == null) {
+                        // complete content
+                        raf.setLength(0L);
+                        getTotalFile(stagingFile).delete();
+                        committed = copy(inputStream, raf, Long.MAX_VALUE);
+                        total = committed;
+                        contentReceived = true;
+                    } else if (cr[0] < 0) {
+                        // status query
+                        committed = cur;
+                        total = cr[2];
+                    } else if (cr[0] != cur) {
+                        log.debug("chunk start " + cr[0] + " != committed " + cur);
+                        committed = cur;
+                        total = cr[2];
+                        rangeMismatch = true;
+                    } else {
+                        checkTotal(stagingFile, cur, cr[2]);
+                        raf.seek(cur);
+                        copy(inputStream, raf, cr[1] - cr[0] + 1);
+                        committed = raf.length();
+                        total = cr[2];
+                        contentReceived = true;
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static class StagingLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users = 0;
+    }
+
+    private static StagingLock acquire(String key) {
+        StagingLock ret;
+        synchronized (STAGING_LOCKS) {
+            ret = STAGING_LOCKS.get(key);
+            if (ret == null) {
+                ret = new StagingLock();
+                STAGING_LOCKS.put(key, ret);
+            }
+            ret.users++;
+        }
+        ret.lock.lock();
+        return ret;
+    }
+
+    private static void release(String key, StagingLock slock) {
+        slock.lock.unlock();
+        synchronized (STAGING_LOCKS) {
+            slock.users--;
+            if (slock.users == 0) {
+                STAGING_LOCKS.remove(key);
+            }
+        }
+    }
+
+    // the total from the first chunk must match the total of every later chunk
+    private static void checkTotal(File stagingFile, long cur, long total) throws IOException {
+        File f = getTotalFile(stagingFile);
+        if (cur == 0L || !f.exists()) {
+            FileWriter w = new FileWriter(f);
+            try {
+                w.write(Long.toString(total));
+            } finally {
+                w.close();
+            }
+            return;
+        }
+        long first = readTotal(stagingFile);
+        if (first >= 0 && first != total) {
+            throw new IllegalArgumentException("invalid " + CONTENT_RANGE + ": total " + total 
+                + " does not match the total of the first chunk: " + first);
+        }
+    }
+
+    // total of the incomplete upload or -1 if there is none
+    private static long readTotal(File stagingFile) throws IOException {
+        File f = getTotalFile(stagingFile);
+        if (!f.exists()) {
+            return -1L;
+        }
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        String s;
+        try {
+            s = r.readLine();
+        } finally {
+            r.close();
+        }
+        if (s == null) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException ex) {
+            log.debug("ignoring invalid total: " + s);
+            return -1L;
+        }
+    }
+
+    private static File getTotalFile(File stagingFile) {
+        return new File(stagingFile.getPath() + ".total");
+    }
+
+    // append at most len bytes; committed bytes stay in the file if the input fails
+    private static long copy(InputStream istream, RandomAccessFile raf, long len)
+        throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long tot = 0L;
+        while (tot < len) {
+            int n = istream.read(buf, 0, (int) Math.min(buf.length, len - tot));
+            if (n == -1) {
+                break;
+            }
+            raf.write(buf, 0, n);
+            tot += n;
+        }
+        return tot;
+    }
+
+    /**
+     * Parse a Content-Range header value.
+     * 
+     * @param cr Content-Range value: bytes start-end/total or bytes *&#47;total
+     * @return {start, end, total} with start and end -1 for a query, or null if cr is null
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    static long[] parseContentRange(String cr) {
+        if (cr == null) {
+            return null;
+        }
+        String s = cr.trim();
+        try {
+            if (!s.startsWith("bytes ")) {
+                throw new IllegalArgumentException("invalid " + CONTENT_RANGE + ": " + cr);
+            }
+            String[] rt = s.substring("bytes ".length()).trim().split("/");
+            long tot = Long.parseLong(rt[1]);
+            if ("*".equals(rt[0])) {
+                return new long[] { -1L, -1L, tot };
+            }
+            String[] se = rt[0].split("-");
+            long start = Long.parseLong(se[0]);
+            long end = Long.parseLong(se[1]);
+            if (start < 0 || end < start || end >= tot) {
+                throw new IllegalArgumentException("invalid " + CONTENT_RANGE + ": " + cr);
+            }
+            return new long[] { start, end, tot };
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("invalid " + CONTENT_RANGE + ": " + cr);
+        }
+    }
+}
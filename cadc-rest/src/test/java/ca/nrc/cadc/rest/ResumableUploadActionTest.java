@@ -0,0 +1,566 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+package ca.nrc.cadc.rest;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ResumableUploadAction.
+ */
+public class ResumableUploadActionTest
+{
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.rest", Level.INFO);
+    }
+
+    private File tmpDir;
+    private File stagingFile;
+    private int completed;
+    private boolean failComplete;
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = Files.createTempDirectory(ResumableUploadActionTest.class.getSimpleName()).toFile();
+        stagingFile = new File(tmpDir, "upload.dat");
+        completed = 0;
+        failComplete = false;
+    }
+
+    @After
+    public void cleanup()
+    {
+        File[] files = tmpDir.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                f.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testParseContentRange() throws Exception
+    {
+        Assert.assertNull(ResumableUploadAction.parseContentRange(null));
+        Assert.assertTrue(Arrays.equals(new long[] { 0L, 9L, 100L },
+            ResumableUploadAction.parseContentRange("bytes 0-9/100")));
+        Assert.assertTrue(Arrays.equals(new long[] { 90L, 99L, 100L },
+            ResumableUploadAction.parseContentRange(" bytes 90-99/100 ")));
+        Assert.assertTrue(Arrays.equals(new long[] { -1L, -1L, 100L },
+            ResumableUploadAction.parseContentRange("bytes */100")));
+
+        String[] invalid = new String[] {
+            "0-9/100", "bytes 0-9", "bytes 9-0/100", "bytes 0-100/100", "bytes -1-9/100",
+            "bytes a-9/100", "bytes 0-9/*", "items 0-9/100"
+        };
+        for (String s : invalid)
+        {
+            try
+            {
+                ResumableUploadAction.parseContentRange(s);
+                Assert.fail("expected IllegalArgumentException: " + s);
+            }
+            catch (IllegalArgumentException expected)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedUpload() throws Exception
+    {
+        byte[] data = randomContent(1000);
+
+        StubHttpServletResponse resp = put("bytes 0-399/1000", data, 0, 400);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals("bytes=0-399", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(400L, stagingFile.length());
+
+        resp = put("bytes 400-799/1000", data, 400, 400);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals("bytes=0-799", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(0, completed);
+
+        resp = put("bytes 800-999/1000", data, 800, 200);
+        Assert.assertEquals(201, resp.status);
+        Assert.assertEquals("bytes=0-999", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(1, completed);
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(stagingFile.toPath())));
+        Assert.assertFalse(new File(stagingFile.getPath() + ".total").exists());
+
+        // query after completion does not complete again
+        resp = put("bytes */1000", data, 0, 0);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals("bytes=0-999", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(1, completed);
+    }
+
+    @Test
+    public void testPartialChunk() throws Exception
+    {
+        byte[] data = randomContent(1000);
+
+        // connection failed part way through the chunk: received bytes stay committed
+        StubHttpServletResponse resp = put("bytes 0-499/1000", data, 0, 300);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals("bytes=0-299", resp.headers.get(ResumableUploadAction.RANGE));
+
+        resp = put("bytes 300-999/1000", data, 300, 700);
+        Assert.assertEquals(201, resp.status);
+        Assert.assertEquals(1, completed);
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(stagingFile.toPath())));
+    }
+
+    @Test
+    public void testOffsetMismatch() throws Exception
+    {
+        byte[] data = randomContent(1000);
+        put("bytes 0-399/1000", data, 0, 400);
+
+        // chunk that does not start at the committed offset is not read
+        StubHttpServletResponse resp = put("bytes 500-999/1000", data, 500, 500);
+        Assert.assertEquals(416, resp.status);
+        Assert.assertEquals("bytes=0-399", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(400L, stagingFile.length());
+
+        resp = put("bytes 0-399/1000", data, 0, 400);
+        Assert.assertEquals(416, resp.status);
+        Assert.assertEquals(400L, stagingFile.length());
+        Assert.assertEquals(0, completed);
+    }
+
+    @Test
+    public void testTotalMismatch() throws Exception
+    {
+        byte[] data = randomContent(1000);
+        put("bytes 0-399/1000", data, 0, 400);
+
+        try
+        {
+            put("bytes 400-799/800", data, 400, 400);
+            Assert.fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected)
+        {
+            // expected
+        }
+        Assert.assertEquals(400L, stagingFile.length());
+        Assert.assertEquals(0, completed);
+
+        StubHttpServletResponse resp = put("bytes 400-999/1000", data, 400, 600);
+        Assert.assertEquals(201, resp.status);
+        Assert.assertEquals(1, completed);
+    }
+
+    @Test
+    public void testQuery() throws Exception
+    {
+        byte[] data = randomContent(1000);
+
+        // nothing committed
+        StubHttpServletResponse resp = put("bytes */1000", data, 0, 0);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertNull(resp.headers.get(ResumableUploadAction.RANGE));
+
+        put("bytes 0-599/1000", data, 0, 600);
+        resp = put("bytes */1000", data, 0, 0);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals("bytes=0-599", resp.headers.get(ResumableUploadAction.RANGE));
+
+        // request without inline content handled by the action
+        TestUploadAction action = new TestUploadAction();
+        resp = new StubHttpServletResponse();
+        SyncInput in = new SyncInput(new StubRequest("bytes */1000", data, 0, 0), new TestInlineContentHandler());
+        in.init();
+        action.setSyncInput(in);
+        action.setSyncOutput(new SyncOutput(resp.proxy()));
+        action.doAction();
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals("bytes=0-599", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(0, completed);
+    }
+
+    @Test
+    public void testCompleteAfterFailure() throws Exception
+    {
+        byte[] data = randomContent(1000);
+        put("bytes 0-599/1000", data, 0, 600);
+        failComplete = true;
+        try
+        {
+            put("bytes 600-999/1000", data, 600, 400);
+            Assert.fail("expected IOException");
+        }
+        catch (IOException expected)
+        {
+            // expected
+        }
+        Assert.assertEquals(1000L, stagingFile.length());
+        Assert.assertEquals(0, completed);
+
+        // all bytes committed but not completed: a chunk is rejected and a query completes
+        StubHttpServletResponse resp = put("bytes 0-399/1000", data, 0, 400);
+        Assert.assertEquals(416, resp.status);
+        Assert.assertEquals("bytes=0-999", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(0, completed);
+
+        resp = put("bytes */1000", data, 0, 0);
+        Assert.assertEquals(201, resp.status);
+        Assert.assertEquals("bytes=0-999", resp.headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(1, completed);
+        Assert.assertFalse(new File(stagingFile.getPath() + ".total").exists());
+
+        resp = put("bytes */1000", data, 0, 0);
+        Assert.assertEquals(204, resp.status);
+        Assert.assertEquals(1, completed);
+    }
+
+    @Test
+    public void testStagedTooLong() throws Exception
+    {
+        // stale staging file larger than the upload
+        byte[] data = randomContent(1200);
+        Files.write(stagingFile.toPath(), data);
+
+        StubHttpServletResponse resp = put("bytes */1000", data, 0, 0);
+        Assert.assertEquals(416, resp.status);
+        Assert.assertEquals("bytes=0-1199", resp.headers.get(ResumableUploadAction.RANGE));
+
+        resp = put("bytes 0-399/1000", data, 0, 400);
+        Assert.assertEquals(416, resp.status);
+        Assert.assertEquals(1200L, stagingFile.length());
+        Assert.assertEquals(0, completed);
+    }
+
+    @Test
+    public void testCompleteContent() throws Exception
+    {
+        byte[] data = randomContent(1000);
+        put("bytes 0-399/1000", data, 0, 400);
+
+        // no Content-Range: body replaces any staged content
+        StubHttpServletResponse resp = put(null, data, 0, data.length);
+        Assert.assertEquals(201, resp.status);
+        Assert.assertEquals(1, completed);
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(stagingFile.toPath())));
+    }
+
+    @Test
+    public void testConcurrentChunks() throws Exception
+    {
+        final byte[] data = randomContent(1000);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        // first request blocks part way through its chunk while holding the lock
+        final InputStream slow = new ByteArrayInputStream(data, 0, 400)
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                reading.countDown();
+                try
+                {
+                    proceed.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+                return super.read(b, off, len);
+            }
+        };
+        final StubHttpServletResponse[] resp = new StubHttpServletResponse[2];
+        final Exception[] fail = new Exception[2];
+        Thread t1 = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    resp[0] = put("bytes 0-399/1000", slow);
+                }
+                catch (Exception ex)
+                {
+                    fail[0] = ex;
+                }
+            }
+        };
+        Thread t2 = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    resp[1] = put("bytes 0-399/1000", new ByteArrayInputStream(data, 0, 400));
+                }
+                catch (Exception ex)
+                {
+                    fail[1] = ex;
+                }
+            }
+        };
+
+        t1.start();
+        Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+        t2.start();
+        t2.join(200L);
+        Assert.assertTrue("second request waits for the first", t2.isAlive());
+        proceed.countDown();
+        t1.join(10000L);
+        t2.join(10000L);
+
+        Assert.assertNull(fail[0]);
+        Assert.assertNull(fail[1]);
+        Assert.assertEquals(204, resp[0].status);
+        Assert.assertEquals("bytes=0-399", resp[0].headers.get(ResumableUploadAction.RANGE));
+        // second chunk is serialised after the first and no longer matches the committed offset
+        Assert.assertEquals(416, resp[1].status);
+        Assert.assertEquals("bytes=0-399", resp[1].headers.get(ResumableUploadAction.RANGE));
+        Assert.assertEquals(400L, stagingFile.length());
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(data, 400), Files.readAllBytes(stagingFile.toPath())));
+    }
+
+    private StubHttpServletResponse put(String contentRange, byte[] data, int off, int len)
+        throws Exception
+    {
+        return put(contentRange, new ByteArrayInputStream(data, off, len));
+    }
+
+    private StubHttpServletResponse put(String contentRange, InputStream body)
+        throws Exception
+    {
+        TestUploadAction action = new TestUploadAction();
+        StubHttpServletResponse resp = new StubHttpServletResponse();
+        SyncInput in = new SyncInput(new StubRequest(contentRange, body), action.getInlineContentHandler());
+        action.setSyncInput(in);
+        action.setSyncOutput(new SyncOutput(resp.proxy()));
+        in.init();
+        action.doAction();
+        return resp;
+    }
+
+    private static byte[] randomContent(int len)
+    {
+        byte[] ret = new byte[len];
+        new Random().nextBytes(ret);
+        return ret;
+    }
+
+    private class TestUploadAction extends ResumableUploadAction
+    {
+        @Override
+        protected File getStagingFile()
+        {
+            return stagingFile;
+        }
+
+        @Override
+        protected void uploadComplete(File f)
+            throws IOException
+        {
+            if (failComplete)
+            {
+                failComplete = false;
+                throw new IOException("test: uploadComplete failed");
+            }
+            completed++;
+        }
+    }
+
+    private static class StubRequest extends StubHttpServletRequest
+    {
+        private final String contentRange;
+        private final InputStream body;
+
+        StubRequest(String contentRange, byte[] data, int off, int len)
+        {
+            this(contentRange, new ByteArrayInputStream(data, off, len));
+        }
+
+        StubRequest(String contentRange, InputStream body)
+        {
+            super("PUT", "application/octet-stream");
+            this.contentRange = contentRange;
+            this.body = body;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            if (ResumableUploadAction.CONTENT_RANGE.equalsIgnoreCase(name))
+            {
+                return contentRange;
+            }
+            return null;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            return new ServletInputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    return body.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    return body.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished()
+                {
+                    try
+                    {
+                        return body.available() == 0;
+                    }
+                    catch (IOException ex)
+                    {
+                        return true;
+                    }
+                }
+
+                @Override
+                public boolean isReady()
+                {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener listener)
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    // records status and headers; other methods are not used by SyncOutput.setCode/setHeader
+    private static class StubHttpServletResponse implements InvocationHandler
+    {
+        int status = 200;
+        final Map<String,String> headers = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+
+        HttpServletResponse proxy()
+        {
+            return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if ("setStatus".equals(method.getName()))
+            {
+                status = (Integer) args[0];
+                return null;
+            }
+            if ("setHeader".equals(method.getName()))
+            {
+                headers.put((String) args[0], (String) args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
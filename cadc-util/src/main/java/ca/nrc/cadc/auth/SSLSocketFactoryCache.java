@@ -0,0 +1,241 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.auth;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.SSLSocketFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded cache of SSLSocketFactory instances keyed by the identity of the
+ * X509CertificateChain they were created from. Creating a socket factory requires
+ * a new KeyStore, KeyManagerFactory, TrustManagerFactory, and SSLContext; reusing
+ * the factory for all connections made with the same credentials avoids that setup
+ * and allows TLS sessions to be resumed via the SSLContext session cache.
+ * 
+ * <p>Entries expire when the certificate chain expires (the earliest notAfter date)
+ * and are discarded if the certificates or private key in the chain object are replaced.
+ * When the cache is full the least recently used entry is evicted.
+ */
+public class SSLSocketFactoryCache {
+    private static final Logger log = Logger.getLogger(SSLSocketFactoryCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 32;
+
+    private final int maxSize;
+    private final Map<ChainKey,CacheEntry> cache;
+
+    public SSLSocketFactoryCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of socket factories to keep
+     */
+    public SSLSocketFactoryCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be 1 or more: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<ChainKey,CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 201912091400L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChainKey,CacheEntry> eldest) {
+                boolean ret = size() > SSLSocketFactoryCache.this.maxSize;
+                if (ret) {
+                    log.debug("evict: " + eldest.getKey());
+                }
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Get a socket factory for the specified certificate chain. A new factory is
+     * created if there is no usable cached factory for this chain.
+     * 
+     * @param chain certificate chain with private key
+     * @return an SSLSocketFactory that uses the chain for client authentication
+     */
+    public SSLSocketFactory getSocketFactory(X509CertificateChain chain) {
+        if (chain == null) {
+            throw new IllegalArgumentException("chain cannot be null");
+        }
+        ChainKey key = new ChainKey(chain);
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            CacheEntry ce = cache.get(key);
+            if (ce != null) {
+                if (ce.isValid(chain, now)) {
+                    log.debug("hit: " + key);
+                    return ce.factory;
+                }
+                log.debug("stale: " + key);
+                cache.remove(key);
+            }
+        }
+
+        // create outside the lock: concurrent misses for the same chain may both
+        // create a factory, the last one put in the cache wins
+        log.debug("miss: " + key);
+        SSLSocketFactory sf = createSocketFactory(chain);
+        synchronized (cache) {
+            cache.put(key, new CacheEntry(chain, sf));
+        }
+        return sf;
+    }
+
+    /**
+     * Remove expired entries.
+     */
+    public void expire() {
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            Iterator<Map.Entry<ChainKey,CacheEntry>> i = cache.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<ChainKey,CacheEntry> me = i.next();
+                if (!me.getValue().isValid(me.getKey().chain, now)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    protected SSLSocketFactory createSocketFactory(X509CertificateChain chain) {
+        return SSLUtil.getSocketFactory(chain);
+    }
+
+    // identity-based key: X509CertificateChain does not implement equals/hashCode
+    private static class ChainKey {
+        private final X509CertificateChain chain;
+
+        ChainKey(X509CertificateChain chain) {
+            this.chain = chain;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(chain);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof ChainKey) {
+                return chain == ((ChainKey) obj).chain;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "ChainKey[" + chain.getPrincipal() + "," + System.identityHashCode(chain) + "]";
+        }
+    }
+
+    private static class CacheEntry {
+        private final X509Certificate[] certs;
+        private final PrivateKey key;
+        private final Date expires;
+        private final SSLSocketFactory factory;
+
+        CacheEntry(X509CertificateChain chain, SSLSocketFactory factory) {
+            this.certs = chain.getChain();
+            this.key = chain.getPrivateKey();
+            this.expires = chain.getExpiryDate();
+            this.factory = factory;
+        }
+
+        // chain content is mutable: only valid while the same cert(s) and key are in use
+        boolean isValid(X509CertificateChain chain, long now) {
+            if (expires != null && expires.getTime() <= now) {
+                return false;
+            }
+            return certs == chain.getChain() && key == chain.getPrivateKey();
+        }
+    }
+}
@@ -140,6 +140,8 @@ public class SSLUtil {
 
     private static final char[] THE_PASSWORD = CERT_ALIAS.toCharArray();
 
+    private static final SSLSocketFactoryCache socketFactoryCache = new SSLSocketFactoryCache();
+
     /**
      * Initialise the default SSL socket factory so that all HTTPS connections use
      * the provided key store to authenticate (when the server requires client
@@ -221,16 +223,7 @@ public class SSLUtil {
      * @return an SSLSocketFactory, or null if no X509CertificateChain can be found
      */
     public static SSLSocketFactory getSocketFactory(Subject s) {
-        X509CertificateChain chain = null;
-        if (s != null) {
-            Set<X509CertificateChain> certs = s.getPublicCredentials(X509CertificateChain.class);
-            for (X509CertificateChain cc : certs) {
-                if (cc.getKey() != null) {
-                    chain = cc;
-                    break;
-                }
-            }
-        }
+        X509CertificateChain chain = findPrivateKeyChain(s);
         if (chain == null) {
             return null;
         }
@@ -257,6 +250,37 @@ public class SSLUtil {
         return sf;
     }
 
+    /**
+     * Get a shared SSLSocketFactory for the credentials in the specified Subject. This
+     * is the same as getSocketFactory(Subject) except that the socket factory (and
+     * underlying SSLContext) is cached and reused for subsequent calls with the same
+     * X509CertificateChain object, so connections can reuse TLS sessions.
+     * 
+     * @see SSLSocketFactoryCache
+     * @param s
+     * @return an SSLSocketFactory, or null if no X509CertificateChain can be found
+     */
+    public static SSLSocketFactory getCachedSocketFactory(Subject s) {
+        X509CertificateChain chain = findPrivateKeyChain(s);
+        if (chain == null) {
+            return null;
+        }
+        
+        return socketFactoryCache.getSocketFactory(chain);
+    }
+
+    private static X509CertificateChain findPrivateKeyChain(Subject s) {
+        if (s != null) {
+            Set<X509CertificateChain> certs = s.getPublicCredentials(X509CertificateChain.class);
+            for (X509CertificateChain cc : certs) {
+                if (cc.getKey() != null) {
+                    return cc;
+                }
+            }
+        }
+        return null;
+    }
+
     public static Subject createSubject(File certFile, File keyFile) {
         try {
             PrivateKey pk = readPrivateKey(keyFile);
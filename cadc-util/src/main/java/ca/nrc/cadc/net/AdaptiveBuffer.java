@@ -0,0 +1,271 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * IO loop buffer with optional adaptive sizing. Buffers are taken from a shared pool
+ * (sizes are rounded up to a power of two) and returned when released so that
+ * consecutive transfers reuse them instead of allocating a new byte[] each time.
+ * 
+ * <p>When adaptive, the size is re-evaluated after each window of reads: if the reads
+ * filled the buffer the size is doubled, if they used less than a quarter of it the
+ * size is halved, always within the configured bounds. If throughput drops after the
+ * buffer was grown, the previous size is restored and the buffer is not grown again.
+ */
+class AdaptiveBuffer {
+    private static final Logger log = Logger.getLogger(AdaptiveBuffer.class);
+
+    static final int WINDOW = 16; // reads per evaluation
+    static final int MAX_POOLED_PER_SIZE = 8;
+    static final long MAX_POOLED_BYTES = 32 * 1024 * 1024L;
+
+    private static final ConcurrentMap<Integer,ConcurrentLinkedQueue<byte[]>> pool
+        = new ConcurrentHashMap<Integer,ConcurrentLinkedQueue<byte[]>>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private final boolean adaptive;
+    private final int minSize;
+    private final int maxSize;
+    private byte[] buf;
+    private int size;
+
+    // current window
+    private int reads = 0;
+    private long windowBytes = 0L;
+    private long windowStart = -1L;
+
+    // throughput (bytes/ms) of the window before the last grow, -1 if not grown
+    private double preGrowRate = -1.0;
+    private boolean growLocked = false;
+
+    /**
+     * Fixed size buffer.
+     * 
+     * @param size 
+     */
+    AdaptiveBuffer(int size) {
+        this(size, size, size, false);
+    }
+
+    /**
+     * Adaptive buffer.
+     * 
+     * @param initialSize initial size (clamped to the bounds)
+     * @param minSize minimum size
+     * @param maxSize maximum size
+     */
+    AdaptiveBuffer(int initialSize, int minSize, int maxSize) {
+        this(initialSize, minSize, maxSize, true);
+    }
+
+    private AdaptiveBuffer(int initialSize, int minSize, int maxSize, boolean adaptive) {
+        this.adaptive = adaptive;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.size = Math.max(minSize, Math.min(maxSize, initialSize));
+        this.buf = acquire(size);
+    }
+
+    /**
+     * @return the current buffer; the length may be larger than getSize()
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return the number of bytes of the buffer to use
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Record the number of bytes read into the buffer. This may change the buffer
+     * and size so callers must call getBuffer() and getSize() again afterwards.
+     * 
+     * @param nb number of bytes read
+     */
+    void update(int nb) {
+        if (adaptive) {
+            update(nb, System.nanoTime());
+        }
+    }
+
+    // the time is the end of the read in nanoseconds
+    void update(int nb, long now) {
+        if (!adaptive) {
+            return;
+        }
+        if (windowStart < 0L) {
+            // the first read of a window is only a time reference
+            windowStart = now;
+            return;
+        }
+        reads++;
+        windowBytes += nb;
+        if (reads < WINDOW) {
+            return;
+        }
+        
+        double rate = windowBytes / Math.max(1.0, (now - windowStart) / 1.0e6);
+        double fill = (double) windowBytes / ((long) reads * size);
+        int next = size;
+        if (preGrowRate >= 0.0 && rate < 0.9 * preGrowRate) {
+            // growing made it worse: go back and stay there
+            next = size / 2;
+            growLocked = true;
+            log.debug("throughput dropped after grow: " + rate + " < " + preGrowRate + " bytes/ms");
+        } else if (fill > 0.9 && !growLocked && size < maxSize) {
+            next = size * 2;
+        } else if (fill < 0.25 && size > minSize) {
+            next = size / 2;
+        }
+        next = Math.max(minSize, Math.min(maxSize, next));
+        preGrowRate = -1.0;
+        if (next > size) {
+            preGrowRate = rate;
+        }
+        if (next != size) {
+            log.debug("buffer size: " + size + " -> " + next + " fill: " + fill + " rate: " + rate + " bytes/ms");
+            resize(next);
+        }
+        
+        reads = 0;
+        windowBytes = 0L;
+        windowStart = now;
+    }
+
+    private void resize(int next) {
+        if (next > buf.length) {
+            recycle(buf);
+            this.buf = acquire(next);
+        }
+        this.size = next;
+    }
+
+    /**
+     * Return the buffer to the pool. The buffer must not be used afterwards.
+     */
+    void release() {
+        if (buf != null) {
+            recycle(buf);
+            this.buf = null;
+        }
+    }
+
+    // round up to a power of two
+    static int poolSize(int size) {
+        int ret = Integer.highestOneBit(size);
+        if (ret < size) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+
+    static byte[] acquire(int size) {
+        int ps = poolSize(size);
+        ConcurrentLinkedQueue<byte[]> q = pool.get(ps);
+        if (q != null) {
+            byte[] ret = q.poll();
+            if (ret != null) {
+                pooledBytes.addAndGet(-ret.length);
+                return ret;
+            }
+        }
+        return new byte[ps];
+    }
+
+    static void recycle(byte[] buf) {
+        int ps = buf.length;
+        if (ps != poolSize(ps)) {
+            return; // not from the pool
+        }
+        ConcurrentLinkedQueue<byte[]> q = pool.get(ps);
+        if (q == null) {
+            pool.putIfAbsent(ps, new ConcurrentLinkedQueue<byte[]>());
+            q = pool.get(ps);
+        }
+        if (q.size() >= MAX_POOLED_PER_SIZE) {
+            return;
+        }
+        if (pooledBytes.addAndGet(ps) > MAX_POOLED_BYTES) {
+            pooledBytes.addAndGet(-ps);
+            return;
+        }
+        q.offer(buf);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Bandwidth limiter that can be shared by many transfers (setBandwidthLimiter in
+ * HttpTransfer). The limiter has an optional global limit and optional per-host limits
+ * (a default for all hosts and overrides for specific hosts); all limits are in bytes
+ * per second and can be changed at any time.
+ * 
+ * <p>Each limit is a token bucket that allows a burst of up to BURST_MILLIS worth of
+ * bytes. The IO loop calls acquire after each read; bytes are always granted in the
+ * order they are requested and the bucket goes into debt, so each caller sleeps exactly
+ * until its bytes are paid for (no polling) and concurrent transfers share the 
+ * bandwidth fairly in proportion to how much they read.
+ */
+public class BandwidthLimiter {
+    private static final Logger log = Logger.getLogger(BandwidthLimiter.class);
+
+    public static final long BURST_MILLIS = 100L;
+
+    private static final BandwidthLimiter sharedLimiter = new BandwidthLimiter();
+
+    private final Bucket global = new Bucket();
+    private long defaultHostLimit = 0L;
+    private final Map<String,Long> hostLimits = new HashMap<String,Long>();
+    private final Map<String,Bucket> hosts = new HashMap<String,Bucket>();
+
+    private static class Bucket {
+        long rate; // bytes per second, 0 for no limit
+        double tokens;
+        long last;
+        boolean full = true; // next take starts with a full bucket
+
+        // returns the time (ns) the caller must wait for n bytes
+        long take(long n, long now) {
+            if (rate <= 0) {
+                return 0L;
+            }
+            double capacity = Math.max(1.0, rate * BURST_MILLIS / 1000.0);
+            if (full) {
+                tokens = capacity;
+                full = false;
+            } else {
+                tokens = Math.min(capacity, tokens + (now - last) * rate / 1.0e9);
+            }
+            last = now;
+            tokens -= n;
+            if (tokens >= 0.0) {
+                return 0L;
+            }
+            return (long) (-tokens * 1.0e9 / rate);
+        }
+
+        void setRate(long rate) {
+            if (this.rate != rate) {
+                this.rate = rate;
+                this.full = true; // start with a full bucket at the new rate
+            }
+        }
+    }
+
+    public BandwidthLimiter() { 
+    }
+
+    /**
+     * Get the limiter shared by all users in this JVM. It has no limits until
+     * they are configured.
+     * 
+     * @return the shared limiter
+     */
+    public static BandwidthLimiter getSharedLimiter() {
+        return sharedLimiter;
+    }
+
+    /**
+     * Set the limit for all transfers using this limiter.
+     * 
+     * @param bytesPerSecond the limit, 0 for no limit
+     */
+    public synchronized void setGlobalLimit(long bytesPerSecond) {
+        checkLimit(bytesPerSecond);
+        global.setRate(bytesPerSecond);
+    }
+
+    public synchronized long getGlobalLimit() {
+        return global.rate;
+    }
+
+    /**
+     * Set the limit for transfers to each host that does not have a specific limit.
+     * 
+     * @param bytesPerSecond the limit, 0 for no limit
+     */
+    public synchronized void setDefaultHostLimit(long bytesPerSecond) {
+        checkLimit(bytesPerSecond);
+        this.defaultHostLimit = bytesPerSecond;
+        for (Map.Entry<String,Bucket> me : hosts.entrySet()) {
+            me.getValue().setRate(getHostLimit(me.getKey()));
+        }
+    }
+
+    /**
+     * Set the limit for transfers to the specified host.
+     * 
+     * @param host the host name
+     * @param bytesPerSecond the limit, 0 for no limit, or null to use the default host limit
+     */
+    public synchronized void setHostLimit(String host, Long bytesPerSecond) {
+        if (bytesPerSecond == null) {
+            hostLimits.remove(host);
+        } else {
+            checkLimit(bytesPerSecond);
+            hostLimits.put(host, bytesPerSecond);
+        }
+        Bucket b = hosts.get(host);
+        if (b != null) {
+            b.setRate(getHostLimit(host));
+        }
+    }
+
+    /**
+     * @param host the host name
+     * @return the limit in bytes per second for transfers to the host, 0 for no limit
+     */
+    public synchronized long getHostLimit(String host) {
+        Long ret = hostLimits.get(host);
+        if (ret != null) {
+            return ret;
+        }
+        return defaultHostLimit;
+    }
+
+    private static void checkLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("invalid bandwidth limit: " + bytesPerSecond);
+        }
+    }
+
+    /**
+     * Account for bytes transferred to or from a host, blocking until they fit within
+     * the limits.
+     * 
+     * @param host the host name, may be null to apply only the global limit
+     * @param numBytes number of bytes transferred
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(String host, long numBytes)
+        throws InterruptedException {
+        long wait = reserve(host, numBytes, System.nanoTime());
+        if (wait > 0) {
+            long ms = wait / 1000000L;
+            int ns = (int) (wait % 1000000L);
+            Thread.sleep(ms, ns);
+        }
+    }
+
+    // reserve numBytes at time now: returns the time (ns) to wait
+    synchronized long reserve(String host, long numBytes, long now) {
+        long ret = global.take(numBytes, now);
+        if (host != null) {
+            Bucket b = hosts.get(host);
+            if (b == null) {
+                long limit = getHostLimit(host);
+                if (limit == 0 && hostLimits.isEmpty()) {
+                    return ret; // no per-host limits: do not track hosts
+                }
+                b = new Bucket();
+                b.setRate(limit);
+                hosts.put(host, b);
+            }
+            ret = Math.max(ret, b.take(numBytes, now));
+        }
+        if (ret > 0 && log.isDebugEnabled()) {
+            log.debug("throttle " + host + " " + numBytes + " bytes: wait " + (ret / 1000000L) + "ms");
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * StorageResolver decorator that caches the URLs returned by another resolver. Entries 
+ * expire after a time-to-live and the least recently used entries are evicted when
+ * the cache is full. Bulk conversion only passes the URIs that are not in the cache
+ * to the resolver, in a single call if it is a BulkStorageResolver.
+ */
+public class CachingStorageResolver implements BulkStorageResolver {
+    private static final Logger log = Logger.getLogger(CachingStorageResolver.class);
+
+    private final StorageResolver resolver;
+    private final ResolutionCache<URL> cache;
+
+    /**
+     * @param resolver the resolver to call for URIs that are not in the cache
+     * @param maxEntries maximum number of cached URIs
+     * @param ttl time-to-live of cached results in milliseconds
+     */
+    public CachingStorageResolver(StorageResolver resolver, int maxEntries, long ttl) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("resolver cannot be null");
+        }
+        this.resolver = resolver;
+        this.cache = new ResolutionCache<URL>(maxEntries, ttl);
+    }
+
+    @Override
+    public String getScheme() {
+        return resolver.getScheme();
+    }
+
+    @Override
+    public URL toURL(URI uri)
+        throws IllegalArgumentException {
+        if (uri == null) {
+            return resolver.toURL(uri);
+        }
+        URL ret = cache.get(uri);
+        if (ret == null) {
+            ret = resolver.toURL(uri);
+            if (ret != null) {
+                cache.put(uri, ret);
+            }
+        } else {
+            log.debug("cache hit: " + uri);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<URI,URL> toURL(Collection<URI> uris) {
+        Map<URI,URL> ret = new HashMap<URI,URL>();
+        List<URI> misses = new ArrayList<URI>();
+        for (URI u : uris) {
+            if (u != null) {
+                URL url = cache.get(u);
+                if (url != null) {
+                    ret.put(u, url);
+                } else {
+                    misses.add(u);
+                }
+            }
+        }
+        log.debug("bulk: " + ret.size() + " cached " + misses.size() + " to resolve");
+        if (misses.isEmpty()) {
+            return ret;
+        }
+        
+        Map<URI,URL> found;
+        if (resolver instanceof BulkStorageResolver) {
+            found = ((BulkStorageResolver) resolver).toURL(misses);
+        } else {
+            found = new HashMap<URI,URL>();
+            for (URI u : misses) {
+                try {
+                    URL url = resolver.toURL(u);
+                    if (url != null) {
+                        found.put(u, url);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    log.debug("failed to convert " + u + ": " + ex);
+                }
+            }
+        }
+        for (Map.Entry<URI,URL> me : found.entrySet()) {
+            cache.put(me.getKey(), me.getValue());
+            ret.put(me.getKey(), me.getValue());
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import org.apache.log4j.Logger;
+
+/**
+ * A download that may share the network transfer with concurrent downloads of the
+ * same URL. Instances are created by a DownloadCoordinator and run by the caller,
+ * directly or via a Thread (or pool); the download is run with the current Subject.
+ * The safe way to stop the download is to call terminate(): this only affects this
+ * download unless no others are waiting for the same transfer.
+ */
+public class CoordinatedDownload implements Runnable {
+    private static final Logger log = Logger.getLogger(CoordinatedDownload.class);
+
+    private static final int BUFFER_SIZE = HttpTransfer.DEFAULT_BUFFER_SIZE;
+
+    private final DownloadCoordinator coordinator;
+    private final URL src;
+    private final File destFile;
+    private final OutputStream destStream;
+    private final InputStreamWrapper wrapper;
+
+    private volatile boolean go = true;
+    private volatile DownloadCoordinator.Flight flight;
+    private boolean shared = false;
+    private long bytesTransferred = 0L;
+    private Throwable failure;
+
+    CoordinatedDownload(DownloadCoordinator coordinator, URL src, 
+            File destFile, OutputStream destStream, InputStreamWrapper wrapper) {
+        if (src == null) {
+            throw new IllegalArgumentException("src cannot be null");
+        }
+        if (destFile == null && destStream == null && wrapper == null) {
+            throw new IllegalArgumentException("destination cannot be null");
+        }
+        this.coordinator = coordinator;
+        this.src = src;
+        this.destFile = destFile;
+        this.destStream = destStream;
+        this.wrapper = wrapper;
+    }
+
+    @Override
+    public String toString() {
+        return "CoordinatedDownload[" + src + "]";
+    }
+
+    public URL getURL() {
+        return src;
+    }
+
+    /**
+     * @return the destination file or null if the destination is a stream
+     */
+    public File getFile() {
+        return destFile;
+    }
+
+    /**
+     * @return true if this download joined a transfer started by another download
+     */
+    public synchronized boolean isShared() {
+        return shared;
+    }
+
+    synchronized void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @return true if terminate() was called
+     */
+    public boolean isCancelled() {
+        return !go;
+    }
+
+    boolean isRunning() {
+        return go;
+    }
+
+    /**
+     * @return the failure, or null if the download was successful or cancelled
+     */
+    public synchronized Throwable getThrowable() {
+        return failure;
+    }
+
+    /**
+     * @return number of bytes delivered to the destination
+     */
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return the HTTP response code or -1 if the transfer has not completed
+     */
+    public int getResponseCode() {
+        HttpDownload d = getTransfer();
+        if (d == null) {
+            return -1;
+        }
+        return d.getResponseCode();
+    }
+
+    /**
+     * @return the content type or null if the transfer has not completed
+     */
+    public String getContentType() {
+        HttpDownload d = getTransfer();
+        if (d == null) {
+            return null;
+        }
+        return d.getContentType();
+    }
+
+    /**
+     * @return the content length or -1 if the transfer has not completed
+     */
+    public long getContentLength() {
+        HttpDownload d = getTransfer();
+        if (d == null) {
+            return -1L;
+        }
+        return d.getContentLength();
+    }
+
+    /**
+     * @return the content MD5 or null if the transfer has not completed
+     */
+    public String getContentMD5() {
+        HttpDownload d = getTransfer();
+        if (d == null) {
+            return null;
+        }
+        return d.getContentMD5();
+    }
+
+    private HttpDownload getTransfer() {
+        DownloadCoordinator.Flight f = flight;
+        if (f == null) {
+            return null;
+        }
+        return f.getCompletedTransfer();
+    }
+
+    /**
+     * Stop this download. Other downloads of the same URL are not affected.
+     */
+    public void terminate() {
+        this.go = false;
+        DownloadCoordinator.Flight f = flight;
+        if (f != null) {
+            f.wakeUp();
+        }
+    }
+
+    /**
+     * Run the download. This blocks until the content has been delivered to the
+     * destination or the download fails or is terminated.
+     */
+    @Override
+    public void run() {
+        if (!go) {
+            return;
+        }
+        DownloadCoordinator.Flight f;
+        try {
+            f = coordinator.join(src, this);
+        } catch (IOException ex) {
+            log.debug("failed to start transfer: " + src, ex);
+            setFailure(ex);
+            return;
+        }
+        this.flight = f;
+        try {
+            InputStream in = f.openStream(this);
+            try {
+                if (wrapper != null) {
+                    wrapper.read(new CountingInputStream(in));
+                } else if (destStream != null) {
+                    copy(in, destStream);
+                } else {
+                    writeFile(in);
+                }
+            } finally {
+                in.close();
+            }
+            if (go && f.getCompletedTransfer() != null) {
+                // a wrapper may have handled a failure of the content stream
+                setFailure(f.getFailure());
+            }
+        } catch (Throwable t) {
+            if (go) {
+                Throwable ff = f.getFailure();
+                setFailure(ff != null ? ff : t);
+                log.debug("download failed: " + src, t);
+            }
+        } finally {
+            coordinator.leave(f);
+        }
+    }
+
+    private synchronized void setFailure(Throwable t) {
+        this.failure = t;
+    }
+
+    private synchronized void addBytes(long n) {
+        bytesTransferred += n;
+    }
+
+    private void writeFile(InputStream in) throws IOException {
+        OutputStream out = new FileOutputStream(destFile);
+        boolean ok = false;
+        try {
+            copy(in, out);
+            ok = true;
+        } finally {
+            out.close();
+            if (!ok && !destFile.delete()) {
+                log.debug("failed to delete incomplete file: " + destFile);
+            }
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n = in.read(buf);
+        while (n != -1) {
+            out.write(buf, 0, n);
+            addBytes(n);
+            n = in.read(buf);
+        }
+        out.flush();
+    }
+
+    private class CountingInputStream extends InputStream {
+        private final InputStream in;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                addBytes(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                addBytes(n);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.HexUtil;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+
+/**
+ * On-disk cache of downloaded content for use with HttpDownload (setCache). Content 
+ * is keyed by URL and stored with the ETag, Last-Modified, and MD5 of the response.
+ * When a cached URL is downloaded again, the request includes If-None-Match and/or 
+ * If-Modified-Since and a 304 (Not Modified) response is served from the local copy.
+ * The cache is bounded by the total size of the content: least recently used entries
+ * are evicted when it is full. A cache can be shared by many concurrent downloads and
+ * the content persists in the cache directory for use by later processes.
+ * 
+ * <p>Only complete 200 (OK) responses with an ETag or Last-Modified header are cached.
+ */
+public class DownloadCache {
+    private static final Logger log = Logger.getLogger(DownloadCache.class);
+
+    private static final String DATA_EXT = ".data";
+    private static final String META_EXT = ".properties";
+
+    // temporary files not modified for this long (ms) were left by an interrupted download; 
+    // newer ones may be in use by another cache on the same directory
+    static final long STALE_TMP_AGE = 3600 * 1000L;
+
+    private final File dir;
+    private long maxBytes;
+    private long totalBytes = 0L;
+    
+    // access-ordered: iteration starts with the least recently used entry
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+    /**
+     * Metadata for a cached URL.
+     */
+    public static class Entry {
+        private final String key;
+        private final URL url;
+        private final File file;
+        private String etag;
+        private long lastModified = -1L;
+        private String md5;
+        private String contentType;
+        private String contentEncoding;
+        private String filename;
+        private long contentLength;
+
+        Entry(String key, URL url, File file) {
+            this.key = key;
+            this.url = url;
+            this.file = file;
+        }
+
+        public URL getURL() {
+            return url;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentMD5() {
+            return md5;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return the content encoding of the stored bytes or null if not encoded
+         */
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        /**
+         * @return filename from the Content-Disposition of the cached response or null
+         */
+        public String getFilename() {
+            return filename;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public String toString() {
+            return "DownloadCache.Entry[" + url + "," + contentLength + "," + etag + "," + lastModified + "]";
+        }
+    }
+
+    /**
+     * Create or open a cache. Entries already in the directory are loaded and the least
+     * recently used are evicted if they exceed maxBytes. Temporary files of downloads that
+     * were interrupted more than an hour ago are removed.
+     * 
+     * @param dir cache directory, created if necessary
+     * @param maxBytes maximum total size of cached content
+     * @throws IOException if the directory cannot be created
+     */
+    public DownloadCache(File dir, long maxBytes) throws IOException {
+        if (dir == null) {
+            throw new IllegalArgumentException("cache directory cannot be null");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid cache size: " + maxBytes);
+        }
+        dir.mkdirs();
+        if (!dir.isDirectory()) {
+            throw new IOException("failed to create cache directory: " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Change the maximum total size of cached content, evicting entries if necessary.
+     * 
+     * @param maxBytes maximum total size of cached content
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return total size of cached content
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Get the cache entry for a URL. This marks the entry as recently used.
+     * 
+     * @param url the URL
+     * @return the entry or null if not cached
+     */
+    public synchronized Entry get(URL url) {
+        String key = getKey(url);
+        Entry e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (!e.file.exists() || e.file.length() != e.contentLength) {
+            log.debug("stale entry: " + e);
+            removeEntry(key);
+            return null;
+        }
+        e.file.setLastModified(System.currentTimeMillis()); // persistent LRU order
+        return e;
+    }
+
+    /**
+     * Remove the cache entry for a URL.
+     * 
+     * @param url the URL
+     */
+    public synchronized void remove(URL url) {
+        removeEntry(getKey(url));
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        for (String k : keys) {
+            removeEntry(k);
+        }
+    }
+
+    // add conditional request headers for a cached entry
+    static void setConditionalHeaders(HttpURLConnection conn, Entry e) {
+        if (e.etag != null) {
+            conn.setRequestProperty("If-None-Match", e.etag);
+        }
+        if (e.lastModified > 0) {
+            conn.setIfModifiedSince(e.lastModified);
+        }
+    }
+
+    /**
+     * Create a temporary file in the cache directory to receive content for put.
+     * 
+     * @return temporary file
+     * @throws IOException failure to create the file
+     */
+    File createTempFile() throws IOException {
+        return File.createTempFile("download-", ".tmp", dir);
+    }
+
+    /**
+     * Add content to the cache, replacing any previous entry for the URL. The file is
+     * moved into the cache; it is deleted if the content cannot be cached.
+     * 
+     * @param url the URL
+     * @param tmp file with the content (from createTempFile)
+     * @param conn the connection with the response headers
+     * @param md5 MD5 of the content in the file or null to compute it
+     * @param contentEncoding encoding of the stored bytes or null
+     * @param filename filename from Content-Disposition or null
+     * @return the new entry or null if the content was not cached
+     */
+    synchronized Entry put(URL url, File tmp, HttpURLConnection conn, String md5, String contentEncoding, String filename) {
+        String etag = conn.getHeaderField("ETag");
+        long lastModified = conn.getLastModified();
+        String cc = conn.getHeaderField("Cache-Control");
+        String key = getKey(url);
+        try {
+            if (etag == null && lastModified <= 0) {
+                log.debug("not caching (no validator): " + url);
+                return null;
+            }
+            if (cc != null && cc.contains("no-store")) {
+                log.debug("not caching (" + cc + "): " + url);
+                return null;
+            }
+            if (tmp.length() > maxBytes) {
+                log.debug("not caching (" + tmp.length() + " bytes > " + maxBytes + "): " + url);
+                return null;
+            }
+            if (md5 == null) {
+                md5 = computeMD5(tmp);
+            }
+
+            removeEntry(key);
+            Entry e = new Entry(key, url, new File(dir, key + DATA_EXT));
+            e.etag = etag;
+            e.lastModified = lastModified;
+            e.md5 = md5;
+            e.contentType = conn.getContentType();
+            e.contentEncoding = contentEncoding;
+            e.filename = filename;
+            e.contentLength = tmp.length();
+            if (!tmp.renameTo(e.file)) {
+                log.warn("failed to move " + tmp + " to " + e.file);
+                return null;
+            }
+            tmp = null;
+            writeMetadata(e);
+            entries.put(key, e);
+            totalBytes += e.contentLength;
+            log.debug("cached: " + e);
+            evict();
+            return e;
+        } catch (IOException ex) {
+            log.warn("failed to cache " + url + ": " + ex);
+            removeEntry(key);
+            deleteFiles(new Entry(key, url, new File(dir, key + DATA_EXT)));
+            return null;
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Entry e = iter.next().getValue();
+            iter.remove();
+            deleteFiles(e);
+            totalBytes -= e.contentLength;
+            log.debug("evicted: " + e);
+        }
+    }
+
+    private void removeEntry(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            deleteFiles(e);
+            totalBytes -= e.contentLength;
+        }
+    }
+
+    private void deleteFiles(Entry e) {
+        e.file.delete();
+        new File(dir, e.key + META_EXT).delete();
+    }
+
+    private void writeMetadata(Entry e) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("url", e.url.toExternalForm());
+        setProperty(p, "etag", e.etag);
+        p.setProperty("lastModified", Long.toString(e.lastModified));
+        setProperty(p, "md5", e.md5);
+        setProperty(p, "contentType", e.contentType);
+        setProperty(p, "contentEncoding", e.contentEncoding);
+        setProperty(p, "filename", e.filename);
+        p.setProperty("contentLength", Long.toString(e.contentLength));
+        OutputStream ostream = new FileOutputStream(new File(dir, e.key + META_EXT));
+        try {
+            p.store(ostream, null);
+        } finally {
+            ostream.close();
+        }
+    }
+
+    private static void setProperty(Properties p, String name, String value) {
+        if (value != null) {
+            p.setProperty(name, value);
+        }
+    }
+
+    // load existing entries in least recently used order
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Entry> found = new ArrayList<Entry>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) {
+                if (System.currentTimeMillis() - f.lastModified() > STALE_TMP_AGE) {
+                    log.debug("removing stale " + f);
+                    f.delete();
+                }
+            } else if (name.endsWith(META_EXT)) {
+                String key = name.substring(0, name.length() - META_EXT.length());
+                try {
+                    Entry e = readMetadata(key, f);
+                    if (e.file.exists() && e.file.length() == e.contentLength) {
+                        found.add(e);
+                        continue;
+                    }
+                } catch (Exception ex) {
+                    log.debug("invalid cache metadata " + f + ": " + ex);
+                }
+                f.delete();
+                new File(dir, key + DATA_EXT).delete();
+            }
+        }
+        Collections.sort(found, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                long l = lhs.file.lastModified();
+                long r = rhs.file.lastModified();
+                return (l < r ? -1 : (l == r ? 0 : 1));
+            }
+        });
+        for (Entry e : found) {
+            entries.put(e.key, e);
+            totalBytes += e.contentLength;
+        }
+        log.debug("loaded " + entries.size() + " entries (" + totalBytes + " bytes) from " + dir);
+        evict();
+    }
+
+    private Entry readMetadata(String key, File f) throws IOException {
+        Properties p = new Properties();
+        InputStream istream = new FileInputStream(f);
+        try {
+            p.load(istream);
+        } finally {
+            istream.close();
+        }
+        Entry e = new Entry(key, new URL(p.getProperty("url")), new File(dir, key + DATA_EXT));
+        e.etag = p.getProperty("etag");
+        e.lastModified = Long.parseLong(p.getProperty("lastModified"));
+        e.md5 = p.getProperty("md5");
+        e.contentType = p.getProperty("contentType");
+        e.contentEncoding = p.getProperty("contentEncoding");
+        e.filename = p.getProperty("filename");
+        e.contentLength = Long.parseLong(p.getProperty("contentLength"));
+        return e;
+    }
+
+    private static String getKey(URL url) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return HexUtil.toHex(md.digest(url.toExternalForm().getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("BUG: MD5 digest not available", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException("BUG: UTF-8 encoding not available", ex);
+        }
+    }
+
+    private static String computeMD5(File f) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buf = new byte[8192];
+            InputStream istream = new FileInputStream(f);
+            try {
+                int nb = istream.read(buf);
+                while (nb != -1) {
+                    md.update(buf, 0, nb);
+                    nb = istream.read(buf);
+                }
+            } finally {
+                istream.close();
+            }
+            return HexUtil.toHex(md.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("BUG: MD5 digest not available", ex);
+        }
+    }
+}
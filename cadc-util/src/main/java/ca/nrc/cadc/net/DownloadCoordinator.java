@@ -0,0 +1,438 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.auth.RunnableAction;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.security.AccessController;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.security.auth.Subject;
+import org.apache.log4j.Logger;
+
+/**
+ * Coordinator for concurrent downloads of the same content. Downloads created by
+ * a coordinator for the same URL and by the same caller (the principals of the 
+ * current Subject) while a transfer of that URL is in progress share a single network
+ * transfer: the content is spooled to a temporary file and every waiting download
+ * copies it to its own destination as it arrives. Only concurrent requests are 
+ * combined: a download started after the transfer completes makes a new request.
+ * 
+ * <p>A failure of the network transfer is reported by every download that was 
+ * waiting for it. A download that is terminated or fails to write to its own 
+ * destination does not affect the others; the network transfer is terminated when
+ * no downloads are waiting for it.
+ */
+public class DownloadCoordinator {
+    private static final Logger log = Logger.getLogger(DownloadCoordinator.class);
+
+    private static final DownloadCoordinator sharedCoordinator = new DownloadCoordinator();
+
+    private final File spoolDir;
+    private final Map<FlightKey,Flight> flights = new HashMap<FlightKey,Flight>();
+    private long transferCount = 0L;
+
+    /**
+     * Create a coordinator that spools content in the default temporary directory.
+     */
+    public DownloadCoordinator() {
+        this(null);
+    }
+
+    /**
+     * Create a coordinator.
+     * 
+     * @param spoolDir directory for spooled content; null for the default temporary directory
+     */
+    public DownloadCoordinator(File spoolDir) {
+        if (spoolDir != null && !spoolDir.isDirectory()) {
+            throw new IllegalArgumentException("spool directory not found: " + spoolDir);
+        }
+        this.spoolDir = spoolDir;
+    }
+
+    /**
+     * Get the coordinator shared by all users in this JVM.
+     * 
+     * @return the shared coordinator
+     */
+    public static DownloadCoordinator getSharedCoordinator() {
+        return sharedCoordinator;
+    }
+
+    /**
+     * Create a download to a file. The file is overwritten if it exists and removed 
+     * if the download fails.
+     * 
+     * @param src URL to download
+     * @param dest file to write
+     * @return the download, to be run by the caller
+     */
+    public CoordinatedDownload createDownload(URL src, File dest) {
+        return new CoordinatedDownload(this, src, dest, null, null);
+    }
+
+    /**
+     * Create a download to an OutputStream. The stream is not closed.
+     * 
+     * @param src URL to download
+     * @param dest stream to write
+     * @return the download, to be run by the caller
+     */
+    public CoordinatedDownload createDownload(URL src, OutputStream dest) {
+        return new CoordinatedDownload(this, src, null, dest, null);
+    }
+
+    /**
+     * Create a download that passes the content stream to the caller.
+     * 
+     * @param src URL to download
+     * @param dest wrapper that reads the content
+     * @return the download, to be run by the caller
+     */
+    public CoordinatedDownload createDownload(URL src, InputStreamWrapper dest) {
+        return new CoordinatedDownload(this, src, null, null, dest);
+    }
+
+    /**
+     * @return number of network transfers in progress
+     */
+    public synchronized int getActiveCount() {
+        return flights.size();
+    }
+
+    /**
+     * @return total number of network transfers started by this coordinator
+     */
+    public synchronized long getTransferCount() {
+        return transferCount;
+    }
+
+    /**
+     * Create the network transfer. Subclasses can override this method to configure
+     * the transfer (retry policy, bandwidth limiter, etc).
+     * 
+     * @param src URL to download
+     * @param dest wrapper that spools the content
+     * @return a new download
+     */
+    protected HttpDownload createTransfer(URL src, InputStreamWrapper dest) {
+        return new HttpDownload(src, dest);
+    }
+
+    // join the transfer of the URL for the current Subject or start a new one
+    Flight join(URL src, CoordinatedDownload waiter) throws IOException {
+        Subject subject = Subject.getSubject(AccessController.getContext());
+        FlightKey key = new FlightKey(src, subject);
+        Flight f;
+        synchronized (this) {
+            f = flights.get(key);
+            if (f != null) {
+                f.waiters++;
+                waiter.setShared(true);
+                log.debug("join: " + src + " waiters: " + f.waiters);
+                return f;
+            }
+            File spool = File.createTempFile("download", ".spool", spoolDir);
+            f = new Flight(key, subject, spool);
+            f.download = createTransfer(src, f);
+            f.waiters = 1;
+            flights.put(key, f);
+            transferCount++;
+        }
+        log.debug("start: " + src);
+        Thread t = new Thread(f, "DownloadCoordinator-" + src.getHost());
+        t.setDaemon(true);
+        t.start();
+        return f;
+    }
+
+    // a download is no longer waiting for the transfer
+    void leave(Flight f) {
+        boolean abort = false;
+        synchronized (this) {
+            synchronized (f) {
+                f.waiters--;
+                if (f.waiters == 0) {
+                    if (f.complete) {
+                        f.deleteSpool();
+                    } else {
+                        log.debug("abort: " + f.key.url);
+                        f.aborted = true;
+                        flights.remove(f.key);
+                        abort = true;
+                    }
+                }
+            }
+        }
+        if (abort) {
+            f.download.terminate();
+        }
+    }
+
+    private synchronized void remove(Flight f) {
+        if (flights.get(f.key) == f) {
+            flights.remove(f.key);
+        }
+    }
+
+    // transfers are shared by callers with the same principals
+    private static class FlightKey {
+        private final String url;
+        private final Set<Principal> principals = new HashSet<Principal>();
+
+        FlightKey(URL url, Subject subject) {
+            this.url = url.toExternalForm();
+            if (subject != null) {
+                principals.addAll(subject.getPrincipals());
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof FlightKey) {
+                FlightKey k = (FlightKey) obj;
+                return url.equals(k.url) && principals.equals(k.principals);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode();
+        }
+    }
+
+    // a network transfer and the spooled content
+    class Flight implements Runnable, InputStreamWrapper {
+        private final FlightKey key;
+        private final Subject subject;
+        private final File spool;
+        private HttpDownload download;
+        private int waiters = 0;
+        private long written = 0L;
+        private boolean complete = false;
+        private boolean aborted = false;
+        private Throwable failure;
+
+        Flight(FlightKey key, Subject subject, File spool) {
+            this.key = key;
+            this.subject = subject;
+            this.spool = spool;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (subject != null) {
+                    Subject.doAs(subject, new RunnableAction(download));
+                } else {
+                    download.run();
+                }
+            } catch (Throwable t) {
+                log.error("unexpected failure: " + key.url, t);
+                failure = t;
+            } finally {
+                remove(this);
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = download.getThrowable();
+                    }
+                    if (failure == null && aborted) {
+                        failure = new IOException("cancelled: " + key.url);
+                    }
+                    complete = true;
+                    if (waiters == 0) {
+                        deleteSpool();
+                    }
+                    notifyAll();
+                }
+                log.debug("complete: " + key.url + " " + written + " bytes " + failure);
+            }
+        }
+
+        // spool the content as it arrives
+        @Override
+        public void read(InputStream in) throws IOException {
+            byte[] buf = new byte[download.getBufferSize()];
+            OutputStream out = new FileOutputStream(spool);
+            try {
+                int n = in.read(buf);
+                while (n != -1) {
+                    out.write(buf, 0, n);
+                    synchronized (this) {
+                        if (aborted) {
+                            throw new IOException("cancelled: " + key.url);
+                        }
+                        written += n;
+                        notifyAll();
+                    }
+                    n = in.read(buf);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        // the completed transfer or null if still in progress
+        synchronized HttpDownload getCompletedTransfer() {
+            if (complete) {
+                return download;
+            }
+            return null;
+        }
+
+        synchronized Throwable getFailure() {
+            return failure;
+        }
+
+        synchronized void wakeUp() {
+            notifyAll();
+        }
+
+        // wait until content after pos is available: returns the number of bytes 
+        // available or -1 at the end of successful content
+        synchronized long await(long pos, CoordinatedDownload waiter) throws IOException {
+            while (pos >= written) {
+                if (!waiter.isRunning()) {
+                    throw new InterruptedIOException("cancelled: " + key.url);
+                }
+                if (complete) {
+                    if (failure != null) {
+                        throw new IOException("download failed: " + key.url, failure);
+                    }
+                    return -1L;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("interrupted: " + key.url);
+                }
+            }
+            return written - pos;
+        }
+
+        private void deleteSpool() {
+            if (!spool.delete()) {
+                log.debug("failed to delete spool file: " + spool);
+            }
+        }
+
+        // the content stream for one waiting download
+        InputStream openStream(final CoordinatedDownload waiter) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(spool, "r");
+            return new InputStream() {
+                private long pos = 0L;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    int n = read(b, 0, 1);
+                    if (n == -1) {
+                        return -1;
+                    }
+                    return b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    long avail = await(pos, waiter);
+                    if (avail == -1L) {
+                        return -1;
+                    }
+                    raf.seek(pos);
+                    int n = raf.read(b, off, (int) Math.min(len, avail));
+                    if (n > 0) {
+                        pos += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    raf.close();
+                }
+            };
+        }
+    }
+}
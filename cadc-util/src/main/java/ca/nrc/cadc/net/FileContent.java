@@ -69,28 +69,98 @@
 
 package ca.nrc.cadc.net;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 
 /**
- * Created by jeevesh on 2018-10-17.
+ * Content for an HTTP POST, either as a complete request body or as a part of a
+ * multipart request. Small content can be held in memory as a byte[]; large content
+ * can be backed by a file, an input stream, or a channel and is copied to the
+ * connection when the request is written. Stream and channel content can only be
+ * written once and is closed after use.
+ * 
+ * <p>Created by jeevesh on 2018-10-17.
  */
 public class FileContent {
 
     private byte[] content;
+    private File file;
+    private InputStream istream;
+    private ReadableByteChannel channel;
+    private long contentLength;
     private String contentType;
+    private boolean consumed = false;
 
     public FileContent(String content, String contentType, Charset cs) {
         this(content.getBytes(cs), contentType);
     }
     
     public FileContent(byte[] content, String contentType) {
+        this(contentType);
         if (content == null) {
             throw new IllegalArgumentException("content required");
         }
+        this.content = content;
+        this.contentLength = content.length;
+    }
+    
+    /**
+     * Content backed by a file. The file is opened each time the content is written
+     * so the request can be retried.
+     * 
+     * @param file the file to send
+     * @param contentType content type of the file
+     */
+    public FileContent(File file, String contentType) {
+        this(contentType);
+        if (file == null) {
+            throw new IllegalArgumentException("file required");
+        }
+        this.file = file;
+    }
+    
+    /**
+     * Content backed by an input stream.
+     * 
+     * @param istream stream to read the content from
+     * @param contentType content type of the stream
+     * @param contentLength number of bytes in the stream or -1 if unknown
+     */
+    public FileContent(InputStream istream, String contentType, long contentLength) {
+        this(contentType);
+        if (istream == null) {
+            throw new IllegalArgumentException("istream required");
+        }
+        this.istream = istream;
+        this.contentLength = contentLength;
+    }
+    
+    /**
+     * Content backed by a channel.
+     * 
+     * @param channel channel to read the content from
+     * @param contentType content type of the channel
+     * @param contentLength number of bytes in the channel or -1 if unknown
+     */
+    public FileContent(ReadableByteChannel channel, String contentType, long contentLength) {
+        this(contentType);
+        if (channel == null) {
+            throw new IllegalArgumentException("channel required");
+        }
+        this.channel = channel;
+        this.contentLength = contentLength;
+    }
+    
+    private FileContent(String contentType) {
         if (contentType == null) {
             throw new IllegalArgumentException("contentType required");
         }
-        this.content = content;
         this.contentType = contentType;
     }
 
@@ -98,7 +168,83 @@ public class FileContent {
         return contentType;
     }
     
+    /**
+     * @return the content if it is held in memory, otherwise null
+     */
     public byte[] getBytes() {
         return content;
     }
+    
+    /**
+     * @return number of bytes of content or -1 if unknown
+     */
+    public long getContentLength() {
+        if (file != null) {
+            return file.length();
+        }
+        return contentLength;
+    }
+    
+    File getFile() {
+        return file;
+    }
+    
+    /**
+     * @return true if the content can be written (again)
+     */
+    boolean isRepeatable() {
+        return !consumed;
+    }
+    
+    /**
+     * Copy the content to the output stream. Content that is not in memory is
+     * copied through the supplied buffer.
+     * 
+     * @param ostream destination
+     * @param buf buffer for copying
+     * @return number of bytes written
+     * @throws IOException failure to read the content or write to the stream
+     */
+    long writeTo(OutputStream ostream, byte[] buf)
+        throws IOException {
+        if (content != null) {
+            ostream.write(content);
+            return content.length;
+        }
+        if (consumed) {
+            throw new IllegalStateException("content stream has already been written");
+        }
+        long ret = 0;
+        if (channel != null) {
+            this.consumed = true;
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                while (channel.read(bb) != -1) {
+                    ostream.write(buf, 0, bb.position());
+                    ret += bb.position();
+                    bb.clear();
+                }
+            } finally {
+                channel.close();
+            }
+            return ret;
+        }
+        
+        InputStream in = istream;
+        if (file != null) {
+            in = new FileInputStream(file);
+        } else {
+            this.consumed = true;
+        }
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                ostream.write(buf, 0, n);
+                ret += n;
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
 }
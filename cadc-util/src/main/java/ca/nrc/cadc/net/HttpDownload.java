@@ -70,8 +70,10 @@
 
 package ca.nrc.cadc.net;
 
+import ca.nrc.cadc.io.ByteCountInputStream;
 import ca.nrc.cadc.net.event.TransferEvent;
 import ca.nrc.cadc.util.FileMetadata;
+import ca.nrc.cadc.util.HexUtil;
 import ca.nrc.cadc.util.StringUtil;
 
 import java.io.BufferedInputStream;
@@ -80,19 +82,40 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.AccessControlException;
+import java.security.AccessController;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.security.auth.Subject;
 
 import org.apache.log4j.Logger;
 
@@ -114,6 +137,11 @@ public class HttpDownload extends HttpTransfer {
     private static int GZIP = 1;
     private static int ZIP = 2;
 
+    /**
+     * Minimum size of a single segment in a segmented download (1MB).
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
     private boolean headOnly = false;
     private String logAction = "HTTP GET";
     private boolean decompress = false;
@@ -138,8 +166,29 @@ public class HttpDownload extends HttpTransfer {
     private long contentLength = -1;
     private long decompSize = -1;
     private long size = -1;
+    private boolean decodeContent = false; // response content-encoding is decoded while streaming
     private long lastModified = -1;
     
+    // segmented download
+    private int segments = 1;
+    private long segmentBytes;
+    private boolean streamingDecompress = false;
+    private boolean decompressed;
+    
+    // content cache
+    private DownloadCache cache;
+    private DownloadCache.Entry cacheEntry; // entry for the current request
+    private boolean fromCache;
+    
+    // mirror mode
+    private List<URL> mirrors;
+    private MirrorSelector mirrorSelector = MirrorSelector.getSharedSelector();
+    private long slowStart = 0L;
+    private boolean raceMirrors = false;
+    private boolean deferFailure = false; // another mirror will be tried after a failure
+    private boolean contentStarted; // content delivered to the destination by the current request
+    private Long firstByteLatency; // time to the first response byte of the current request
+    
     /**
      * Constructor with default user-agent string.
      * 
@@ -311,7 +360,151 @@ public class HttpDownload extends HttpTransfer {
     public void setOverwrite(boolean overwrite) {
         this.overwrite = overwrite;
     }
+
+    /**
+     * Enable streaming decompression. When decompression is enabled and the destination
+     * is a file, the content is decompressed while it is being read from the network so
+     * only the decompressed file is written to disk; the MD5 of the compressed bytes is
+     * computed (and checked against Content-MD5) in the same pass. A download that resumes 
+     * a partial (.part) file from a previous attempt uses the normal download-then-decompress
+     * path. Streaming mode takes precedence over segmented mode.
+     * 
+     * @param streamingDecompress true to decompress while downloading
+     */
+    public void setStreamingDecompress(boolean streamingDecompress) {
+        this.streamingDecompress = streamingDecompress;
+    }
+
+    public boolean getStreamingDecompress() {
+        return streamingDecompress;
+    }
     
+    /**
+     * Enable segmented download. When downloading to a file and the server reports
+     * the Content-Length, the content is split into (up to) the specified number of
+     * byte ranges which are fetched concurrently on separate connections and written
+     * at their offset in the preallocated destination file. Each segment is at least
+     * MIN_SEGMENT_SIZE bytes, so small files use fewer segments. If the server does not
+     * respond to a range request with 206 (Partial Content), the download falls back to
+     * a single stream. Segmented mode is not used when resuming a partial (.part) file 
+     * or when the destination is an OutputStream or InputStreamWrapper.
+     * 
+     * <p>Note: if the server provides a Content-MD5 header, the complete file is read
+     * back after the download in order to verify it.
+     * 
+     * @param segments maximum number of concurrent segments; 1 (the default) disables segmented mode
+     */
+    public void setSegments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be 1 or more: " + segments);
+        }
+        this.segments = segments;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Use a local content cache. If the URL is in the cache, the request is made 
+     * conditional (If-None-Match and/or If-Modified-Since) and a 304 (Not Modified)
+     * response is served from the cached copy to the destination. Complete 200 (OK)
+     * responses that include an ETag or Last-Modified header are added to the cache.
+     * Content is not added to the cache when resuming a partial (.part) file, with 
+     * streaming decompression, or when an InputStreamWrapper does not read to the end
+     * of the stream.
+     * 
+     * @param cache cache to use or null to disable
+     */
+    public void setCache(DownloadCache cache) {
+        this.cache = cache;
+    }
+
+    public DownloadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Download from one of several candidate URLs for the same content (e.g. the list
+     * from SchemeHandler.toURL). The candidates are tried in the order chosen by the 
+     * MirrorSelector (see setMirrorSelector) and the download fails over to the next
+     * candidate after a transient error, a slow start (see setSlowStart), or another
+     * IOException; when downloading to a file, the next mirror resumes from the partial
+     * file. Failures are only reported if all candidates fail. When all candidates fail
+     * with transient errors, the usual retry behaviour applies to the next round. The
+     * performance of each host is recorded in the selector. The URL used is available 
+     * from getURL() after the download.
+     * 
+     * @param mirrors candidate URLs, or null to download from the URL in the constructor
+     */
+    public void setMirrors(List<URL> mirrors) {
+        if (mirrors != null && mirrors.isEmpty()) {
+            throw new IllegalArgumentException("mirror list cannot be empty");
+        }
+        this.mirrors = mirrors;
+    }
+
+    public List<URL> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * Set the selector used to order mirrors. The default is the shared selector.
+     * 
+     * @param mirrorSelector the selector
+     */
+    public void setMirrorSelector(MirrorSelector mirrorSelector) {
+        if (mirrorSelector == null) {
+            throw new IllegalArgumentException("mirrorSelector cannot be null");
+        }
+        this.mirrorSelector = mirrorSelector;
+    }
+
+    public MirrorSelector getMirrorSelector() {
+        return mirrorSelector;
+    }
+
+    /**
+     * Set the time to wait for a mirror to connect and respond before failing over to
+     * the next one. This is used as the connect and read timeout for all but the last
+     * candidate, so a mirror that stalls for longer during the transfer is also 
+     * abandoned.
+     * 
+     * @param slowStart time in milliseconds, 0 (the default) to wait indefinitely
+     */
+    public void setSlowStart(long slowStart) {
+        if (slowStart < 0 || slowStart > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid slow start time: " + slowStart);
+        }
+        this.slowStart = slowStart;
+    }
+
+    public long getSlowStart() {
+        return slowStart;
+    }
+
+    /**
+     * Race the two best mirrors before downloading. The first byte of the content is
+     * requested from both concurrently; the download uses the mirror that responds
+     * first and the slower request is cancelled.
+     * 
+     * @param raceMirrors true to race mirrors
+     */
+    public void setRaceMirrors(boolean raceMirrors) {
+        this.raceMirrors = raceMirrors;
+    }
+
+    public boolean getRaceMirrors() {
+        return raceMirrors;
+    }
+
+    /**
+     * @return true if the most recent download was served from the cache
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
     /**
      * Get the size of the result file. This may be smaller than the content-length if the
      * file is being decompressed.
@@ -392,14 +585,15 @@ public class HttpDownload extends HttpTransfer {
         boolean done = false;
         while (!done) {
             try {
-                runX();
+                if (mirrors != null && mirrors.size() > 1) {
+                    runMirrors();
+                } else {
+                    runX();
+                }
                 done = true;
             } catch (TransientException ex) {
                 try {
-                    long dt = 1000L * ex.getRetryDelay(); // to milliseconds
-                    log.debug("retry " + numRetries + " sleeping  for " + dt);
-                    fireEvent(TransferEvent.RETRYING);
-                    Thread.sleep(dt);
+                    done = !waitForRetry(ex);
                 } catch (InterruptedException iex) {
                     log.debug("retry interrupted");
                     this.go = false;
@@ -409,6 +603,137 @@ public class HttpDownload extends HttpTransfer {
         }
     }
 
+    // one round of attempts through the mirrors: throws the last TransientException
+    // if all mirrors failed with transient errors; only the failure of the last mirror 
+    // counts as a retry (see retry)
+    private void runMirrors()
+        throws TransientException {
+        List<URL> candidates = mirrorSelector.order(mirrors);
+        if (raceMirrors && go) {
+            // by index: URL.equals resolves the host and treats virtual hosts as equal
+            if (race(candidates.get(0), candidates.get(1)) == 1) {
+                candidates.add(0, candidates.remove(1));
+            }
+        }
+        
+        TransientException lastTransient = null;
+        try {
+            for (int i = 0; i < candidates.size(); i++) {
+                URL url = candidates.get(i);
+                String host = url.getHost();
+                this.remoteURL = url;
+                this.failure = null;
+                this.firstByteLatency = null;
+                this.deferFailure = i < candidates.size() - 1;
+                log.debug("mirror " + (i + 1) + "/" + candidates.size() + ": " + url);
+                long start = System.currentTimeMillis();
+                try {
+                    runX();
+                } catch (TransientException ex) {
+                    log.debug("mirror failed: " + url + " " + ex);
+                    mirrorSelector.recordFailure(host);
+                    lastTransient = ex;
+                    continue;
+                }
+                if (!go) {
+                    return; // cancelled
+                }
+                if (failure == null) {
+                    if (firstByteLatency != null) {
+                        mirrorSelector.recordLatency(host, firstByteLatency);
+                    }
+                    mirrorSelector.recordSuccess(host, bytesTransferred, System.currentTimeMillis() - start);
+                    return;
+                }
+                mirrorSelector.recordFailure(host);
+                boolean streaming = destStream != null || wrapper != null;
+                if (!(failure instanceof IOException) || (streaming && contentStarted)) {
+                    // not a mirror problem or cannot restart the output
+                    fireEvent(failure);
+                    return;
+                }
+                log.debug("mirror failed: " + url + " " + failure);
+                lastTransient = null;
+            }
+        } finally {
+            this.deferFailure = false;
+        }
+        if (lastTransient != null) {
+            throw lastTransient;
+        }
+    }
+
+    @Override
+    protected void retry(String msg, int retryAfter)
+        throws TransientException {
+        if (deferFailure) {
+            // fail over to the next mirror: numRetries and the retry budget are only 
+            // charged when the whole round fails
+            log.debug("mirror failed, trying next mirror: " + msg);
+            throw TransientException.withDelayMillis(msg, 0L);
+        }
+        super.retry(msg, retryAfter);
+    }
+
+    // request the first byte from two mirrors: returns the index (0 or 1) of the first 
+    // to respond or -1 if neither did
+    private int race(URL u1, URL u2) {
+        final Subject subject = Subject.getSubject(AccessController.getContext());
+        final List<HttpURLConnection> conns = new ArrayList<HttpURLConnection>();
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        final long start = System.currentTimeMillis();
+        try {
+            final URL[] urls = new URL[] { u1, u2 };
+            CompletionService<Integer> cs = new ExecutorCompletionService<Integer>(exec);
+            for (int n = 0; n < urls.length; n++) {
+                final Integer index = n;
+                final HttpURLConnection conn = openRangeConnection(urls[n], "bytes=0-0");
+                conns.add(conn);
+                cs.submit(new SubjectCallable<Integer>(subject, new PrivilegedExceptionAction<Integer>() {
+                    @Override
+                    public Integer run() throws Exception {
+                        int code = conn.getResponseCode();
+                        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                            throw new IOException("(" + code + ") " + conn.getResponseMessage());
+                        }
+                        conn.getInputStream().read();
+                        return index;
+                    }
+                }));
+            }
+            for (int i = 0; i < 2; i++) {
+                Future<Integer> f = cs.take();
+                try {
+                    int ret = f.get();
+                    long dt = System.currentTimeMillis() - start;
+                    log.debug("race winner: " + urls[ret] + " " + dt + "ms");
+                    mirrorSelector.recordLatency(urls[ret].getHost(), dt);
+                    URL loser = urls[1 - ret];
+                    if (i == 0) {
+                        // still waiting: at least as slow as the winner
+                        mirrorSelector.recordLatency(loser.getHost(), dt);
+                    }
+                    return ret;
+                } catch (ExecutionException ex) {
+                    log.debug("race failure: " + ex.getCause());
+                }
+            }
+            return -1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (IOException ex) {
+            log.debug("race setup failed: " + ex);
+            return -1;
+        } finally {
+            // cancel the slower request
+            for (HttpURLConnection c : conns) {
+                c.disconnect();
+            }
+            exec.shutdownNow();
+        }
+    }
+
     private void runX()
         throws TransientException {
         log.debug(this.toString());
@@ -447,7 +772,7 @@ public class HttpDownload extends HttpTransfer {
                 }
             }
             
-            if (decompress && decompressor != NONE) {
+            if (decompress && decompressor != NONE && !decompressed) {
                 fireEvent(decompFile, TransferEvent.DECOMPRESSING);
                 doDecompress();
             }
@@ -489,6 +814,8 @@ public class HttpDownload extends HttpTransfer {
             if (!go) {
                 log.debug("cancelled");
                 fireEvent(TransferEvent.CANCELLED);
+            } else if (failure != null && deferFailure) {
+                log.debug("failed (trying next mirror): " + failure);
             } else if (failure != null) {
                 log.debug("failed: " + failure);
                 fireEvent(failure);
@@ -586,6 +913,7 @@ public class HttpDownload extends HttpTransfer {
         captureResponseHeaders(conn);
         
         this.contentEncoding = conn.getHeaderField("Content-Encoding");
+        this.decodeContent = isDecodable(contentEncoding);
         this.contentType = conn.getContentType();
         this.contentMD5 = conn.getHeaderField("Content-MD5");
 
@@ -613,6 +941,19 @@ public class HttpDownload extends HttpTransfer {
         
         this.serverFilename = getServerFilename(conn);
         
+        if (cacheEntry != null && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            // response describes the cached content
+            this.contentEncoding = cacheEntry.getContentEncoding();
+            this.decodeContent = false;
+            this.contentType = cacheEntry.getContentType();
+            this.contentMD5 = cacheEntry.getContentMD5();
+            this.contentLength = cacheEntry.getContentLength();
+            this.lastModified = cacheEntry.getLastModified();
+            if (cacheEntry.getFilename() != null) {
+                this.serverFilename = cacheEntry.getFilename();
+            }
+        }
+        
         if (destStream == null && wrapper == null) {
             // download to file: extra metadata
             String origFilename = null;
@@ -627,8 +968,8 @@ public class HttpDownload extends HttpTransfer {
             }
             origFilename = origFile.getName();
 
-            // encoding mucks with filename
-            if ("gzip".equals(contentEncoding) || origFilename.endsWith(".gz")) {
+            // encoding mucks with filename unless it is decoded in transit
+            if ((!decodeContent && "gzip".equals(contentEncoding)) || origFilename.endsWith(".gz")) {
                 if (origFilename.endsWith(".gz")) {
                     this.decompFile = new File(destDir, origFilename.substring(0, origFilename.length() - 3));
                 } else {
@@ -694,7 +1035,7 @@ public class HttpDownload extends HttpTransfer {
     
     private int checkStatusCode(HttpURLConnection conn)
         throws IOException, TransientException {
-        int code = conn.getResponseCode();
+        int code = readResponseCode(conn);
         this.responseCode = code;
         log.debug(logAction + " status: " + code + " for " + remoteURL);
 
@@ -704,10 +1045,12 @@ public class HttpDownload extends HttpTransfer {
             || code == HttpURLConnection.HTTP_MOVED_PERM) 
             && location != null) {
             this.redirectURL = new URL(location);
+        } else if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null) {
+            log.debug("not modified: " + cacheEntry);
         } else if (code > 303) {
             // 300 has body to be read, 301-303 handled above
             String msg = "(" + code + ") " + conn.getResponseMessage();
-            if (destStream != null) {
+            if (destStream != null && !deferFailure) {
                 NetUtil.getErrorBody(conn, destStream);
             } else {
                 String body = NetUtil.getErrorBody(conn);
@@ -743,7 +1086,14 @@ public class HttpDownload extends HttpTransfer {
         
         InputStream istream = null;
         OutputStream ostream = null;
+        File cacheFile = null;
+        OutputStream cacheStream = null;
+        this.bytesTransferred = 0L;
+        this.decompressed = false;
+        this.contentStarted = false;
+        this.firstByteLatency = null;
         try {
+            checkCircuitBreaker();
             // open connection
             HttpURLConnection conn = (HttpURLConnection) remoteURL.openConnection();
             log.debug("HttpURLConnection type: " + conn.getClass().getName() + " for GET " + remoteURL);
@@ -757,6 +1107,21 @@ public class HttpDownload extends HttpTransfer {
             conn.setRequestProperty("Accept", "*/*");
             conn.setRequestProperty("User-Agent", userAgent);
             setRequestHeaders(conn);
+            setAcceptEncodingHeader(conn);
+            if (deferFailure && slowStart > 0) {
+                // fail over to the next mirror
+                conn.setConnectTimeout((int) slowStart);
+                conn.setReadTimeout((int) slowStart);
+            }
+
+            this.cacheEntry = null;
+            this.fromCache = false;
+            if (cache != null && !headOnly) {
+                this.cacheEntry = cache.get(remoteURL);
+                if (cacheEntry != null) {
+                    DownloadCache.setConditionalHeaders(conn, cacheEntry);
+                }
+            }
 
             if (headOnly) {
                 conn.setRequestMethod("HEAD");
@@ -767,8 +1132,13 @@ public class HttpDownload extends HttpTransfer {
             requestStartTime = System.currentTimeMillis();
             
             processHeader(conn);
+            // status line received; responseLatency keeps moving with the IO loops
+            this.firstByteLatency = System.currentTimeMillis() - requestStartTime;
             int code = checkStatusCode(conn);
 
+            if (headOnly) {
+                this.responseLatency = System.currentTimeMillis() - requestStartTime;
+            }
             if (headOnly || (!followRedirects && redirectURL != null)) {
                 return;
             }
@@ -785,10 +1155,18 @@ public class HttpDownload extends HttpTransfer {
                 return;
             }
 
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                serveFromCache();
+                return;
+            }
+
             // evaluate possible resume?
             File tmp = origFile;
             
             this.size = contentLength;
+            if (decodeContent) {
+                this.size = -1; // Content-Length is the encoded size
+            }
             String pkey = null;
             String pvalue = null;
             boolean append = false;
@@ -797,30 +1175,43 @@ public class HttpDownload extends HttpTransfer {
                 // downloading to file
                 // temporary destination
                 origFile = new File(origFile.getAbsolutePath() + ".part");
-                if (origFile.exists() && origFile.length() < contentLength) {
+                if (!decodeContent && origFile.exists() && origFile.length() < contentLength) {
                     // partial file from previous download
                     pkey = "Range";
                     pvalue = "bytes=" + origFile.length() + "-"; // open ended
                 }
             }
 
-            if (pkey != null) {
-                // open 2nd connection with a range request
-                HttpURLConnection rconn = (HttpURLConnection) remoteURL.openConnection();
-                log.debug("HttpURLConnection type: " + conn.getClass().getName() + " for GET " + remoteURL);
-                if (rconn instanceof HttpsURLConnection) {
-                    HttpsURLConnection sslConn = (HttpsURLConnection) rconn;
-                    initHTTPS(sslConn);
+            if (pkey == null && isStreamingDecompress()) {
+                if (origFile.exists()) {
+                    log.debug("removing stale " + origFile);
+                    origFile.delete();
+                }
+                origFile = tmp;
+                doStreamingDecompress(conn);
+                return;
+            }
+
+            if (pkey == null && isSegmentable()) {
+                if (doSegmentedGet(conn)) {
+                    log.debug("download completed");
+                    log.debug("renaming " + origFile + " to " + tmp);
+                    origFile.renameTo(tmp);
+                    origFile = tmp;
+                    destFile = tmp;
+                    if (cache != null && code == HttpURLConnection.HTTP_OK) {
+                        addToCache(conn, tmp, contentMD5);
+                    }
+                    return;
                 }
+                // fall back to single stream with the original connection
+            }
 
-                setRequestSSOCookie(rconn);
-                rconn.setInstanceFollowRedirects(true);
-                rconn.setRequestProperty("Accept", "*/*");
-                rconn.setRequestProperty("User-Agent", userAgent);
-                setRequestHeaders(conn);
+            if (pkey != null) {
+                // open 2nd connection with a range request
                 log.debug("trying: " + pkey + " = " + pvalue);
-                rconn.setRequestProperty(pkey, pvalue);
-                rconn.setRequestMethod("GET");
+                // If-Range: the remainder must come from the same version of the content
+                HttpURLConnection rconn = openRangeConnection(remoteURL, pvalue, getRangeValidator(conn));
                 int rcode = rconn.getResponseCode();
                 log.debug(logAction + " status: " + rcode + " for range request to " + remoteURL);
                 if (pkey != null && code == 416) {
@@ -872,15 +1263,27 @@ public class HttpDownload extends HttpTransfer {
 
             fireEvent(origFile, TransferEvent.TRANSFERING);
 
-            istream = conn.getInputStream();
+            this.contentStarted = true;
+            istream = decodeContent(conn, conn.getInputStream());
             if (!(istream instanceof BufferedInputStream)) {
                 log.debug("using BufferedInputStream");
                 istream = new BufferedInputStream(istream, bufferSize);
             }
 
+            // copy of the content for the cache: file destination is copied after download
+            boolean cacheable = cache != null && code == HttpURLConnection.HTTP_OK && !append;
+            if (cacheable && (destStream != null || wrapper != null)) {
+                cacheFile = cache.createTempFile();
+                cacheStream = new FileOutputStream(cacheFile);
+            }
+
+            FileChannel fc = null;
             if (this.destStream != null) {
                 log.debug("output: supplied OutputStream");
                 ostream = destStream;
+                if (cacheStream != null) {
+                    ostream = new TeeOutputStream(ostream, cacheStream);
+                }
                 log.debug("using BufferedOutputStream");
                 ostream = new BufferedOutputStream(ostream, bufferSize);
             } else if (wrapper == null) {
@@ -892,36 +1295,40 @@ public class HttpDownload extends HttpTransfer {
                 }
 
                 log.debug("output: " + origFile + " append: " + append);
-                ostream = new FileOutputStream(origFile, append);
-                log.debug("using BufferedOutputStream");
-                ostream = new BufferedOutputStream(ostream, bufferSize);
+                FileOutputStream fos = new FileOutputStream(origFile, append);
+                ostream = fos;
+                if (userNio) {
+                    log.debug("using FileChannel");
+                    fc = fos.getChannel();
+                } else {
+                    log.debug("using BufferedOutputStream");
+                    ostream = new BufferedOutputStream(ostream, bufferSize);
+                }
             }
 
+            String md5 = null;
+            TeeInputStream tee = null;
             if (wrapper != null) {
-                wrapper.read(istream);
+                if (cacheStream != null) {
+                    tee = new TeeInputStream(istream, cacheStream);
+                    istream = tee;
+                }
+                ByteCountInputStream bcis = new ByteCountInputStream(istream);
+                wrapper.read(bcis);
+                this.bytesTransferred = bcis.getByteCount();
             } else {
-                if (userNio) {
-                    nioLoop(istream, ostream, 2 * bufferSize, startingPos);
+                if (fc != null) {
+                    md5 = nioLoop(istream, fc, 2 * bufferSize, startingPos);
+                } else if (userNio) {
+                    md5 = nioLoop(istream, Channels.newChannel(ostream), 2 * bufferSize, startingPos);
                 } else {
-                    String md5 = ioLoop(istream, ostream, 2 * bufferSize, startingPos);
-                    if (contentMD5 != null && md5 != null) {
-                        if (!md5.equals(contentMD5)) {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append("MD5 mismatch: ");
-                            sb.append(contentMD5).append(" (header) != ").append(md5).append(" (bytes)");
-                            if (remoteURL != null) {
-                                sb.append(" url: ").append(remoteURL);
-                            }
-                            
-                            if (destFile != null) {
-                                sb.append(" destFile: ").append(destFile.getAbsolutePath());
-                            }
-                            
-                            // TODO: throw an Exception??
-                            log.warn(sb.toString());
-                        }
-                    }
+                    md5 = ioLoop(istream, ostream, 2 * bufferSize, startingPos);
+                }
+                this.bytesTransferred = loopBytes;
+                if (decodeContent) {
+                    this.size = bytesTransferred;
                 }
+                checkContentMD5(md5);
             }
 
             if (ostream != null) {
@@ -941,8 +1348,32 @@ public class HttpDownload extends HttpTransfer {
                 origFile.renameTo(tmp);
                 origFile = tmp;
                 destFile = tmp;
+                if (cacheable) {
+                    addToCache(conn, tmp, md5);
+                }
+            } else if (cacheStream != null) {
+                cacheStream.close();
+                cacheStream = null;
+                if (tee == null || tee.isComplete()) {
+                    cache.put(remoteURL, cacheFile, conn, md5, getStoredEncoding(), serverFilename);
+                    cacheFile = null; // moved into cache or deleted
+                } else {
+                    log.debug("not caching: InputStreamWrapper did not read to end of stream");
+                }
             }
         } finally {
+            recordUncheckedFailure();
+            if (cacheStream != null) {
+                try { 
+                    cacheStream.close(); 
+                } catch (Exception ignore) { 
+                    // do nothing
+                }
+            }
+            if (cacheFile != null) {
+                cacheFile.delete();
+            }
+
             if (istream != null) {
                 log.debug("closing InputStream");
                 try { 
@@ -963,6 +1394,703 @@ public class HttpDownload extends HttpTransfer {
         }
     }
 
+    // encoding of the bytes written to the destination
+    private String getStoredEncoding() {
+        if (decodeContent) {
+            return null;
+        }
+        return contentEncoding;
+    }
+
+    // copy a downloaded file into the cache
+    private void addToCache(HttpURLConnection conn, File f, String md5)
+        throws IOException, InterruptedException {
+        File tmp = cache.createTempFile();
+        InputStream istream = new FileInputStream(f);
+        try {
+            OutputStream ostream = new FileOutputStream(tmp);
+            try {
+                copyLocal(istream, ostream, false);
+            } finally {
+                ostream.close();
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        } finally {
+            istream.close();
+        }
+        cache.put(remoteURL, tmp, conn, md5, getStoredEncoding(), serverFilename);
+    }
+
+    // deliver the cached content to the destination after a 304 response
+    private void serveFromCache()
+        throws IOException, InterruptedException {
+        log.debug("serving from cache: " + cacheEntry);
+        this.fromCache = true;
+        this.contentStarted = true;
+        this.size = contentLength;
+        fireEvent(TransferEvent.CONNECTED);
+        fireEvent(origFile, TransferEvent.TRANSFERING);
+        
+        InputStream istream = new FileInputStream(cacheEntry.getFile());
+        try {
+            if (wrapper != null) {
+                ByteCountInputStream bcis = new ByteCountInputStream(istream);
+                wrapper.read(bcis);
+                this.bytesTransferred = bcis.getByteCount();
+            } else if (destStream != null) {
+                OutputStream ostream = new BufferedOutputStream(destStream, bufferSize);
+                try {
+                    this.bytesTransferred = copyLocal(istream, ostream, true);
+                } finally {
+                    ostream.close();
+                }
+            } else {
+                File part = new File(origFile.getAbsolutePath() + ".part");
+                File parent = part.getParentFile();
+                parent.mkdirs();
+                if (!parent.exists()) {
+                    throw new IOException("failed to create one or more parent dir(s):" + parent);
+                }
+                OutputStream ostream = new FileOutputStream(part);
+                try {
+                    this.bytesTransferred = copyLocal(istream, ostream, true);
+                } finally {
+                    ostream.close();
+                }
+                log.debug("renaming " + part + " to " + origFile);
+                part.renameTo(origFile);
+                destFile = origFile;
+            }
+        } finally {
+            istream.close();
+        }
+    }
+
+    // copy local content: not subject to the bandwidth limit
+    private long copyLocal(InputStream istream, OutputStream ostream, boolean progress)
+        throws IOException, InterruptedException {
+        byte[] buf = new byte[2 * bufferSize];
+        long tot = 0L;
+        int nb = istream.read(buf);
+        while (nb != -1) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            ostream.write(buf, 0, nb);
+            tot += nb;
+            if (progress && progressListener != null) {
+                progressListener.update(nb, tot);
+            }
+            nb = istream.read(buf);
+        }
+        return tot;
+    }
+
+    private void checkContentMD5(String md5) {
+        String msg = getMD5Mismatch(md5, destFile);
+        if (msg != null) {
+            // TODO: throw an Exception??
+            log.warn(msg);
+        }
+    }
+
+    // compare the MD5 of the received bytes with the Content-MD5 header: returns a 
+    // description of the mismatch or null if they match or either is unknown
+    private String getMD5Mismatch(String md5, File f) {
+        if (decodeContent) {
+            // Content-MD5 describes the encoded bytes
+            md5 = getWireMD5();
+        }
+        if (contentMD5 == null || md5 == null || md5.equals(contentMD5)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("MD5 mismatch: ");
+        sb.append(contentMD5).append(" (header) != ").append(md5).append(" (bytes)");
+        if (remoteURL != null) {
+            sb.append(" url: ").append(remoteURL);
+        }
+
+        if (f != null) {
+            sb.append(" destFile: ").append(f.getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    // streaming decompression is possible when downloading and decompressing to a file
+    private boolean isStreamingDecompress() {
+        return streamingDecompress && decompress && decompressor != NONE
+            && destStream == null && wrapper == null
+            && decompFile != null && decompFile.equals(destFile);
+    }
+
+    /**
+     * Decompress the content while reading it from the connection and write only the
+     * decompressed file. The output is written to a temporary (.part) file which is 
+     * renamed when complete and removed on failure: a partial decompressed file cannot 
+     * be resumed with a byte range request.
+     */
+    private void doStreamingDecompress(HttpURLConnection conn)
+        throws IOException, InterruptedException {
+        fireEvent(TransferEvent.CONNECTED);
+        findEventID(conn);
+        fireEvent(decompFile, TransferEvent.TRANSFERING);
+
+        File parent = decompFile.getParentFile();
+        parent.mkdirs();
+        if (!parent.exists()) {
+            throw new IOException("failed to create one or more parent dir(s):" + parent);
+        }
+
+        MessageDigest md5 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException oops) {
+            log.warn("failed to create MessageDigest(MD5): " + oops);
+        }
+
+        File partFile = new File(decompFile.getAbsolutePath() + ".part");
+        InputStream istream = null;
+        OutputStream ostream = null;
+        boolean complete = false;
+        try {
+            istream = decodeContent(conn, conn.getInputStream());
+            ByteCountInputStream bcis = new ByteCountInputStream(new BufferedInputStream(istream, bufferSize));
+            InputStream compressed = bcis;
+            if (md5 != null) {
+                compressed = new DigestInputStream(bcis, md5);
+            }
+            InputStream decomp = openDecompressor(compressed);
+
+            this.size = decompSize;
+            log.debug("output: " + partFile + " (streaming decompress)");
+            FileOutputStream fos = new FileOutputStream(partFile);
+            ostream = fos;
+            if (userNio) {
+                nioLoop(decomp, fos.getChannel(), 2 * bufferSize, 0);
+            } else {
+                ostream = new BufferedOutputStream(fos, bufferSize);
+                ioLoop(decomp, ostream, 2 * bufferSize, 0);
+            }
+            ostream.flush();
+
+            // consume any trailing compressed bytes (e.g. zip central directory)
+            // so the digest covers the complete response
+            byte[] buf = new byte[8192];
+            while (compressed.read(buf) != -1) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            this.bytesTransferred = bcis.getByteCount();
+            if (md5 != null) {
+                // the incomplete output is removed below
+                String msg = getMD5Mismatch(HexUtil.toHex(md5.digest()), decompFile);
+                if (msg != null) {
+                    throw new IncorrectContentChecksumException(msg);
+                }
+            }
+
+            ostream.close();
+            ostream = null;
+            if (decompFile.exists()) {
+                decompFile.delete(); // overwrite already approved by doCheckDestination
+            }
+            log.debug("renaming " + partFile + " to " + decompFile);
+            if (!partFile.renameTo(decompFile)) {
+                throw new IOException("failed to rename " + partFile + " to " + decompFile);
+            }
+            this.destFile = decompFile;
+            this.removeFile = null;
+            this.decompressed = true;
+            complete = true;
+            log.debug("download and decompress completed");
+        } finally {
+            if (istream != null) {
+                try { 
+                    istream.close(); 
+                } catch (Exception ignore) { 
+                    // do nothing
+                }
+            }
+
+            if (ostream != null) {
+                try { 
+                    ostream.close(); 
+                } catch (Exception ignore) { 
+                    // do nothing
+                }
+            }
+            
+            if (!complete) {
+                partFile.delete();
+            }
+        }
+    }
+
+    private InputStream openDecompressor(InputStream istream)
+        throws IOException {
+        if (decompressor == GZIP) {
+            return new GZIPInputStream(istream, bufferSize);
+        }
+        ZipInputStream zis = new ZipInputStream(istream);
+        ZipEntry ze = zis.getNextEntry(); // position at the first entry
+        log.debug("zip entry: " + (ze == null ? null : ze.getName()));
+        return zis;
+    }
+
+    // segmented download is possible when writing to a new file of known size
+    private boolean isSegmentable() {
+        return segments > 1
+            && destStream == null && wrapper == null && !decodeContent
+            && contentLength >= 2 * MIN_SEGMENT_SIZE;
+    }
+
+    // open a connection with a range request: same setup as the primary GET
+    private HttpURLConnection openRangeConnection(URL url, String range)
+        throws IOException {
+        return openRangeConnection(url, range, null);
+    }
+
+    // ifRange: entity validator so the range is only returned if the content is unchanged
+    private HttpURLConnection openRangeConnection(URL url, String range, String ifRange)
+        throws IOException {
+        HttpURLConnection rconn = (HttpURLConnection) url.openConnection();
+        log.debug("HttpURLConnection type: " + rconn.getClass().getName() + " for GET " + url + " Range: " + range);
+        if (rconn instanceof HttpsURLConnection) {
+            HttpsURLConnection sslConn = (HttpsURLConnection) rconn;
+            initHTTPS(sslConn);
+        }
+
+        setRequestSSOCookie(rconn);
+        rconn.setInstanceFollowRedirects(true);
+        rconn.setRequestProperty("Accept", "*/*");
+        rconn.setRequestProperty("User-Agent", userAgent);
+        setRequestHeaders(rconn);
+        rconn.setRequestProperty("Range", range);
+        if (ifRange != null) {
+            rconn.setRequestProperty("If-Range", ifRange);
+        }
+        rconn.setRequestMethod("GET");
+        return rconn;
+    }
+
+    /**
+     * Check that the Content-Range of a 206 response is the requested range of 
+     * content with the expected total length.
+     * 
+     * @throws IOException if the Content-Range is missing or does not match
+     */
+    static void checkContentRange(HttpURLConnection conn, long start, long end, long total)
+        throws IOException {
+        String cr = conn.getHeaderField("Content-Range");
+        String expected = "bytes " + start + "-" + end + "/" + total;
+        if (cr == null) {
+            throw new IOException("missing Content-Range: expected " + expected);
+        }
+        boolean ok = false;
+        String s = cr.trim();
+        if (s.startsWith("bytes ")) {
+            s = s.substring("bytes ".length()).trim();
+            int i = s.indexOf('-');
+            int j = s.indexOf('/');
+            if (i > 0 && j > i) {
+                try {
+                    long rs = Long.parseLong(s.substring(0, i).trim());
+                    long re = Long.parseLong(s.substring(i + 1, j).trim());
+                    String rt = s.substring(j + 1).trim();
+                    ok = rs == start && re == end && ("*".equals(rt) || Long.parseLong(rt) == total);
+                } catch (NumberFormatException ex) {
+                    log.debug("invalid Content-Range: " + cr);
+                }
+            }
+        }
+        if (!ok) {
+            throw new IOException("Content-Range mismatch: " + cr + " expected " + expected);
+        }
+    }
+
+    /**
+     * Download the content as concurrent byte ranges into origFile (the .part file).
+     * The first range request is used to probe for range support: if the server does
+     * not respond with 206 the probe is discarded and false is returned so the caller
+     * can proceed with the original connection.
+     * 
+     * @param conn the original (unread) connection
+     * @return true if the content was downloaded, false if segmented mode is not supported
+     */
+    private boolean doSegmentedGet(HttpURLConnection conn)
+        throws IOException, InterruptedException, TransientException {
+        int num = (int) Math.min(segments, contentLength / MIN_SEGMENT_SIZE);
+        long segSize = contentLength / num;
+        if (contentLength % num != 0) {
+            segSize++;
+        }
+        log.debug("segmented download: " + num + " segments of " + segSize + " bytes");
+
+        // use the URL after (automatic) redirects so segments do not each get redirected
+        final URL segURL = conn.getURL();
+        // all ranges must come from the content described by the original response
+        String validator = getRangeValidator(conn);
+        HttpURLConnection probe = openRangeConnection(segURL, "bytes=0-" + (segSize - 1), validator);
+        int pcode = probe.getResponseCode();
+        log.debug(logAction + " status: " + pcode + " for range request to " + segURL);
+        if (pcode != HttpURLConnection.HTTP_PARTIAL) {
+            log.debug("cannot use segments: closing range connection");
+            try {
+                probe.disconnect();
+            } catch (Exception ignore) {
+                // do nothing
+            }
+            return false;
+        }
+        try {
+            checkContentRange(probe, 0L, Math.min(segSize, contentLength) - 1, contentLength);
+        } catch (IOException ex) {
+            probe.disconnect();
+            throw ex;
+        }
+        String probeValidator = getRangeValidator(probe);
+        if (probeValidator != null) {
+            validator = probeValidator;
+        }
+        log.debug("segment validator: " + validator);
+
+        log.debug("can use segments: closing first connection");
+        try {
+            conn.disconnect();
+        } catch (Exception ignore) {
+            // do nothing
+        }
+
+        fireEvent(TransferEvent.CONNECTED);
+        findEventID(probe);
+        fireEvent(origFile, TransferEvent.TRANSFERING);
+
+        File parent = origFile.getParentFile();
+        parent.mkdirs();
+        if (!parent.exists()) {
+            throw new IOException("failed to create one or more parent dir(s):" + parent);
+        }
+
+        log.debug("output: " + origFile + " preallocate: " + contentLength);
+        this.segmentBytes = 0L;
+        if (progressListener != null) {
+            progressListener.update(0, 0);
+        }
+
+        // worker threads need the current Subject for SSL and cookie setup
+        final Subject subject = Subject.getSubject(AccessController.getContext());
+        RandomAccessFile raf = null;
+        ExecutorService exec = null;
+        boolean success = false;
+        try {
+            raf = new RandomAccessFile(origFile, "rw");
+            raf.setLength(contentLength);
+            FileChannel fc = raf.getChannel();
+
+            exec = Executors.newFixedThreadPool(num);
+            List<Future<Long>> results = new ArrayList<Future<Long>>(num);
+            for (int i = 0; i < num; i++) {
+                long start = i * segSize;
+                long end = Math.min(start + segSize, contentLength) - 1;
+                HttpURLConnection sc = null;
+                if (i == 0) {
+                    sc = probe;
+                }
+                Segment seg = new Segment(i, segURL, sc, start, end, validator, fc);
+                results.add(exec.submit(new SubjectCallable<Long>(subject, seg)));
+            }
+
+            for (Future<Long> f : results) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof TransientException) {
+                        throw (TransientException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException("segment failed: " + cause, cause);
+                }
+            }
+            fc.force(false);
+            this.bytesTransferred = segmentBytes;
+            success = true;
+        } finally {
+            if (exec != null) {
+                exec.shutdownNow(); // interrupt remaining segments after failure or cancel
+            }
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception ignore) {
+                    // do nothing
+                }
+            }
+            if (!success) {
+                // preallocated file with holes cannot be resumed
+                log.debug("segmented download failed: removing " + origFile);
+                origFile.delete();
+            }
+        }
+
+        if (segmentBytes != contentLength) {
+            throw new IOException("segmented download: expected " + contentLength + " bytes, received " + segmentBytes);
+        }
+
+        if (contentMD5 != null) {
+            String msg = getMD5Mismatch(computeMD5(origFile), origFile);
+            if (msg != null) {
+                log.debug("segmented download failed: removing " + origFile);
+                origFile.delete();
+                throw new IncorrectContentChecksumException(msg);
+            }
+        }
+        return true;
+    }
+
+    // called by segment threads: progress is reported for the download as a whole
+    private synchronized void segmentProgress(long nb, long rt, long wt) {
+        segmentBytes += nb;
+        if (logIO) {
+            readTime += rt;
+            writeTime += wt;
+        }
+        if (progressListener != null) {
+            progressListener.update(nb, segmentBytes);
+        }
+    }
+
+    // read back a downloaded file to compute the MD5
+    private String computeMD5(File f)
+        throws IOException, InterruptedException {
+        MessageDigest md5 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException oops) {
+            log.warn("failed to create MessageDigest(MD5): " + oops);
+            return null;
+        }
+
+        byte[] buf = new byte[2 * bufferSize];
+        InputStream istream = new FileInputStream(f);
+        try {
+            int nb = istream.read(buf);
+            while (nb != -1) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                md5.update(buf, 0, nb);
+                nb = istream.read(buf);
+            }
+        } finally {
+            istream.close();
+        }
+        return HexUtil.toHex(md5.digest());
+    }
+
+    // copy the bytes written to a second stream
+    private static class TeeOutputStream extends FilterOutputStream {
+        private final OutputStream copy;
+
+        TeeOutputStream(OutputStream ostream, OutputStream copy) {
+            super(ostream);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+    }
+
+    // copy the bytes read to a second stream
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        private boolean complete = false;
+
+        TeeInputStream(InputStream istream, OutputStream copy) {
+            super(istream);
+            this.copy = copy;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int nb = in.read(b, off, len);
+            if (nb == -1) {
+                complete = true;
+            } else {
+                copy.write(b, off, nb);
+            }
+            return nb;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read so the skipped bytes are copied
+            byte[] buf = new byte[(int) Math.min(n, 8192L)];
+            long ret = 0L;
+            while (ret < n) {
+                int nb = read(buf, 0, (int) Math.min(buf.length, n - ret));
+                if (nb == -1) {
+                    break;
+                }
+                ret += nb;
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    // run a task in a worker thread with the caller's Subject
+    private static class SubjectCallable<T> implements Callable<T> {
+        private Subject subject;
+        private PrivilegedExceptionAction<T> action;
+
+        SubjectCallable(Subject subject, PrivilegedExceptionAction<T> action) {
+            this.subject = subject;
+            this.action = action;
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (subject == null) {
+                return action.run();
+            }
+            try {
+                return Subject.doAs(subject, action);
+            } catch (PrivilegedActionException ex) {
+                throw ex.getException();
+            }
+        }
+    }
+
+    // download one byte range and write it at the corresponding offset
+    private class Segment implements PrivilegedExceptionAction<Long> {
+        private int num;
+        private URL url;
+        private HttpURLConnection conn;
+        private long start;
+        private long end;
+        private String validator;
+        private FileChannel dest;
+
+        Segment(int num, URL url, HttpURLConnection conn, long start, long end, String validator, FileChannel dest) {
+            this.num = num;
+            this.url = url;
+            this.conn = conn;
+            this.start = start;
+            this.end = end;
+            this.validator = validator;
+            this.dest = dest;
+        }
+
+        @Override
+        public Long run() throws Exception {
+            String range = "bytes=" + start + "-" + end;
+            if (conn == null) {
+                conn = openRangeConnection(url, range, validator);
+                int code = conn.getResponseCode();
+                log.debug(logAction + " status: " + code + " for segment " + num + " " + range);
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    if (code > 303) {
+                        synchronized (HttpDownload.this) {
+                            checkStatusCode(conn);
+                        }
+                    }
+                    // 200 in response to If-Range: the content has changed
+                    throw new IOException("segment " + num + ": expected " + HttpURLConnection.HTTP_PARTIAL
+                        + " for " + range + ", got " + code);
+                }
+                try {
+                    checkContentRange(conn, start, end, contentLength);
+                } catch (IOException ex) {
+                    conn.disconnect();
+                    throw new IOException("segment " + num + ": " + ex.getMessage());
+                }
+            }
+
+            long pos = start;
+            long len = end - start + 1;
+            byte[] buf = new byte[2 * bufferSize];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            InputStream istream = conn.getInputStream();
+            try {
+                while (pos <= end) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    long t = System.currentTimeMillis();
+                    int max = (int) Math.min(buf.length, end - pos + 1);
+                    int nb = istream.read(buf, 0, max);
+                    final long rt = System.currentTimeMillis() - t;
+                    if (nb == -1) {
+                        throw new IOException("segment " + num + ": premature end of stream at "
+                            + (pos - start) + "/" + len + " bytes");
+                    }
+                    if (num == 0 && pos == start && requestStartTime != null) {
+                        responseLatency = System.currentTimeMillis() - requestStartTime;
+                    }
+
+                    t = System.currentTimeMillis();
+                    bb.clear();
+                    bb.limit(nb);
+                    while (bb.hasRemaining()) {
+                        pos += dest.write(bb, pos);
+                    }
+                    long wt = System.currentTimeMillis() - t;
+                    throttle(nb);
+                    segmentProgress(nb, rt, wt);
+                }
+            } finally {
+                try {
+                    istream.close();
+                } catch (Exception ignore) {
+                    // do nothing
+                }
+            }
+            log.debug("segment " + num + " complete: " + range);
+            return len;
+        }
+    }
+
     private void doDecompress()
         throws IOException, InterruptedException {
         // check/clear interrupted flag and throw if necessary
@@ -976,22 +2104,19 @@ public class HttpDownload extends HttpTransfer {
         try {
             this.size = decompSize;
             int sz = bufferSize;
-            if (decompressor == GZIP) {
-                log.debug("input: GZIPInputStream(BufferedInputStream(FileInputStream)");
-                istream = new GZIPInputStream(new FileInputStream(origFile), sz);
-            } else if (decompressor == ZIP) {
-                log.debug("input: ZIPInputStream(BufferedInputStream(FileInputStream)");
-                istream = new ZipInputStream(new BufferedInputStream(new FileInputStream(origFile)));
-            }
+            log.debug("input: " + (decompressor == GZIP ? "GZIP" : "ZIP") + "InputStream(BufferedInputStream(FileInputStream)");
+            istream = openDecompressor(new BufferedInputStream(new FileInputStream(origFile), sz));
             
             log.debug("output: " + decompFile);
-            ostream = new BufferedOutputStream(new FileOutputStream(decompFile), sz);
+            FileOutputStream fos = new FileOutputStream(decompFile);
+            ostream = fos;
 
             this.removeFile = origFile;
 
             if (userNio) {
-                nioLoop(istream, ostream, sz, 0);
+                nioLoop(istream, fos.getChannel(), sz, 0);
             } else {
+                ostream = new BufferedOutputStream(fos, sz);
                 ioLoop(istream, ostream, sz, 0);
             }
             
@@ -69,12 +69,14 @@
 
 package ca.nrc.cadc.net;
 
-import ca.nrc.cadc.net.event.TransferEvent;
+import ca.nrc.cadc.io.ByteCountInputStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -100,6 +102,13 @@ import org.apache.log4j.Logger;
  * string.  For Posts that may result in large response data, the constructor
  * with an output stream should be used.
  * 
+ * <p>The request body is streamed to the server: files are copied through a single
+ * buffer and the Content-Length is computed up front when all part sizes are known
+ * (chunked transfer encoding is used otherwise). Since a streamed body cannot be
+ * resent, a 301, 302, or 303 redirect is followed with a GET when followRedirects
+ * is enabled. For the same reason, a transient failure is not retried once
+ * stream or channel backed FileContent has been sent.
+ * 
  * @author majorb, pdowler
  *
  */
@@ -114,11 +123,14 @@ public class HttpPost extends HttpTransfer {
     private Map<String,Object> paramMap = new TreeMap<String,Object>(); // removes a lot of checking for null
     private FileContent inputFileContent;
     private OutputStream outputStream;
+    private InputStreamWrapper responseWrapper;
+    private long spillThreshold = 0L;
 
     // result information
     private String responseContentType;
     private String responseContentEncoding;
     private String responseBody;
+    private File responseFile;
     
     /**
      * HttpPost constructor.  Redirects will be followed.
@@ -199,13 +211,66 @@ public class HttpPost extends HttpTransfer {
     }
 
     /**
-     * If an OutputStream wasn't supplied in the HttpPost constructor,
+     * If an OutputStream or InputStreamWrapper wasn't supplied,
      * the response can be retrieved here.
-     * @return
+     * 
+     * @return the response or null if it was consumed elsewhere or written
+     *     to a temporary file
      */
     public String getResponseBody() {
         return responseBody;
     }
+    
+    /**
+     * Set a wrapper to read a successful response directly from the connection
+     * (e.g. into a parser). An error response is still captured and available
+     * via getResponseBody().
+     * 
+     * @param responseWrapper wrapper that reads the response
+     */
+    public void setResponseWrapper(InputStreamWrapper responseWrapper) {
+        this.responseWrapper = responseWrapper;
+    }
+    
+    /**
+     * Set the maximum size of a response to hold in memory when neither an
+     * OutputStream nor an InputStreamWrapper is supplied. A larger response is
+     * written to a temporary file instead: see getResponseFile(). The default
+     * of 0 disables the limit.
+     * 
+     * @param spillThreshold maximum response size in bytes held in memory
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+    
+    /**
+     * Get the temporary file holding a response larger than the spill threshold.
+     * The caller is responsible for deleting the file.
+     * 
+     * @return the temporary file or null if the response was not written to a file
+     */
+    public File getResponseFile() {
+        return responseFile;
+    }
+    
+    /**
+     * Open a stream to read a captured response, whether it is held in memory
+     * or in a temporary file.
+     * 
+     * @return stream to read the response or null if it was not captured
+     * @throws IOException failure to open the temporary file
+     */
+    public InputStream openResponseStream()
+        throws IOException {
+        if (responseFile != null) {
+            return new FileInputStream(responseFile);
+        }
+        if (responseBody != null) {
+            return new ByteArrayInputStream(responseBody.getBytes("UTF-8"));
+        }
+        return null;
+    }
 
     /**
      * Retry on TransientExceptions
@@ -218,10 +283,7 @@ public class HttpPost extends HttpTransfer {
                 done = true;
             } catch (TransientException ex) {
                 try {
-                    long dt = 1000L * ex.getRetryDelay();
-                    log.debug("retry " + numRetries + " sleeping  for " + dt);
-                    fireEvent(TransferEvent.RETRYING);
-                    Thread.sleep(dt);
+                    done = !waitForRetry(ex);
                 } catch (InterruptedException iex) {
                     log.debug("retry interrupted");
                     done = true;
@@ -236,6 +298,7 @@ public class HttpPost extends HttpTransfer {
 
         try {
             this.thread = Thread.currentThread();
+            checkCircuitBreaker();
             HttpURLConnection conn = (HttpURLConnection) this.remoteURL.openConnection();
 
             if (conn instanceof HttpsURLConnection) {
@@ -246,11 +309,17 @@ public class HttpPost extends HttpTransfer {
             doPost(conn);
         } catch (TransientException tex) {
             log.debug("caught: " + tex);
+            if (!isRepeatable()) {
+                // the request body was read from a stream and cannot be sent again
+                failure = new IOException("cannot retry with consumed request content", tex);
+                return;
+            }
             throw tex;
         } catch (Throwable t) {
             log.debug("caught: " + t, t);
             failure = t;
         } finally {
+            recordUncheckedFailure();
             if (outputStream != null) {
                 log.debug("closing OutputStream");
                 try { 
@@ -278,6 +347,18 @@ public class HttpPost extends HttpTransfer {
         }
     }
     
+    private boolean isRepeatable() {
+        if (inputFileContent != null) {
+            return inputFileContent.isRepeatable();
+        }
+        for (Object v : paramMap.values()) {
+            if (v instanceof FileContent && !((FileContent) v).isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     private void doPost(HttpURLConnection conn)
         throws IOException, InterruptedException, TransientException {
         
@@ -316,23 +397,33 @@ public class HttpPost extends HttpTransfer {
         throws IOException, InterruptedException, TransientException {
         setRequestSSOCookie(conn);
         conn.setRequestMethod("POST");
-        byte[] buf = input.getBytes();
-        String len = Long.toString(buf.length);
-        conn.setRequestProperty("Content-Length", len);
-        log.debug("POST Content-Length: " + len);
+        long len = input.getContentLength();
+        if (len >= 0) {
+            conn.setFixedLengthStreamingMode(len);
+            log.debug("POST Content-Length: " + len);
+        } else {
+            conn.setChunkedStreamingMode(bufferSize);
+            log.debug("POST Transfer-Encoding: chunked");
+        }
         conn.setRequestProperty("Content-Type", input.getContentType());
         log.debug("POST Content-Type: " + input.getContentType());
         
         setRequestHeaders(conn);
+        setAcceptEncodingHeader(conn);
         
-        conn.setInstanceFollowRedirects(followRedirects);
+        // streaming mode: redirects are followed in handleResponse
+        conn.setInstanceFollowRedirects(false);
         conn.setUseCaches(false);
         conn.setDoOutput(true);
         conn.setDoInput(true);
         
-        OutputStream ostream = conn.getOutputStream();
+        OutputStream ostream = throttle(conn.getOutputStream());
         try {
-            ostream.write(input.getBytes());
+            byte[] buf = null;
+            if (input.getBytes() == null) {
+                buf = new byte[bufferSize];
+            }
+            input.writeTo(ostream, buf);
         } finally {
             ostream.flush();
             ostream.close();
@@ -364,15 +455,50 @@ public class HttpPost extends HttpTransfer {
         log.debug("POST Content-Type: " + ctype);
         
         setRequestHeaders(conn);
+        setAcceptEncodingHeader(conn);
         
-        conn.setInstanceFollowRedirects(followRedirects);
+        // streaming mode: redirects are followed in handleResponse
+        conn.setInstanceFollowRedirects(false);
         conn.setUseCaches(false);
         conn.setDoOutput(true);
         conn.setDoInput(true);
         
-        StringBuilder sb = new StringBuilder();
+        List<Object> parts = encodeParts(params, uploads, multi);
+        long len = getContentLength(parts);
+        if (len >= 0) {
+            conn.setFixedLengthStreamingMode(len);
+            log.debug("POST Content-Length: " + len);
+        } else {
+            conn.setChunkedStreamingMode(bufferSize);
+            log.debug("POST Transfer-Encoding: chunked");
+        }
+        
+        OutputStream writer = throttle(conn.getOutputStream());
+        try {
+            writeParts(parts, writer);
+        } finally {
+            writer.flush();
+            writer.close();
+        }
+
+        log.debug("POST - done: " + remoteURL.toString());
+        
+        handleResponse(conn);
+    }
+    
+    /**
+     * Encode the request body as a list of parts to be written in order. Each element
+     * is either a byte[] (encoded parameters and multipart headers) or an upload
+     * (File or FileContent) whose content is copied when the body is written, so the
+     * complete body is never held in memory.
+     */
+    private List<Object> encodeParts(Map<String,List<Object>> params, Map<String,Object> uploads, boolean multi)
+        throws IOException {
+        Charset utf8 = Charset.forName("UTF-8");
+        List<Object> ret = new ArrayList<Object>();
         for (Map.Entry<String,List<Object>> pe : params.entrySet()) {
             for (Object v : pe.getValue()) {
+                StringBuilder sb = new StringBuilder();
                 if (multi) {
                     sb.append(LINE_FEED).append("--" + MULTIPART_BOUNDARY);
                     sb.append(LINE_FEED).append("Content-Disposition: form-data; name=\"" + pe.getKey() + "\"");
@@ -383,40 +509,90 @@ public class HttpPost extends HttpTransfer {
                     sb.append("=");
                     sb.append(URLEncoder.encode(v.toString(), "UTF-8"));
                     sb.append("&");
-                    
                 }
+                log.debug("param: " + sb.toString());
+                ret.add(sb.toString().getBytes(utf8));
             }
         }
         
-        log.debug("params: " + sb.toString());
-        
-        Charset utf8 = Charset.forName("UTF-8");
-        OutputStream writer = conn.getOutputStream();
-        try {
-            writer.write(sb.toString().getBytes(utf8));
-
-            if (multi) {
-                for (Map.Entry<String,Object> up : uploads.entrySet()) {
-                    if (up.getValue() instanceof File) {
-                        writeFilePart(up.getKey(), ((File)up.getValue()), writer, utf8);
-                    } else if (up.getValue() instanceof FileContent) {
-                        writeFilePart(up.getKey(), (FileContent)up.getValue(), writer, utf8);
-                    } else {
-                        throw new UnsupportedOperationException("Unexpected upload type: " + up.getClass().getName());
+        if (multi) {
+            for (Map.Entry<String,Object> up : uploads.entrySet()) {
+                Object u = up.getValue();
+                if (u instanceof File) {
+                    ret.add(getFilePartHeader(up.getKey(), ((File) u).getName(), null).getBytes(utf8));
+                } else if (u instanceof FileContent) {
+                    // 'filename' for data entry is needed so this data is treated as
+                    // stream input by the accepting web service
+                    FileContent fc = (FileContent) u;
+                    String fname = "dummyFile";
+                    if (fc.getFile() != null) {
+                        fname = fc.getFile().getName();
                     }
+                    ret.add(getFilePartHeader(up.getKey(), fname, fc.getContentType()).getBytes(utf8));
+                } else {
+                    throw new UnsupportedOperationException("Unexpected upload type: " + u.getClass().getName());
                 }
-
-                String end = LINE_FEED + "--" + MULTIPART_BOUNDARY + "--" + LINE_FEED;
-                writer.write(end.getBytes(utf8));
+                ret.add(u);
+            }
+            
+            String end = LINE_FEED + "--" + MULTIPART_BOUNDARY + "--" + LINE_FEED;
+            ret.add(end.getBytes(utf8));
+        }
+        return ret;
+    }
+    
+    private String getFilePartHeader(String fieldName, String filename, String contentType) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(LINE_FEED).append("--" + MULTIPART_BOUNDARY);
+        sb.append(LINE_FEED).append("Content-Disposition: form-data; name=\"" + fieldName + "\";"
+            + " filename=\"" + filename + "\"");
+        if (contentType != null) {
+            sb.append(LINE_FEED).append("Content-Type: " + contentType);
+        }
+        sb.append(LINE_FEED);
+        sb.append(LINE_FEED);
+        log.debug("MULTIPART PORTION: " + sb.toString());
+        return sb.toString();
+    }
+    
+    // total length of the encoded parts or -1 if not known in advance
+    private static long getContentLength(List<Object> parts) {
+        long ret = 0;
+        for (Object p : parts) {
+            if (p instanceof byte[]) {
+                ret += ((byte[]) p).length;
+            } else if (p instanceof File) {
+                ret += ((File) p).length();
+            } else {
+                long len = ((FileContent) p).getContentLength();
+                if (len < 0) {
+                    return -1;
+                }
+                ret += len;
+            }
+        }
+        return ret;
+    }
+    
+    private void writeParts(List<Object> parts, OutputStream ostream)
+        throws IOException {
+        byte[] buf = null; // shared by all file parts
+        for (Object p : parts) {
+            if (p instanceof byte[]) {
+                ostream.write((byte[]) p);
+            } else {
+                if (buf == null) {
+                    buf = new byte[bufferSize];
+                }
+                long len;
+                if (p instanceof File) {
+                    len = writeFilePart((File) p, ostream, buf);
+                } else {
+                    len = ((FileContent) p).writeTo(ostream, buf);
+                }
+                log.debug("file part length: " + len);
             }
-        } finally {
-            writer.flush();
-            writer.close();
         }
-
-        log.debug("POST - done: " + remoteURL.toString());
-        
-        handleResponse(conn);
     }
     
     private void handleResponse(HttpURLConnection conn)
@@ -425,13 +601,24 @@ public class HttpPost extends HttpTransfer {
         captureResponseHeaders(conn);
         
         //int statusCode = checkStatusCode(conn);
-        this.responseCode = conn.getResponseCode();
+        this.responseCode = readResponseCode(conn);
         this.responseContentType = conn.getContentType();
         this.responseContentEncoding = conn.getContentEncoding();
         log.debug("handleResponse: " + responseCode + "|" + responseContentType);
         
         // check for a redirect
         String location = conn.getHeaderField("Location");
+        if (followRedirects && location != null && "POST".equals(conn.getRequestMethod())
+            && (responseCode == HttpURLConnection.HTTP_SEE_OTHER
+            || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+            || responseCode == HttpURLConnection.HTTP_MOVED_PERM)) {
+            URL target = new URL(conn.getURL(), location);
+            // same rule as HttpURLConnection: do not follow a change of protocol
+            if (target.getProtocol().equals(conn.getURL().getProtocol())) {
+                followRedirect(target);
+                return;
+            }
+        }
         if ((responseCode == HttpURLConnection.HTTP_SEE_OTHER
             || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) 
             && location != null) {
@@ -444,8 +631,37 @@ public class HttpPost extends HttpTransfer {
         checkStatusCode(conn);
         
         // read response fully
-        InputStream istream = conn.getInputStream();
-        readResponse(istream);
+        InputStream istream = decodeContent(conn, conn.getInputStream());
+        if (responseWrapper != null) {
+            ByteCountInputStream bcis = new ByteCountInputStream(istream);
+            responseWrapper.read(bcis);
+            this.bytesTransferred = bcis.getByteCount();
+            log.debug("read response with supplied " + responseWrapper.getClass().getName());
+        } else {
+            readResponse(istream);
+        }
+    }
+    
+    // a streamed request body cannot be resent so HttpURLConnection will not follow the
+    // redirect itself; continue with a GET as it does for POST after 301, 302, and 303
+    private void followRedirect(URL location)
+        throws IOException, InterruptedException, TransientException {
+        log.debug("following redirect: " + location);
+        HttpURLConnection conn = (HttpURLConnection) location.openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            initHTTPS((HttpsURLConnection) conn);
+        }
+        // same request setup as the POST: redirects followed by HttpURLConnection keep the headers
+        setRequestSSOCookie(conn);
+        conn.setRequestMethod("GET");
+        conn.setInstanceFollowRedirects(true);
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        conn.setRequestProperty("User-Agent", userAgent);
+        setRequestHeaders(conn);
+        setAcceptEncodingHeader(conn);
+        
+        handleResponse(conn);
     }
     
     private void readResponse(InputStream istream)
@@ -456,54 +672,74 @@ public class HttpPost extends HttpTransfer {
             } else {
                 ioLoop(istream, outputStream, 2 * bufferSize, 0);
             }
+            this.bytesTransferred = loopBytes;
             
             outputStream.flush();
             log.debug("wrote response to supplied " + outputStream.getClass().getName());
         } else {
-            int smallBufferSize = 512;
-            ByteArrayOutputStream byteArrayOstream = new ByteArrayOutputStream();
-            try {
-                if (userNio) {
-                    nioLoop(istream, byteArrayOstream, smallBufferSize, 0);
-                } else {
-                    ioLoop(istream, byteArrayOstream, smallBufferSize, 0);
+            captureResponse(istream);
+        }
+    }
+    
+    // capture the response in responseBody or, above spillThreshold, in responseFile
+    private void captureResponse(InputStream istream)
+        throws IOException, InterruptedException {
+        if (responseFile != null) {
+            // from a previous attempt
+            responseFile.delete();
+            this.responseFile = null;
+        }
+        this.responseBody = null;
+        
+        byte[] buf = new byte[bufferSize];
+        ByteArrayOutputStream mem = new ByteArrayOutputStream();
+        OutputStream spill = null;
+        long tot = 0L;
+        try {
+            int nb = istream.read(buf);
+            while (nb != -1) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
                 }
-                
-                byteArrayOstream.flush();
-                responseBody = new String(byteArrayOstream.toByteArray(), "UTF-8");
-                log.debug("captured response in local String responseBody");
-            } finally {
-                if (byteArrayOstream != null) {
-                    try { 
-                        byteArrayOstream.close(); 
-                    } catch (Exception ignore) { 
-                        // do nothing
-                    }
+                if (spill == null && spillThreshold > 0 && tot + nb > spillThreshold) {
+                    this.responseFile = File.createTempFile("HttpPost-", ".response");
+                    log.debug("response exceeds " + spillThreshold + " bytes: writing to " + responseFile);
+                    spill = new FileOutputStream(responseFile);
+                    mem.writeTo(spill);
+                    mem = null;
                 }
+                if (spill != null) {
+                    spill.write(buf, 0, nb);
+                } else {
+                    mem.write(buf, 0, nb);
+                }
+                throttle(nb);
+                tot += nb;
+                nb = istream.read(buf);
             }
+        } finally {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+        this.bytesTransferred = tot;
+        
+        if (mem != null) {
+            // decode directly from the internal buffer
+            responseBody = mem.toString("UTF-8");
+            log.debug("captured response in local String responseBody");
         }
     }
     
-    private void writeFilePart(String fieldName, File uploadFile, OutputStream w, Charset utf8)
+    private long writeFilePart(File uploadFile, OutputStream ostream, byte[] buf)
         throws IOException {
-        StringBuilder sb = new StringBuilder();
-        sb.append(LINE_FEED).append("--" + MULTIPART_BOUNDARY);
-        sb.append(LINE_FEED).append("Content-Disposition: form-data; name=\"" + fieldName + "\";"
-            + " filename=\"" + uploadFile.getName() + "\"");
-        sb.append(LINE_FEED);
-        sb.append(LINE_FEED);
-        
-        log.debug("MULTIPART PORTION: " + sb.toString());
-        w.write(sb.toString().getBytes(utf8));
-        
         FileInputStream r = null;
         long len = 0;
         try {
             r = new FileInputStream(uploadFile);
-            byte[] buffer = new byte[4096];
             int bytesRead;
-            while ((bytesRead = r.read(buffer)) != -1) {
-                w.write(buffer, 0, bytesRead);
+            while ((bytesRead = r.read(buf)) != -1) {
+                ostream.write(buf, 0, bytesRead);
                 len += bytesRead;
             }
         } finally {
@@ -511,31 +747,7 @@ public class HttpPost extends HttpTransfer {
                 r.close();
             }
         }
-        
-        log.debug("file part length: " + len);
-    }
-
-    private void writeFilePart(String fieldName, FileContent uploadContent, OutputStream w, Charset utf8)
-        throws IOException {
-        StringBuilder sb = new StringBuilder();
-        log.debug("writeFilePart: " + uploadContent.getContentType());
-        sb.append(LINE_FEED).append("--" + MULTIPART_BOUNDARY);
-        // 'filename' for data entry is needed so this data is treated as
-        // stream input by the accepting web service
-        sb.append(LINE_FEED).append("Content-Disposition: form-data; name=\"" + fieldName + "\";"
-            + " filename=\"dummyFile\"");
-
-        if (uploadContent.getContentType() != null) {
-            sb.append(LINE_FEED).append("Content-Type: " + uploadContent.getContentType());
-        }
-        
-        sb.append(LINE_FEED);
-        sb.append(LINE_FEED);
-
-        log.debug("MULTIPART PORTION: " + sb.toString());
-        w.write(sb.toString().getBytes(utf8));
-        w.write(uploadContent.getBytes());
-        w.flush();
+        return len;
     }
     
     private int checkStatusCode(HttpURLConnection conn)
@@ -552,7 +764,9 @@ public class HttpPost extends HttpTransfer {
             this.responseContentEncoding = conn.getContentEncoding();
             String msg = "(" + code + ") " + conn.getResponseMessage();
             InputStream istream = conn.getErrorStream();
-            readResponse(istream);
+            if (istream != null) {
+                readResponse(decodeContent(conn, istream));
+            }
             checkTransient(code, msg, conn);
             switch (code) {
                 case HttpURLConnection.HTTP_NO_CONTENT:
@@ -0,0 +1,638 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.StringUtil;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.AccessControlException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.HttpsURLConnection;
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only random access to a remote resource using HTTP Range requests. Content is
+ * fetched in aligned blocks that are kept in an LRU cache. Missing blocks needed by a
+ * read are fetched with a single request and sequential reads trigger read-ahead of
+ * additional blocks (doubling up to maxReadAhead), so both small header peeks and 
+ * sequential scans use few requests. The size of the resource is found from the 
+ * Content-Range of the first response; if the server does not report it, the end is
+ * found when a read returns less than requested (or 416) and size() uses a HEAD 
+ * request. The ETag (or Last-Modified) of the first response is sent as If-Range with 
+ * later requests and a read fails if the resource has changed. Authentication, SSL, 
+ * custom request headers, retry, and bandwidth limit configuration work as in the 
+ * other transfer classes.
+ * 
+ * <p>Usage: create an instance, configure it, and use it as a SeekableByteChannel or 
+ * via getInputStream(). The run() method only determines the size (getThrowable() 
+ * reports a failure). Instances are thread-safe but reads are serialised.
+ */
+public class HttpRangeChannel extends HttpTransfer implements SeekableByteChannel {
+    private static final Logger log = Logger.getLogger(HttpRangeChannel.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CACHE_BLOCKS = 64;
+    public static final int DEFAULT_MAX_READ_AHEAD = 16;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int cacheBlocks = DEFAULT_CACHE_BLOCKS;
+    private int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+
+    private boolean open = true;
+    private long position = 0L;
+    private long size = -1L;
+    private long lastEnd = -1L; // end of the previous read: detect sequential reads
+    private int readAhead = 0;
+    private int rangeRequests = 0;
+    private boolean pinned = false; // validator taken from the first response
+    private String validator; // ETag or Last-Modified of the first response: sent as If-Range
+    private boolean rangeSupported = false; // a 206 response was received
+    
+    // access-ordered: iteration starts with the least recently used block
+    private final LinkedHashMap<Long,byte[]> blocks = new LinkedHashMap<Long,byte[]>(16, 0.75f, true);
+
+    /**
+     * @param url the remote resource
+     */
+    public HttpRangeChannel(URL url) {
+        super(true);
+        if (url == null) {
+            throw new IllegalArgumentException("url cannot be null");
+        }
+        this.remoteURL = url;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpRangeChannel[" + remoteURL + "]";
+    }
+
+    /**
+     * Set the block size. This must be set before reading.
+     * 
+     * @param blockSize block size in bytes
+     */
+    public synchronized void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("invalid block size: " + blockSize);
+        }
+        if (!blocks.isEmpty()) {
+            throw new IllegalStateException("cannot change block size after reading");
+        }
+        this.blockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Set the maximum number of blocks in the cache.
+     * 
+     * @param cacheBlocks number of blocks
+     */
+    public synchronized void setCacheBlocks(int cacheBlocks) {
+        if (cacheBlocks <= 0) {
+            throw new IllegalArgumentException("invalid cache size: " + cacheBlocks);
+        }
+        this.cacheBlocks = cacheBlocks;
+        evict();
+    }
+
+    public int getCacheBlocks() {
+        return cacheBlocks;
+    }
+
+    /**
+     * Set the maximum number of blocks to read ahead for sequential reads. The
+     * read-ahead is also limited to half the cache.
+     * 
+     * @param maxReadAhead number of blocks, 0 to disable read-ahead
+     */
+    public void setMaxReadAhead(int maxReadAhead) {
+        if (maxReadAhead < 0) {
+            throw new IllegalArgumentException("invalid read-ahead: " + maxReadAhead);
+        }
+        this.maxReadAhead = maxReadAhead;
+    }
+
+    public int getMaxReadAhead() {
+        return maxReadAhead;
+    }
+
+    /**
+     * @return number of range requests made
+     */
+    public synchronized int getRangeRequests() {
+        return rangeRequests;
+    }
+
+    /**
+     * Determine the size of the remote resource by fetching the first block.
+     */
+    @Override
+    public void run() {
+        this.failure = null;
+        try {
+            size();
+        } catch (Throwable t) {
+            log.debug("failed to open " + remoteURL, t);
+            failure = t;
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.open = false;
+        blocks.clear();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("invalid position: " + newPosition);
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * Get the size of the remote resource. If the range response does not include the
+     * total length, the Content-Length of a HEAD request is used.
+     * 
+     * @return the size in bytes
+     * @throws IOException if the size cannot be determined
+     */
+    @Override
+    public synchronized long size() throws IOException {
+        checkOpen();
+        if (size < 0) {
+            getBlock(0L, 1);
+        }
+        if (size < 0) {
+            this.size = headContentLength();
+        }
+        if (size < 0) {
+            throw new IOException("size not known: " + remoteURL);
+        }
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        
+        // sequential reads increase the read-ahead
+        if (position == lastEnd) {
+            readAhead = Math.min(Math.max(1, 2 * readAhead), Math.min(maxReadAhead, cacheBlocks / 2));
+        } else {
+            readAhead = 0;
+        }
+        
+        long first = position / blockSize;
+        long last = (position + dst.remaining() - 1) / blockSize;
+        int num = (int) Math.min(last - first + 1 + readAhead, cacheBlocks);
+        byte[] block = getBlock(first, num);
+        // the size may be unknown until a short read or 416 response
+        if (size >= 0 && position >= size) {
+            return -1;
+        }
+        if (block == null) {
+            throw new IOException("failed to read block " + first + " of " + remoteURL);
+        }
+
+        int ret = 0;
+        while (block != null && dst.hasRemaining() && (size < 0 || position < size)) {
+            int off = (int) (position - first * blockSize);
+            int len = Math.min(dst.remaining(), block.length - off);
+            dst.put(block, off, len);
+            position += len;
+            ret += len;
+            first++;
+            block = blocks.get(first);
+        }
+        lastEnd = position;
+        return ret;
+    }
+
+    /**
+     * Get an InputStream that reads from the current position of this channel.
+     * Skipping moves the position without reading and closing the stream closes 
+     * the channel.
+     * 
+     * @return input stream
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                if (n == -1) {
+                    return -1;
+                }
+                return b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return HttpRangeChannel.this.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                synchronized (HttpRangeChannel.this) {
+                    long pos = position();
+                    long ret = Math.max(0L, n);
+                    if (size >= 0) {
+                        ret = Math.max(0L, Math.min(n, size - pos));
+                    }
+                    position(pos + ret);
+                    return ret;
+                }
+            }
+
+            @Override
+            public void close() {
+                HttpRangeChannel.this.close();
+            }
+        };
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    // get block from the cache, fetching it and up to num - 1 following blocks
+    // that are not cached if necessary: returns null if past the end
+    private byte[] getBlock(long index, int num) throws IOException {
+        byte[] ret = blocks.get(index);
+        if (ret != null || (size >= 0 && index * blockSize >= size)) {
+            return ret;
+        }
+        
+        // coalesce the following missing blocks into one request
+        int n = 1;
+        while (n < num && !blocks.containsKey(index + n)
+            && (size < 0 || (index + n) * blockSize < size)) {
+            n++;
+        }
+        
+        while (true) {
+            try {
+                fetch(index, n);
+                return blocks.get(index);
+            } catch (TransientException ex) {
+                try {
+                    if (!waitForRetry(ex)) {
+                        // deferred by the executor: run() will be called again
+                        throw new IOException("retry deferred: " + ex.getMessage(), ex);
+                    }
+                } catch (InterruptedException iex) {
+                    throw new InterruptedIOException("interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    private void fetch(long index, int num) throws IOException, TransientException {
+        long start = index * blockSize;
+        long end = start + (long) num * blockSize - 1;
+        if (size >= 0) {
+            end = Math.min(end, size - 1);
+        }
+        String range = "bytes=" + start + "-" + end;
+        
+        checkCircuitBreaker();
+        HttpURLConnection conn;
+        int code;
+        try {
+            conn = (HttpURLConnection) remoteURL.openConnection();
+            log.debug("GET " + remoteURL + " Range: " + range);
+            if (conn instanceof HttpsURLConnection) {
+                initHTTPS((HttpsURLConnection) conn);
+            }
+            setRequestSSOCookie(conn);
+            conn.setInstanceFollowRedirects(followRedirects);
+            conn.setRequestProperty("Accept", "*/*");
+            conn.setRequestProperty("User-Agent", userAgent);
+            setRequestHeaders(conn);
+            conn.setRequestProperty("Range", range);
+            if (validator != null) {
+                // all blocks must come from the same version of the resource
+                conn.setRequestProperty("If-Range", validator);
+            }
+            conn.setRequestMethod("GET");
+            rangeRequests++;
+
+            code = readResponseCode(conn);
+        } finally {
+            recordUncheckedFailure();
+        }
+        this.responseCode = code;
+        captureResponseHeaders(conn);
+        if (code == HttpURLConnection.HTTP_PARTIAL || code == HttpURLConnection.HTTP_OK) {
+            checkValidator(conn, code);
+        }
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            long[] cr = parseContentRange(conn.getHeaderField("Content-Range"));
+            if (cr[2] >= 0) {
+                this.size = cr[2];
+            }
+            if (cr[0] >= 0 && cr[0] != start) {
+                conn.disconnect();
+                throw new IOException("unexpected Content-Range for " + range + ": " + conn.getHeaderField("Content-Range"));
+            }
+            if (cr[1] >= 0) {
+                end = cr[1];
+            }
+            readBlocks(conn.getInputStream(), start, end);
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            // range not supported: skip to the start
+            log.warn("range request not supported by server: " + remoteURL);
+            String cl = conn.getHeaderField("Content-Length");
+            if (cl != null) {
+                this.size = Long.parseLong(cl);
+            }
+            InputStream istream = conn.getInputStream();
+            // read and discard: skip may skip fewer bytes without reaching the end
+            byte[] buf = new byte[Math.min(blockSize, 8192)];
+            long skip = start;
+            while (skip > 0) {
+                int n = istream.read(buf, 0, (int) Math.min(buf.length, skip));
+                if (n == -1) {
+                    break;
+                }
+                skip -= n;
+            }
+            if (skip > 0) {
+                // content ends before start
+                istream.close();
+                this.size = start - skip;
+            } else {
+                readBlocks(istream, start, end);
+            }
+            conn.disconnect();
+        } else if (code == 416) {
+            // requested range not satisfiable: start is past the end
+            long[] cr = parseContentRange(conn.getHeaderField("Content-Range"));
+            if (cr[2] >= 0) {
+                this.size = cr[2];
+            } else if (size < 0) {
+                this.size = start;
+            }
+            NetUtil.getErrorBody(conn);
+        } else {
+            String msg = "(" + code + ") " + conn.getResponseMessage();
+            String body = NetUtil.getErrorBody(conn);
+            if (StringUtil.hasText(body)) {
+                msg = msg + ": " + body;
+            }
+            checkTransient(code, msg, conn);
+            switch (code) {
+                case HttpURLConnection.HTTP_UNAUTHORIZED:
+                    throw new AccessControlException("authentication failed " + msg);
+                case HttpURLConnection.HTTP_FORBIDDEN:
+                    throw new AccessControlException("authorization failed " + msg);
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    throw new FileNotFoundException("resource not found " + msg);
+                default:
+                    throw new IOException(msg);
+            }
+        }
+    }
+
+    // pin the version of the resource from the first response and fail if it changes
+    private void checkValidator(HttpURLConnection conn, int code) throws IOException {
+        String v = getRangeValidator(conn);
+        if (!pinned) {
+            this.pinned = true;
+            this.validator = v;
+        } else if (code == HttpURLConnection.HTTP_OK && rangeSupported) {
+            // If-Range did not match or the server stopped honouring ranges
+            conn.disconnect();
+            throw new IOException("resource changed while reading: " + remoteURL);
+        } else if (validator != null && !validator.equals(v)) {
+            conn.disconnect();
+            throw new IOException("resource changed while reading: " + remoteURL 
+                + " validator: " + validator + " -> " + v);
+        }
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            this.rangeSupported = true;
+        }
+    }
+
+    // Content-Length from a HEAD request: -1 if not known
+    private long headContentLength() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) remoteURL.openConnection();
+        log.debug("HEAD " + remoteURL);
+        if (conn instanceof HttpsURLConnection) {
+            initHTTPS((HttpsURLConnection) conn);
+        }
+        setRequestSSOCookie(conn);
+        conn.setInstanceFollowRedirects(followRedirects);
+        conn.setRequestProperty("User-Agent", userAgent);
+        setRequestHeaders(conn);
+        conn.setRequestMethod("HEAD");
+        int code = conn.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            log.debug("HEAD " + remoteURL + " failed: " + code);
+            return -1L;
+        }
+        String cl = conn.getHeaderField("Content-Length");
+        if (cl == null) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(cl.trim());
+        } catch (NumberFormatException ex) {
+            log.debug("invalid Content-Length: " + cl);
+            return -1L;
+        }
+    }
+
+    // read content from start to end (inclusive) into cache blocks
+    private void readBlocks(InputStream istream, long start, long end) throws IOException {
+        try {
+            long pos = start;
+            while (pos <= end) {
+                long index = pos / blockSize;
+                int len = (int) Math.min(blockSize, end - pos + 1);
+                byte[] block = new byte[len];
+                int off = 0;
+                while (off < len) {
+                    int nb = istream.read(block, off, len - off);
+                    if (nb == -1) {
+                        break;
+                    }
+                    off += nb;
+                }
+                if (off < len) {
+                    // end of content
+                    this.size = pos + off;
+                    if (off > 0) {
+                        byte[] tmp = new byte[off];
+                        System.arraycopy(block, 0, tmp, 0, off);
+                        putBlock(index, tmp);
+                    }
+                    return;
+                }
+                throttle(len);
+                putBlock(index, block);
+                pos += len;
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while throttled");
+        } finally {
+            istream.close();
+        }
+    }
+
+    private void putBlock(long index, byte[] block) {
+        blocks.put(index, block);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long,byte[]>> iter = blocks.entrySet().iterator();
+        while (blocks.size() > cacheBlocks && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    // parse "bytes start-end/total": returns {start, end, total} with -1 for unknown
+    static long[] parseContentRange(String cr) throws IOException {
+        long[] ret = new long[] { -1L, -1L, -1L };
+        if (cr == null) {
+            return ret;
+        }
+        try {
+            String s = cr.trim();
+            if (s.startsWith("bytes")) {
+                s = s.substring(5).trim();
+            }
+            int i = s.indexOf('/');
+            String total = s.substring(i + 1).trim();
+            if (!"*".equals(total)) {
+                ret[2] = Long.parseLong(total);
+            }
+            String r = s.substring(0, i).trim();
+            if (!"*".equals(r)) {
+                String[] se = r.split("-");
+                ret[0] = Long.parseLong(se[0].trim());
+                ret[1] = Long.parseLong(se[1].trim());
+            }
+            return ret;
+        } catch (RuntimeException ex) {
+            throw new IOException("invalid Content-Range: " + cr, ex);
+        }
+    }
+}
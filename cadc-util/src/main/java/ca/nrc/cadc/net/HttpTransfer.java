@@ -72,6 +72,7 @@ package ca.nrc.cadc.net;
 import ca.nrc.cadc.auth.SSLUtil;
 import ca.nrc.cadc.auth.SSOCookieCredential;
 import ca.nrc.cadc.auth.SSOCookieManager;
+import ca.nrc.cadc.io.ByteCountInputStream;
 import ca.nrc.cadc.net.event.ProgressListener;
 import ca.nrc.cadc.net.event.TransferEvent;
 import ca.nrc.cadc.net.event.TransferListener;
@@ -79,8 +80,12 @@ import ca.nrc.cadc.util.FileMetadata;
 import ca.nrc.cadc.util.HexUtil;
 import ca.nrc.cadc.util.StringUtil;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -90,6 +95,7 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.AccessControlContext;
 import java.security.AccessController;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -98,6 +104,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 import javax.security.auth.Subject;
@@ -124,10 +132,14 @@ public abstract class HttpTransfer implements Runnable {
     public static final String SERVICE_RETRY = "Retry-After";
 
     public static final int DEFAULT_BUFFER_SIZE = 8 * 1024; // 8KB
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB
     // note: the combination of a large buffer, small-ish streamed put w/ no
     // content-length, and tomcat6 fails, plus apache+tomcat seem to have some
     // limits at 8k anyway
 
+    // number of buffers in flight in pipelined IO mode
+    static final int PIPELINE_BUFFERS = 8;
+
     public static enum RetryReason {
         /**
          * Never retry.
@@ -170,6 +182,8 @@ public abstract class HttpTransfer implements Runnable {
 
     protected int numRetries = 0;
     protected int curRetryDelay = 0; // scaled after each retry
+    protected RetryPolicy retryPolicy;
+    private volatile String uncheckedHost; // request allowed by the circuit breaker, outcome not recorded
 
     protected int bufferSize = DEFAULT_BUFFER_SIZE;
     protected OverwriteChooser overwriteChooser;
@@ -180,10 +194,23 @@ public abstract class HttpTransfer implements Runnable {
 
     protected List<HttpRequestProperty> requestProperties;
     protected String userAgent;
-    protected boolean userNio = false; // throughput not great, needs work before use
+    protected boolean userNio = false; // opt-in: no significant gain over ioLoop when computing MD5
+    protected boolean pipelinedIO = false;
+    protected boolean adaptiveBuffer = false;
+    protected int minBufferSize = DEFAULT_BUFFER_SIZE;
+    protected int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+    protected int ioBufferSize = 0; // buffer size at the end of the most recent ioLoop
     protected boolean logIO = false;
     protected long writeTime = 0L;
     protected long readTime = 0L;
+    protected long bytesTransferred = 0L;
+    protected long loopBytes = 0L; // bytes moved by the most recent ioLoop or nioLoop
+    protected boolean acceptEncoding = false;
+    protected BandwidthLimiter bandwidthLimiter;
+    private boolean deferRetry = false; // set by HttpTransferExecutor for non-blocking retry
+    private long deferredRetry = 0L;
+    private ByteCountInputStream wireCounter; // set when decoding a content-encoded response
+    private MessageDigest wireDigest;
 
     protected boolean go;
     protected Thread thread;
@@ -206,6 +233,8 @@ public abstract class HttpTransfer implements Runnable {
     
     protected final Map<String,String> responseHeaders = new TreeMap<String,String>();
 
+    private static final ThreadLocal<ByteBuffer> nioBuffer = new ThreadLocal<ByteBuffer>();
+
     static {
         String jv = "Java " + System.getProperty("java.version") + ";" + System.getProperty("java.vendor");
         String os = System.getProperty("os.name") + " " + System.getProperty("os.version");
@@ -324,6 +353,23 @@ public abstract class HttpTransfer implements Runnable {
         this.retryReason = reason;
     }
 
+    /**
+     * Set a retry policy (typically shared by many transfers) that adds jittered backoff,
+     * a per-host retry budget, and a per-host circuit breaker. The RetryReason and maxRetries
+     * still determine which failures are retried. If no policy is set (the default), the
+     * retryDelay is doubled after each retry.
+     * 
+     * @param retryPolicy the policy, or null
+     * @see RetryPolicy#getSharedPolicy()
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
     public URL getURL() { 
         return remoteURL; 
     }
@@ -351,6 +397,115 @@ public abstract class HttpTransfer implements Runnable {
     }
 
 
+    /**
+     * Enable the java.nio IO loop. When downloading to a file, data is written to a 
+     * FileChannel from a (reused) direct ByteBuffer. The default is to use the java.io
+     * loop with a byte[] buffer.
+     * 
+     * @param useNIO
+     */
+    public void setUseNIO(boolean useNIO) {
+        this.userNio = useNIO;
+    }
+
+    public boolean getUseNIO() {
+        return userNio;
+    }
+
+    /**
+     * Enable the pipelined IO loop. The calling thread reads into a small pool of
+     * buffers while separate threads write each filled buffer and update the MD5 
+     * digest concurrently. This helps when the digest and/or write are slow enough
+     * to throttle a single-threaded loop on large transfers; it uses two extra threads
+     * per transfer. Pipelined IO is used instead of the java.io loop; the java.nio loop
+     * (setUseNIO) takes precedence.
+     * 
+     * @param pipelinedIO
+     */
+    public void setPipelinedIO(boolean pipelinedIO) {
+        this.pipelinedIO = pipelinedIO;
+    }
+
+    public boolean getPipelinedIO() {
+        return pipelinedIO;
+    }
+
+    /**
+     * Enable adaptive buffer sizing in the java.io loop. The buffer starts at the
+     * configured size and is doubled while reads fill it or halved while reads use
+     * only a small part of it, within the bounds set by setBufferSizeBounds; a size
+     * increase that reduces throughput is reverted. The size in use at the end of
+     * the transfer is available from getIOBufferSize().
+     * 
+     * @param adaptiveBuffer
+     */
+    public void setAdaptiveBuffer(boolean adaptiveBuffer) {
+        this.adaptiveBuffer = adaptiveBuffer;
+    }
+
+    public boolean getAdaptiveBuffer() {
+        return adaptiveBuffer;
+    }
+
+    /**
+     * Set the bounds for adaptive buffer sizing. The defaults are DEFAULT_BUFFER_SIZE
+     * and DEFAULT_MAX_BUFFER_SIZE.
+     * 
+     * @param minBufferSize minimum buffer size in bytes
+     * @param maxBufferSize maximum buffer size in bytes
+     */
+    public void setBufferSizeBounds(int minBufferSize, int maxBufferSize) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("invalid buffer size bounds: " + minBufferSize + "," + maxBufferSize);
+        }
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * @return the buffer size used by the most recent java.io loop (the final size
+     *     with adaptive buffer sizing) or 0 if it was not used
+     */
+    public int getIOBufferSize() {
+        return ioBufferSize;
+    }
+
+    /**
+     * Set a bandwidth limiter for this transfer. The same limiter can be set on many
+     * transfers (or use BandwidthLimiter.getSharedLimiter()) so that the global and 
+     * per-host limits apply to all of them. The limiter is applied to the bytes read
+     * from the response and to the request content written by HttpPost.
+     * 
+     * @param bandwidthLimiter limiter or null for no limit
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Enable content-encoding negotiation. The request includes 
+     * <code>Accept-Encoding: gzip, deflate</code> and a response with one of those
+     * encodings is decoded while streaming, so the destination receives the original
+     * content. This is independent of the decompression of gzip and zip files by
+     * HttpDownload. When a response is decoded, the Content-Length and Content-MD5
+     * headers describe the encoded bytes (see getWireBytes) while the bytes transferred
+     * count the decoded bytes. Resume and segmented download are not used for
+     * encoded responses.
+     * 
+     * @param acceptEncoding true to request and decode compressed responses
+     */
+    public void setAcceptEncoding(boolean acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    public boolean getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
     public void setUserAgent(String userAgent) {
         this.userAgent = userAgent;
         if (userAgent == null) {
@@ -391,6 +546,41 @@ public abstract class HttpTransfer implements Runnable {
         return null;
     }
 
+    /**
+     * Get the number of content bytes transferred by the most recent attempt: the 
+     * response body for HttpDownload and HttpPost and the request body for HttpUpload.
+     * For a resumed download, this does not include the bytes from previous attempts.
+     * 
+     * @return number of bytes transferred
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Get the number of bytes received from the server by the most recent attempt. This
+     * differs from getBytesTransferred() when the response was content-encoded and
+     * decoded by this transfer (see setAcceptEncoding): bytes transferred are counted
+     * after decoding and wire bytes before.
+     * 
+     * @return number of bytes received
+     */
+    public long getWireBytes() {
+        if (wireCounter != null) {
+            return wireCounter.getByteCount();
+        }
+        return bytesTransferred;
+    }
+
+    /**
+     * Get a copy of the HTTP headers from the response.
+     * 
+     * @return map of header name to value
+     */
+    public Map<String,String> getResponseHeaders() {
+        return new TreeMap<String,String>(responseHeaders);
+    }
+
     /**
      * Set additional request headers. Do not set the same value twice by using this
      * method and the specific set methods (like setUserAgent, setContentType, etc) in this
@@ -479,6 +669,86 @@ public abstract class HttpTransfer implements Runnable {
         this.fireCancelOnce = false;
     }
 
+    /**
+     * Check the circuit breaker of the retry policy (if set) before making a request. If the
+     * circuit for the host is open, the transfer is deferred (if it is allowed to retry) or
+     * fails without making the request.
+     * 
+     * @throws TransientException to defer the request
+     * @throws IOException if the circuit is open and the transfer cannot retry
+     */
+    protected void checkCircuitBreaker()
+        throws IOException, TransientException {
+        if (retryPolicy == null) {
+            return;
+        }
+        String host = remoteURL.getHost();
+        long dt = retryPolicy.checkHost(host);
+        if (dt > 0) {
+            String msg = "circuit breaker open for host " + host;
+            if (!RetryReason.NONE.equals(retryReason) && numRetries < maxRetries) {
+                log.debug(msg + ": retry in " + dt + "ms");
+                numRetries++;
+                throw TransientException.withDelayMillis(msg, dt);
+            }
+            throw new IOException(msg);
+        }
+        this.uncheckedHost = host;
+    }
+
+    /**
+     * Record a failure in the retry policy (if set) for a request that was allowed by
+     * checkCircuitBreaker but ended (failed to connect, interrupted, cancelled) before
+     * readResponseCode recorded the outcome. Call this in a finally block after the request 
+     * so a circuit breaker trial request is never left pending.
+     */
+    protected void recordUncheckedFailure() {
+        String host = uncheckedHost;
+        if (retryPolicy != null && host != null) {
+            log.debug("no response recorded, failure for host " + host);
+            retryPolicy.recordFailure(host);
+        }
+        this.uncheckedHost = null;
+    }
+
+    /**
+     * Get the response code and record the outcome in the retry policy (if set).
+     * 
+     * @param conn connection
+     * @return response code
+     * @throws IOException failure to connect or read the response
+     */
+    protected int readResponseCode(HttpURLConnection conn)
+        throws IOException {
+        if (retryPolicy == null) {
+            return conn.getResponseCode();
+        }
+        String host = conn.getURL().getHost();
+        try {
+            int code = conn.getResponseCode();
+            if (RetryPolicy.isServerFailure(code)) {
+                retryPolicy.recordFailure(host);
+            } else {
+                retryPolicy.recordSuccess(host);
+            }
+            return code;
+        } catch (IOException ex) {
+            retryPolicy.recordFailure(host);
+            throw ex;
+        } finally {
+            this.uncheckedHost = null;
+        }
+    }
+
+    // validator for If-Range: a strong ETag or else Last-Modified, null if neither
+    static String getRangeValidator(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
     /**
      *  Determine if the failure was transient according to the config options.
      * @param code status code
@@ -532,22 +802,82 @@ public abstract class HttpTransfer implements Runnable {
         }
 
         if (trans && numRetries < maxRetries) {
-            if (dt == 0) {
-                if (curRetryDelay == 0) {
-                    curRetryDelay = retryDelay;
-                }
-                
-                if (curRetryDelay > 0) {
-                    dt = curRetryDelay;
-                    curRetryDelay *= 2;
-                } else {
-                    dt = DEFAULT_RETRY_DELAY;
-                }
+            retry(msg, dt);
+        }
+    }
+
+    /**
+     * Throw a TransientException to cause a retry after a failure that is known to be 
+     * transient, unless the retry budget of the retry policy (if set) is exhausted. The 
+     * caller is responsible for checking numRetries against maxRetries.
+     * 
+     * @param msg message
+     * @param retryAfter delay (seconds) requested by the server, 0 if none
+     * @throws TransientException to cause retry
+     */
+    protected void retry(String msg, int retryAfter)
+        throws TransientException {
+        if (retryPolicy != null) {
+            String host = remoteURL.getHost();
+            if (!retryPolicy.tryAcquireRetry(host)) {
+                log.debug("retry budget exhausted for " + host + ": not retrying");
+                return;
             }
-            
+            long dtms = retryPolicy.getRetryDelay(numRetries, 1000L * retryAfter);
             numRetries++;
-            throw new TransientException(msg, dt);
+            throw TransientException.withDelayMillis(msg, dtms);
+        }
+
+        int dt = retryAfter;
+        if (dt == 0) {
+            if (curRetryDelay == 0) {
+                curRetryDelay = retryDelay;
+            }
+
+            if (curRetryDelay > 0) {
+                dt = curRetryDelay;
+                curRetryDelay *= 2;
+            } else {
+                dt = DEFAULT_RETRY_DELAY;
+            }
         }
+
+        numRetries++;
+        throw new TransientException(msg, dt);
+    }
+
+    /**
+     * Wait before retrying after a TransientException. If the transfer is being run 
+     * by an HttpTransferExecutor with non-blocking retry, the delay is recorded instead
+     * so the executor can run the transfer again later without holding a thread.
+     * 
+     * @param ex the transient failure
+     * @return true if the caller should retry now, false if the retry was deferred
+     * @throws InterruptedException if interrupted while waiting
+     */
+    protected boolean waitForRetry(TransientException ex)
+        throws InterruptedException {
+        long dt = ex.getRetryDelayMillis();
+        fireEvent(TransferEvent.RETRYING);
+        if (deferRetry) {
+            log.debug("retry " + numRetries + " deferred for " + dt);
+            this.deferredRetry = Math.max(1L, dt);
+            return false;
+        }
+        log.debug("retry " + numRetries + " sleeping  for " + dt);
+        Thread.sleep(dt);
+        return true;
+    }
+
+    void setDeferRetry(boolean deferRetry) {
+        this.deferRetry = deferRetry;
+    }
+
+    // get and clear the delay (ms) before a deferred retry: 0 if no retry is needed
+    long takeDeferredRetry() {
+        long ret = deferredRetry;
+        this.deferredRetry = 0L;
+        return ret;
     }
 
     protected void findEventID(HttpURLConnection conn) {
@@ -607,22 +937,93 @@ public abstract class HttpTransfer implements Runnable {
     }
 
     /**
+     * Configure client certificate authentication using the X509CertificateChain
+     * in the current Subject (if any). The SSLSocketFactory is shared by all transfers
+     * using the same certificate chain so TLS sessions can be reused.
+     * 
      * @param sslConn
      */
     protected void initHTTPS(HttpsURLConnection sslConn) {
         log.debug("initHTTPS: lazy init");
         AccessControlContext ac = AccessController.getContext();
         Subject s = Subject.getSubject(ac);
-        SSLSocketFactory sf = SSLUtil.getSocketFactory(s);
+        SSLSocketFactory sf = SSLUtil.getCachedSocketFactory(s);
         if (sf != null) {
             log.debug("setting SSLSocketFactory on " + sslConn.getClass().getName());
             sslConn.setSSLSocketFactory(sf);
         }
     }
 
+    /**
+     * Add the Accept-Encoding header to the request if content-encoding negotiation
+     * is enabled.
+     * 
+     * @param conn
+     */
+    protected void setAcceptEncodingHeader(HttpURLConnection conn) {
+        this.wireCounter = null;
+        this.wireDigest = null;
+        if (acceptEncoding) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+    }
+
+    /**
+     * @param contentEncoding value of the Content-Encoding header
+     * @return true if the encoding will be decoded by decodeContent
+     */
+    protected boolean isDecodable(String contentEncoding) {
+        if (!acceptEncoding || contentEncoding == null) {
+            return false;
+        }
+        String ce = contentEncoding.trim().toLowerCase();
+        return "gzip".equals(ce) || "x-gzip".equals(ce) || "deflate".equals(ce);
+    }
+
+    /**
+     * Wrap the response stream to decode a gzip or deflate encoded response. The
+     * encoded bytes are counted (getWireBytes) and digested (getWireMD5) on the way.
+     * 
+     * @param conn
+     * @param istream the response stream
+     * @return the decoded stream or istream if the response is not encoded
+     * @throws IOException 
+     */
+    protected InputStream decodeContent(HttpURLConnection conn, InputStream istream)
+        throws IOException {
+        String ce = conn.getContentEncoding();
+        if (!isDecodable(ce)) {
+            return istream;
+        }
+        log.debug("decoding Content-Encoding: " + ce);
+        InputStream in = istream;
+        try {
+            this.wireDigest = MessageDigest.getInstance("MD5");
+            in = new DigestInputStream(in, wireDigest);
+        } catch (NoSuchAlgorithmException oops) {
+            log.warn("failed to create MessageDigest(MD5): " + oops);
+        }
+        this.wireCounter = new ByteCountInputStream(in);
+        if ("deflate".equalsIgnoreCase(ce.trim())) {
+            return new InflaterInputStream(wireCounter);
+        }
+        return new GZIPInputStream(wireCounter, bufferSize);
+    }
+
+    /**
+     * @return MD5 of the encoded bytes of a decoded response, otherwise null
+     */
+    protected String getWireMD5() {
+        if (wireDigest != null) {
+            return HexUtil.toHex(wireDigest.digest());
+        }
+        return null;
+    }
+
     /**
      * Perform the IO loop. This method reads from the input and writes to the output using an
-     * internal byte array of the specified size.
+     * internal byte array of the specified size. If pipelined IO is enabled, this delegates
+     * to pipelinedLoop.
      *
      * @param istream
      * @param ostream
@@ -636,10 +1037,21 @@ public abstract class HttpTransfer implements Runnable {
      */
     protected String ioLoop(InputStream istream, OutputStream ostream, int sz, long startingPos)
         throws IOException, InterruptedException {
-        log.debug("ioLoop: using java.io with byte[] buffer size " + sz + " startingPos " + startingPos);
+        if (pipelinedIO) {
+            return pipelinedLoop(istream, ostream, sz, startingPos);
+        }
+        log.debug("ioLoop: using java.io with byte[] buffer size " + sz + " startingPos " + startingPos
+            + " adaptive: " + adaptiveBuffer);
         long readStart = 0;
         long writeStart = 0;
-        byte[] buf = new byte[sz];
+        AdaptiveBuffer abuf;
+        if (adaptiveBuffer) {
+            abuf = new AdaptiveBuffer(sz, minBufferSize, maxBufferSize);
+        } else {
+            abuf = new AdaptiveBuffer(sz);
+        }
+        byte[] buf = abuf.getBuffer();
+        int len = abuf.getSize();
 
         MessageDigest md5 = null;
         try {
@@ -651,7 +1063,7 @@ public abstract class HttpTransfer implements Runnable {
         int nb = 0;
         int nb2 = 0;
         long tot = startingPos; // non-zero for resumed transfer
-        int n = 0;
+        loopBytes = 0L;
 
         if (progressListener != null) {
             progressListener.update(0, tot);
@@ -667,7 +1079,7 @@ public abstract class HttpTransfer implements Runnable {
                 readStart = System.currentTimeMillis();
             }
             
-            nb = istream.read(buf, 0, sz);
+            nb = istream.read(buf, 0, len);
             if (logIO) {
                 readTime += System.currentTimeMillis() - readStart;
             }
@@ -677,14 +1089,14 @@ public abstract class HttpTransfer implements Runnable {
             }
             
             if (nb != -1) {
-                if (nb < sz / 2) {
+                if (nb < len / 2) {
                     // try to get more data: merges a small chunk with a
                     // subsequent one to minimise write calls
                     if (logIO) {
                         readStart = System.currentTimeMillis();
                     }
                     
-                    nb2 = istream.read(buf, nb, sz - nb);
+                    nb2 = istream.read(buf, nb, len - nb);
                     if (logIO) {
                         readTime += System.currentTimeMillis() - readStart;
                     }
@@ -708,12 +1120,20 @@ public abstract class HttpTransfer implements Runnable {
                     writeTime += System.currentTimeMillis() - writeStart;
                 }
                 
+                throttle(nb);
                 tot += nb;
+                loopBytes += nb;
                 if (progressListener != null) {
                     progressListener.update(nb, tot);
                 }
+                
+                abuf.update(nb);
+                buf = abuf.getBuffer();
+                len = abuf.getSize();
             }
         }
+        this.ioBufferSize = abuf.getSize();
+        abuf.release(); // not returned to the pool after a failure
         if (md5 != null) {
             byte[] md5sum = md5.digest();
             String ret = HexUtil.toHex(md5sum);
@@ -723,6 +1143,96 @@ public abstract class HttpTransfer implements Runnable {
         return null;
     }
 
+    /**
+     * Perform the IO loop with separate read, write, and digest stages. The calling thread
+     * reads into buffers from a small pool (PIPELINE_BUFFERS) and hands them to the
+     * write and digest threads, which process them concurrently.
+     * 
+     * @param istream
+     * @param ostream
+     * @param sz buffer size
+     * @param startingPos for resumed transfers, this effects the reported value seen by
+     *     the progressListener (if set)
+     * @return string representation of the content md5sum
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String pipelinedLoop(InputStream istream, OutputStream ostream, int sz, long startingPos)
+        throws IOException, InterruptedException {
+        log.debug("pipelinedLoop: " + PIPELINE_BUFFERS + " x byte[" + sz + "] startingPos " + startingPos);
+        long readStart = 0;
+
+        MessageDigest md5 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5"); 
+        } catch (NoSuchAlgorithmException oops) {
+            log.warn("failed to create MessageDigest(MD5): " + oops);
+        }
+
+        long tot = startingPos; // non-zero for resumed transfer
+        loopBytes = 0L;
+        if (progressListener != null) {
+            progressListener.update(0, tot);
+        }
+
+        IOPipeline pipe = new IOPipeline(ostream, md5, PIPELINE_BUFFERS, sz, logIO);
+        try {
+            int nb = 0;
+            while (nb != -1) {
+                // check/clear interrupted flag and throw if necessary
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                IOPipeline.Chunk c = pipe.nextBuffer();
+                if (logIO) {
+                    readStart = System.currentTimeMillis();
+                }
+
+                // fill at least half the buffer to minimise write calls
+                int len = 0;
+                nb = istream.read(c.buf, 0, sz);
+                while (nb != -1) {
+                    len += nb;
+                    if (len >= sz / 2) {
+                        break;
+                    }
+                    nb = istream.read(c.buf, len, sz - len);
+                }
+                
+                if (logIO) {
+                    readTime += System.currentTimeMillis() - readStart;
+                }
+
+                if (requestStartTime != null) {
+                    responseLatency = System.currentTimeMillis() - requestStartTime;
+                }
+
+                if (len > 0) {
+                    pipe.submit(c, len);
+                    throttle(len);
+                    tot += len;
+                    loopBytes += len;
+                    if (progressListener != null) {
+                        progressListener.update(len, tot);
+                    }
+                } else {
+                    pipe.release(c);
+                }
+            }
+            pipe.finish();
+        } finally {
+            pipe.close();
+            writeTime += pipe.getWriteTime();
+        }
+
+        if (md5 != null) {
+            return HexUtil.toHex(md5.digest());
+        }
+
+        return null;
+    }
+
     /**
      * Perform the IO loop using the nio library.
      *
@@ -735,14 +1245,37 @@ public abstract class HttpTransfer implements Runnable {
      */
     protected void nioLoop(InputStream istream, OutputStream ostream, int sz, long startingPos)
         throws IOException, InterruptedException {
-        // Note: If NIO is enabled, the logIO option should be added at
-        // the same time (see ioLoop).
-        
-        log.debug("[Download] nioLoop: using java.nio with ByteBuffer size " + sz);
-        // check/clear interrupted flag and throw if necessary
-        if (Thread.interrupted()) {
-            throw new InterruptedException();
+        WritableByteChannel wbc;
+        if (ostream instanceof FileOutputStream) {
+            wbc = ((FileOutputStream) ostream).getChannel();
+        } else {
+            wbc = Channels.newChannel(ostream);
         }
+        nioLoop(istream, wbc, sz, startingPos);
+    }
+
+    /**
+     * Perform the IO loop using the nio library. This method reads from the input into a
+     * direct ByteBuffer (reused by all transfers in the current thread), updates the MD5
+     * digest from that buffer, and writes it to the output channel. When the output
+     * is a FileChannel, the data does not have to be copied to a temporary direct 
+     * buffer by the JVM. If the input is a FileInputStream, data is read via the
+     * associated FileChannel.
+     * 
+     * @param istream
+     * @param dest output channel (typically a FileChannel)
+     * @param sz buffer size
+     * @param startingPos for resumed transfers, this effects the reported value seen by
+     *     the progressListener (if set)
+     * @return string representation of the content md5sum
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String nioLoop(InputStream istream, WritableByteChannel dest, int sz, long startingPos)
+        throws IOException, InterruptedException {
+        log.debug("nioLoop: using java.nio with direct ByteBuffer size " + sz + " startingPos " + startingPos);
+        long readStart = 0;
+        long writeStart = 0;
         
         MessageDigest md5 = null;
         try { 
@@ -751,34 +1284,144 @@ public abstract class HttpTransfer implements Runnable {
             log.warn("failed to create MessageDigest(MD5): " + oops);
         }
 
-        ReadableByteChannel rbc = Channels.newChannel(istream);
-        WritableByteChannel wbc = Channels.newChannel(ostream);
+        ReadableByteChannel rbc;
+        if (istream instanceof FileInputStream) {
+            rbc = ((FileInputStream) istream).getChannel();
+        } else {
+            rbc = Channels.newChannel(istream);
+        }
 
+        ByteBuffer buffer = getDirectBuffer(sz);
         long tot = startingPos; // non-zero for resumed transfer
-        int count = 0;
-
-        ByteBuffer buffer = ByteBuffer.allocate(sz);
+        int nb = 0;
+        loopBytes = 0L;
 
         if (progressListener != null) {
-            progressListener.update(count, tot);
+            progressListener.update(0, tot);
         }
 
-        while (count != -1) {
+        while (nb != -1) {
             // check/clear interrupted flag and throw if necessary
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
 
-            count = rbc.read(buffer);
-            if (count != -1) {
-                wbc.write((ByteBuffer)buffer.flip());
+            if (logIO) {
+                readStart = System.currentTimeMillis();
+            }
+            
+            // fill at least half the buffer to minimise write calls; the pooled
+            // buffer may be larger than requested
+            buffer.clear();
+            buffer.limit(sz);
+            nb = rbc.read(buffer);
+            while (nb != -1 && buffer.position() < sz / 2) {
+                nb = rbc.read(buffer);
+            }
+            
+            if (logIO) {
+                readTime += System.currentTimeMillis() - readStart;
+            }
+            
+            if (requestStartTime != null) {
+                responseLatency = System.currentTimeMillis() - requestStartTime;
+            }
+            
+            int count = buffer.position();
+            if (count > 0) {
                 buffer.flip();
+                if (md5 != null) {
+                    buffer.mark();
+                    md5.update(buffer);
+                    buffer.reset();
+                }
+                
+                if (logIO) {
+                    writeStart = System.currentTimeMillis();
+                }
+                
+                while (buffer.hasRemaining()) {
+                    dest.write(buffer);
+                }
+                
+                if (logIO) {
+                    writeTime += System.currentTimeMillis() - writeStart;
+                }
+                
+                throttle(count);
                 tot += count;
+                loopBytes += count;
                 if (progressListener != null) {
                     progressListener.update(count, tot);
                 }
             }
         }
+        
+        if (md5 != null) {
+            byte[] md5sum = md5.digest();
+            return HexUtil.toHex(md5sum);
+        }
+        
+        return null;
+    }
+
+    /**
+     * Account for bytes transferred with the bandwidth limiter (if set), blocking until
+     * they fit within the limits.
+     * 
+     * @param numBytes number of bytes transferred
+     * @throws InterruptedException if interrupted while waiting
+     */
+    protected void throttle(long numBytes) throws InterruptedException {
+        if (bandwidthLimiter != null && numBytes > 0) {
+            String host = null;
+            if (remoteURL != null) {
+                host = remoteURL.getHost();
+            }
+            bandwidthLimiter.acquire(host, numBytes);
+        }
+    }
+
+    /**
+     * Wrap a request output stream so that bytes written are throttled by the bandwidth
+     * limiter (if set).
+     * 
+     * @param ostream the request output stream
+     * @return the wrapped stream or the original if there is no limiter
+     */
+    protected OutputStream throttle(OutputStream ostream) {
+        if (bandwidthLimiter == null) {
+            return ostream;
+        }
+        return new FilterOutputStream(ostream) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    throttle(len);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while throttled");
+                }
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    // direct buffers are expensive to allocate: keep one per thread
+    private static ByteBuffer getDirectBuffer(int sz) {
+        ByteBuffer ret = nioBuffer.get();
+        if (ret == null || ret.capacity() < sz) {
+            ret = ByteBuffer.allocateDirect(sz);
+            nioBuffer.set(ret);
+        }
+        ret.clear();
+        ret.limit(sz);
+        return ret;
     }
 
     protected void setRequestSSOCookie(HttpURLConnection conn) {
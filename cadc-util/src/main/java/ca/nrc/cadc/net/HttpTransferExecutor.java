@@ -0,0 +1,363 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.auth.RunnableAction;
+import java.security.AccessController;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+import org.apache.log4j.Logger;
+
+/**
+ * Executor for running HTTP transfers (HttpDownload, HttpUpload, HttpPost, HttpDelete)
+ * asynchronously with bounded parallelism. Transfers are run with the Subject of the
+ * caller that submitted them so the usual authentication (client certificate, cookies)
+ * is used.
+ * 
+ * <p>The number of transfers waiting in the queue can optionally be bounded: when the
+ * queue is full, submit blocks until a transfer completes. This provides back-pressure
+ * to callers that submit large numbers of transfers.
+ * 
+ * <p>With non-blocking retry enabled, a transfer that fails with a transient error does
+ * not sleep in its worker thread: it is handed to a delay scheduler and submitted to the
+ * pool again when the retry delay expires, so other transfers can use the thread. A 
+ * transfer waiting to retry still counts against the bounded queue.
+ * 
+ * <p>The default shared executor uses the parallelism from the system property
+ * <code>ca.nrc.cadc.net.HttpTransferExecutor.parallelism</code> (default: 8) and 
+ * daemon threads.
+ */
+public class HttpTransferExecutor {
+    private static final Logger log = Logger.getLogger(HttpTransferExecutor.class);
+
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private static HttpTransferExecutor sharedExecutor;
+
+    private final ThreadPoolExecutor pool;
+    private final Semaphore capacity;
+    private final int parallelism;
+    private volatile boolean nonBlockingRetry = false;
+    private ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Create an executor with unbounded queue.
+     * 
+     * @param parallelism maximum number of concurrent transfers
+     */
+    public HttpTransferExecutor(int parallelism) {
+        this(parallelism, -1);
+    }
+
+    /**
+     * Create an executor.
+     * 
+     * @param parallelism maximum number of concurrent transfers
+     * @param maxQueued maximum number of transfers waiting to run; negative for unbounded
+     */
+    public HttpTransferExecutor(int parallelism, int maxQueued) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be 1 or more: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.pool = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new TransferThreadFactory());
+        this.pool.allowCoreThreadTimeOut(true);
+        if (maxQueued >= 0) {
+            this.capacity = new Semaphore(parallelism + maxQueued);
+        } else {
+            this.capacity = null;
+        }
+    }
+
+    /**
+     * Get the shared executor. 
+     * 
+     * @return the shared executor
+     */
+    public static synchronized HttpTransferExecutor getSharedExecutor() {
+        if (sharedExecutor == null) {
+            int par = DEFAULT_PARALLELISM;
+            String val = System.getProperty(HttpTransferExecutor.class.getName() + ".parallelism");
+            if (val != null) {
+                try {
+                    par = Integer.parseInt(val.trim());
+                } catch (NumberFormatException ex) {
+                    log.warn("invalid parallelism: " + val + ", using default " + DEFAULT_PARALLELISM);
+                }
+            }
+            sharedExecutor = new HttpTransferExecutor(par);
+        }
+        return sharedExecutor;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Enable non-blocking retry for transfers submitted after this call.
+     * 
+     * @param nonBlockingRetry true to release the worker thread while waiting to retry
+     */
+    public void setNonBlockingRetry(boolean nonBlockingRetry) {
+        this.nonBlockingRetry = nonBlockingRetry;
+    }
+
+    public boolean getNonBlockingRetry() {
+        return nonBlockingRetry;
+    }
+
+    /**
+     * @return number of transfers waiting for a retry delay (non-blocking retry)
+     */
+    public synchronized int getRetryWaitingCount() {
+        if (scheduler == null) {
+            return 0;
+        }
+        return scheduler.getQueue().size();
+    }
+
+    /**
+     * @return number of transfers currently running
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return number of transfers waiting to run
+     */
+    public int getQueuedCount() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Submit a transfer for asynchronous execution. The transfer will be run with
+     * the Subject from the current AccessControlContext. If the queue is bounded and
+     * full, this method blocks until there is room.
+     * 
+     * @param <T> the transfer type
+     * @param transfer the transfer to run
+     * @return handle to wait for, cancel, or get the result of the transfer
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public <T extends HttpTransfer> TransferFuture<T> submit(final T transfer)
+        throws InterruptedException {
+        return submit(transfer, null);
+    }
+
+    /**
+     * Submit a transfer for asynchronous execution and add the TransferFuture to the
+     * specified queue when it completes (or is cancelled). This allows a caller to 
+     * process transfers in completion order, like an ExecutorCompletionService.
+     * 
+     * @param <T> the transfer type
+     * @param transfer the transfer to run
+     * @param completionQueue queue to add the future to when done, may be null
+     * @return handle to wait for, cancel, or get the result of the transfer
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public <T extends HttpTransfer> TransferFuture<T> submit(final T transfer, BlockingQueue<? super TransferFuture<T>> completionQueue)
+        throws InterruptedException {
+        if (transfer == null) {
+            throw new IllegalArgumentException("transfer cannot be null");
+        }
+        final Subject subject = Subject.getSubject(AccessController.getContext());
+        if (capacity != null) {
+            capacity.acquire();
+        }
+        try {
+            TransferFuture<T> ret = createFuture(transfer, subject, completionQueue);
+            log.debug("submit: " + transfer);
+            pool.execute(ret);
+            return ret;
+        } catch (RuntimeException ex) {
+            if (capacity != null) {
+                capacity.release();
+            }
+            throw ex;
+        }
+    }
+
+    <T extends HttpTransfer> TransferFuture<T> createFuture(final T transfer, final Subject subject,
+            BlockingQueue<? super TransferFuture<T>> completionQueue) {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final boolean deferRetry = nonBlockingRetry;
+        Callable<TransferResult> task = new Callable<TransferResult>() {
+            @Override
+            public TransferResult call() throws Exception {
+                log.debug("start: " + transfer);
+                transfer.setDeferRetry(deferRetry);
+                try {
+                    if (subject != null) {
+                        Subject.doAs(subject, new RunnableAction(transfer));
+                    } else {
+                        transfer.run();
+                    }
+                } finally {
+                    transfer.setDeferRetry(false);
+                }
+                TransferResult ret = new TransferResult(transfer, cancelled.get());
+                log.debug("done: " + ret);
+                return ret;
+            }
+        };
+        return new TransferFuture<T>(transfer, task, cancelled, this, completionQueue);
+    }
+
+    // called when a transfer deferred a retry: returns false if the executor is shut down
+    synchronized boolean scheduleRetry(final TransferFuture<?> f, long delay) {
+        if (pool.isShutdown()) {
+            return false;
+        }
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new TransferThreadFactory());
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        log.debug("retry in " + delay + "ms: " + f.getTransfer());
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (f.isDone()) {
+                    return; // cancelled while waiting
+                }
+                try {
+                    pool.execute(f);
+                } catch (RejectedExecutionException ex) {
+                    log.debug("executor shut down: retry in scheduler thread: " + f.getTransfer());
+                    f.run();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // called once when a TransferFuture has stopped running or was cancelled before it ran
+    void transferDone(TransferFuture<?> f) {
+        if (capacity != null) {
+            capacity.release();
+        }
+    }
+
+    /**
+     * Stop accepting new transfers. Queued and running transfers will complete.
+     */
+    public synchronized void shutdown() {
+        pool.shutdown();
+        if (scheduler != null) {
+            scheduler.shutdown(); // scheduled retries still run
+        }
+    }
+
+    /**
+     * Wait for queued and running transfers to complete after shutdown.
+     * 
+     * @param timeout
+     * @param unit
+     * @return true if all transfers completed, false if the timeout elapsed
+     * @throws InterruptedException 
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        ScheduledThreadPoolExecutor s;
+        synchronized (this) {
+            s = scheduler;
+        }
+        if (s != null && !s.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        return pool.awaitTermination(Math.max(0L, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private static class TransferThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNum = new AtomicInteger();
+        private final int num = poolNum.incrementAndGet();
+        private final AtomicInteger threadNum = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, HttpTransferExecutor.class.getSimpleName() + "-" + num + "-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -69,7 +69,9 @@
 
 package ca.nrc.cadc.net;
 
+import ca.nrc.cadc.io.ByteCountOutputStream;
 import ca.nrc.cadc.net.event.TransferEvent;
+import ca.nrc.cadc.util.HexUtil;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -80,10 +82,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.AccessControlException;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -100,6 +107,8 @@ import org.apache.log4j.Logger;
 public class HttpUpload extends HttpTransfer {
     private static Logger log = Logger.getLogger(HttpUpload.class);
 
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     private String contentType;
     private String contentEncoding;
     private String contentMD5;
@@ -108,6 +117,9 @@ public class HttpUpload extends HttpTransfer {
 
     private InputStream istream;
     private OutputStreamWrapper wrapper;
+    private long chunkSize = 0L;
+    private boolean verifyChecksum = false;
+    private String computedMD5;
 
     public HttpUpload(File src, URL dest) {
         super(false);
@@ -182,6 +194,66 @@ public class HttpUpload extends HttpTransfer {
         return responseBody;
     }
 
+    /**
+     * Enable resumable upload of a file in chunks of the specified size. Each chunk 
+     * is sent in a separate PUT request with a Content-Range header 
+     * (<code>bytes start-end/total</code>); the server responds with 204 (No Content)
+     * for intermediate chunks and 200 or 201 when the upload is complete, with a 
+     * Range header (<code>bytes=0-last</code>) describing the bytes committed so far.
+     * If a chunk fails and the upload is retried (see setRetry), the committed offset is 
+     * queried with an empty PUT (<code>Content-Range: bytes *&#47;total</code>) and
+     * the upload resumes from there. A 416 response to a chunk (offset does not match 
+     * the committed bytes) also causes the upload to resume from the committed offset.
+     * If all bytes are committed without a 200 or 201 response, a final status query 
+     * asks the server to complete the upload and the upload fails if it does not; a 
+     * committed offset larger than the file is also a failure.
+     * 
+     * <p>Chunked mode is only used when the source is a (non-empty) File and requires 
+     * a server that supports this protocol (e.g. cadc-rest ResumableUploadAction).
+     * 
+     * @param chunkSize chunk size in bytes, 0 to disable
+     */
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("chunkSize cannot be negative: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Enable verification of the uploaded content. The MD5 checksum is computed while
+     * the content is sent (no separate pass over the source is needed) and compared 
+     * with the Content-MD5 the server reports in the response or, if the response
+     * does not include it, in the response to a follow-up HEAD request. A mismatch
+     * causes the upload to fail with an IncorrectContentChecksumException. If the server
+     * does not report a checksum, the upload succeeds and the computed checksum is 
+     * available via getContentMD5().
+     * 
+     * @param verifyChecksum true to compute and verify the checksum
+     */
+    public void setVerifyChecksum(boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    public boolean getVerifyChecksum() {
+        return verifyChecksum;
+    }
+
+    /**
+     * @return the MD5 checksum computed while sending (see setVerifyChecksum) or 
+     *     the value supplied via setContentMD5
+     */
+    public String getContentMD5() {
+        if (computedMD5 != null) {
+            return computedMD5;
+        }
+        return contentMD5;
+    }
+
     @Override
     public String toString() { 
         return "HttpUpload[" + remoteURL + "," + localFile + "]"; 
@@ -205,10 +277,7 @@ public class HttpUpload extends HttpTransfer {
                 done = true;
             } catch (TransientException ex) {
                 try {
-                    long dt = 1000L * ex.getRetryDelay();
-                    log.debug("retry " + numRetries + " sleeping  for " + dt);
-                    fireEvent(TransferEvent.RETRYING);
-                    Thread.sleep(dt);
+                    done = !waitForRetry(ex);
                 } catch (InterruptedException iex) {
                     log.debug("retry interrupted");
                     this.go = false;
@@ -231,14 +300,19 @@ public class HttpUpload extends HttpTransfer {
 
             fireEvent(TransferEvent.CONNECTING);
 
-            HttpURLConnection conn = (HttpURLConnection) this.remoteURL.openConnection();
+            checkCircuitBreaker();
+            if (chunkSize > 0 && localFile != null && localFile.length() > 0) {
+                doChunkedPut();
+            } else {
+                HttpURLConnection conn = (HttpURLConnection) this.remoteURL.openConnection();
 
-            if (conn instanceof HttpsURLConnection) {
-                HttpsURLConnection sslConn = (HttpsURLConnection) conn;
-                initHTTPS(sslConn);
-            }
+                if (conn instanceof HttpsURLConnection) {
+                    HttpsURLConnection sslConn = (HttpsURLConnection) conn;
+                    initHTTPS(sslConn);
+                }
 
-            doPut(conn);
+                doPut(conn);
+            }
         } catch (InterruptedException iex) {
             // need to catch this or it looks like a failure instead of a cancel
             this.go = false;
@@ -249,6 +323,7 @@ public class HttpUpload extends HttpTransfer {
         } catch (Throwable t) {
             failure = t;
         } finally {
+            recordUncheckedFailure();
             if (istream != null) {
                 log.debug("closing InputStream");
                 try { 
@@ -348,6 +423,8 @@ public class HttpUpload extends HttpTransfer {
 
         IOException ioex = null;
         FileInputStream fin = null;
+        String md5 = null;
+        this.bytesTransferred = 0L;
         InputStream in = null;
         try {
             ostream = conn.getOutputStream();
@@ -372,9 +449,21 @@ public class HttpUpload extends HttpTransfer {
             fireEvent(TransferEvent.TRANSFERING);
 
             if (in != null) {
-                ioLoop(in, ostream, 2 * this.bufferSize, 0);
+                md5 = ioLoop(in, ostream, 2 * this.bufferSize, 0);
+                this.bytesTransferred = loopBytes;
             } else {
-                wrapper.write(ostream);
+                MessageDigest md = null;
+                OutputStream os = throttle(ostream);
+                if (verifyChecksum) {
+                    md = createMD5();
+                    os = new DigestOutputStream(os, md);
+                }
+                ByteCountOutputStream bcos = new ByteCountOutputStream(os);
+                wrapper.write(bcos);
+                this.bytesTransferred = bcos.getByteCount();
+                if (md != null) {
+                    md5 = HexUtil.toHex(md.digest());
+                }
             }
 
             log.debug("OutputStream.flush");
@@ -409,27 +498,14 @@ public class HttpUpload extends HttpTransfer {
             }
         }
 
-        int code = conn.getResponseCode();
+        int code = readResponseCode(conn);
         log.debug("code: " + code);
         // generic capture
         captureResponseHeaders(conn);
         
         this.responseCode = code;
         if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_CREATED) {
-            String msg = "(" + code + ") " + conn.getResponseMessage();
-            checkTransient(code, msg, conn);
-            switch (code) {
-                case HttpURLConnection.HTTP_UNAUTHORIZED:
-                    throw new AccessControlException("authentication failed " + msg);
-                case HttpURLConnection.HTTP_FORBIDDEN:
-                    throw new AccessControlException("authorization failed " + msg);
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    throw new FileNotFoundException("resource not found " + msg);
-                case HttpURLConnection.HTTP_ENTITY_TOO_LARGE:
-                    throw new IOException("No space left - " + msg);
-                default:
-                    throw new IOException(msg);
-            }
+            handleError(code, conn);
         }
         
         if (ioex != null) {
@@ -437,6 +513,361 @@ public class HttpUpload extends HttpTransfer {
             throw ioex;
         }
 
+        readResponseBody(conn);
+        
+        if (verifyChecksum) {
+            verifyContentMD5(conn, md5);
+        }
+    }
+
+    // compare the checksum computed while sending with the one reported by the server
+    private void verifyContentMD5(HttpURLConnection conn, String md5)
+        throws IOException {
+        this.computedMD5 = md5;
+        if (md5 == null) {
+            log.warn("failed to compute MD5 during upload: cannot verify " + remoteURL);
+            return;
+        }
+        String serverMD5 = conn.getHeaderField("Content-MD5");
+        if (serverMD5 == null) {
+            serverMD5 = headContentMD5();
+        }
+        if (serverMD5 == null) {
+            log.debug("server did not report Content-MD5: cannot verify " + md5);
+            return;
+        }
+        if (!md5.equalsIgnoreCase(serverMD5.trim())) {
+            throw new IncorrectContentChecksumException("MD5 mismatch: " + serverMD5 + " (server) != " 
+                + md5 + " (bytes sent) url: " + remoteURL);
+        }
+        log.debug("verified Content-MD5: " + md5);
+    }
+
+    private String headContentMD5()
+        throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) this.remoteURL.openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            HttpsURLConnection sslConn = (HttpsURLConnection) conn;
+            initHTTPS(sslConn);
+        }
+        setRequestSSOCookie(conn);
+        conn.setRequestMethod("HEAD");
+        conn.setUseCaches(false);
+        conn.setInstanceFollowRedirects(false);
+        setRequestHeaders(conn);
+        int code = conn.getResponseCode();
+        log.debug("HEAD " + remoteURL + " code: " + code);
+        if (code != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        return conn.getHeaderField("Content-MD5");
+    }
+
+    private static MessageDigest createMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("BUG: failed to create MessageDigest(MD5)", ex);
+        }
+    }
+
+    // bring the digest up to date with the bytes before offset (only needed when resuming)
+    private void updateDigest(MessageDigest md, RandomAccessFile raf, long offset)
+        throws IOException {
+        md.reset();
+        raf.seek(0L);
+        byte[] buf = new byte[bufferSize];
+        long remaining = offset;
+        while (remaining > 0) {
+            int n = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n == -1) {
+                throw new IOException("unexpected end of file: " + localFile);
+            }
+            md.update(buf, 0, n);
+            remaining -= n;
+        }
+        log.debug("digest updated to offset " + offset);
+    }
+
+    private void handleError(int code, HttpURLConnection conn)
+        throws IOException, TransientException {
+        String msg = "(" + code + ") " + conn.getResponseMessage();
+        checkTransient(code, msg, conn);
+        switch (code) {
+            case HttpURLConnection.HTTP_UNAUTHORIZED:
+                throw new AccessControlException("authentication failed " + msg);
+            case HttpURLConnection.HTTP_FORBIDDEN:
+                throw new AccessControlException("authorization failed " + msg);
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                throw new FileNotFoundException("resource not found " + msg);
+            case HttpURLConnection.HTTP_ENTITY_TOO_LARGE:
+                throw new IOException("No space left - " + msg);
+            default:
+                throw new IOException(msg);
+        }
+    }
+
+    // upload the file in chunks, resuming from the committed offset when retrying
+    private void doChunkedPut()
+        throws IOException, InterruptedException, TransientException {
+        final long total = localFile.length();
+        this.bytesTransferred = 0L;
+        long offset = 0L;
+        HttpURLConnection done = null; // response that completed the upload
+        if (numRetries > 0) {
+            HttpURLConnection qconn = queryStatus(total);
+            offset = getCommittedOffset(qconn, total);
+            if (isComplete(offset, total)) {
+                done = qconn;
+            }
+            log.debug("resume upload: " + offset + "/" + total);
+        }
+
+        fireEvent(TransferEvent.TRANSFERING);
+        MessageDigest md = null;
+        long digestOffset = 0L; // number of bytes in md or -1 if unknown
+        if (verifyChecksum) {
+            md = createMD5();
+        }
+        RandomAccessFile raf = new RandomAccessFile(localFile, "r");
+        try {
+            while (done == null && offset < total) {
+                long len = Math.min(chunkSize, total - offset);
+                long end = offset + len - 1;
+                String range = "bytes " + offset + "-" + end + "/" + total;
+                if (md != null && digestOffset != offset) {
+                    updateDigest(md, raf, offset);
+                    digestOffset = offset;
+                }
+                HttpURLConnection conn = openChunkConnection(len, range, end + 1 == total);
+                IOException ioex = null;
+                try {
+                    raf.seek(offset);
+                    InputStream in = new BufferedInputStream(new ChunkInputStream(raf, len), bufferSize);
+                    if (md != null) {
+                        in = new DigestInputStream(in, md);
+                        digestOffset = -1L;
+                    }
+                    OutputStream ostream = new BufferedOutputStream(conn.getOutputStream(), bufferSize);
+                    ioLoop(in, ostream, 2 * bufferSize, offset);
+                    this.bytesTransferred += loopBytes;
+                    ostream.flush();
+                    ostream.close();
+                    if (md != null) {
+                        digestOffset = end + 1;
+                    }
+                } catch (IOException ex) {
+                    // the server may have responded without reading the whole chunk: check response
+                    log.debug("failed to write chunk " + range + ": " + ex);
+                    ioex = ex;
+                }
+                int code;
+                try {
+                    code = readResponseCode(conn);
+                } catch (IOException ex) {
+                    // failed part way through a chunk: committed offset is queried on retry
+                    if (ioex == null) {
+                        ioex = ex;
+                    }
+                    if (!RetryReason.NONE.equals(retryReason) && numRetries < maxRetries) {
+                        retry("upload failed at chunk " + range + ": " + ioex, 0);
+                    }
+                    throw ioex;
+                }
+                captureResponseHeaders(conn);
+                this.responseCode = code;
+                log.debug("chunk " + range + " code: " + code);
+
+                if (code == HTTP_RANGE_NOT_SATISFIABLE) {
+                    // server has a different offset
+                    long committed = parseCommittedOffset(conn.getHeaderField("Range"), 0L);
+                    log.debug("chunk offset " + offset + " rejected, server committed offset: " + committed);
+                    if (committed == offset) {
+                        throw new IOException("(" + code + ") " + conn.getResponseMessage() + ": " + range);
+                    }
+                    checkCommittedOffset(committed, total);
+                    offset = committed;
+                } else if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_CREATED
+                    || code == HttpURLConnection.HTTP_NO_CONTENT) {
+                    long committed = parseCommittedOffset(conn.getHeaderField("Range"), -1L);
+                    HttpURLConnection rconn = conn;
+                    if (ioex != null || committed < 0) {
+                        // chunk not fully sent or no Range in the response: ask the server
+                        log.debug("chunk " + range + " committed offset unknown, querying server");
+                        rconn = queryStatus(total);
+                        committed = getCommittedOffset(rconn, total);
+                        if (committed <= offset) {
+                            if (ioex != null) {
+                                throw ioex;
+                            }
+                            throw new IOException("no bytes committed for chunk " + range);
+                        }
+                    }
+                    checkCommittedOffset(committed, total);
+                    offset = committed;
+                    if (isComplete(offset, total)) {
+                        done = rconn;
+                    }
+                } else {
+                    handleError(code, conn);
+                }
+            }
+
+            if (done == null) {
+                // all bytes committed by earlier requests but the upload was not completed 
+                // (e.g. the server failed after the last chunk): a status query completes it
+                log.debug("all bytes committed, requesting completion");
+                HttpURLConnection qconn = queryStatus(total);
+                offset = getCommittedOffset(qconn, total);
+                if (!isComplete(offset, total)) {
+                    throw new IOException("upload not completed: (" + responseCode + ") " 
+                        + qconn.getResponseMessage() + " committed: " + offset + "/" + total);
+                }
+                done = qconn;
+            }
+            readResponseBody(done);
+            if (md != null) {
+                if (digestOffset != total) {
+                    updateDigest(md, raf, total);
+                }
+                verifyContentMD5(done, HexUtil.toHex(md.digest()));
+            }
+        } finally {
+            try { 
+                raf.close(); 
+            } catch (Exception ignore) { 
+                // do nothing
+            }
+        }
+    }
+
+    // send a status query; the response code is in responseCode
+    private HttpURLConnection queryStatus(long total)
+        throws IOException, TransientException {
+        HttpURLConnection conn = openChunkConnection(0L, "bytes */" + total, false);
+        conn.getOutputStream().close();
+        int code = readResponseCode(conn);
+        captureResponseHeaders(conn);
+        this.responseCode = code;
+        log.debug("query committed offset code: " + code);
+        return conn;
+    }
+
+    // committed offset from the status query response in conn
+    private long getCommittedOffset(HttpURLConnection conn, long total)
+        throws IOException, TransientException {
+        int code = responseCode;
+        if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_CREATED
+            || code == HttpURLConnection.HTTP_NO_CONTENT || code == HTTP_RANGE_NOT_SATISFIABLE) {
+            long ret = parseCommittedOffset(conn.getHeaderField("Range"), 0L);
+            checkCommittedOffset(ret, total);
+            return ret;
+        }
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return 0L; // nothing committed
+        }
+        handleError(code, conn);
+        return 0L; // not reached
+    }
+
+    // the last response completed the upload: all bytes committed and 200 or 201
+    private boolean isComplete(long committed, long total) {
+        return committed == total 
+            && (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED);
+    }
+
+    private static void checkCommittedOffset(long committed, long total) throws IOException {
+        if (committed > total) {
+            throw new IOException("server committed offset " + committed + " exceeds upload length " + total);
+        }
+    }
+
+    private HttpURLConnection openChunkConnection(long len, String contentRange, boolean last)
+        throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) this.remoteURL.openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            HttpsURLConnection sslConn = (HttpsURLConnection) conn;
+            initHTTPS(sslConn);
+        }
+        conn.setFixedLengthStreamingMode(len);
+        setRequestSSOCookie(conn);
+        conn.setRequestMethod("PUT");
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        conn.setDoOutput(true);
+        conn.setInstanceFollowRedirects(false);
+        if (contentType != null) {
+            conn.setRequestProperty("Content-Type", contentType);
+        }
+        if (contentEncoding != null) {
+            conn.setRequestProperty("Content-Encoding", contentEncoding);
+        }
+        if (last && contentMD5 != null) {
+            // checksum of the complete file
+            conn.setRequestProperty("Content-MD5", contentMD5);
+        }
+        conn.setRequestProperty("Content-Range", contentRange);
+        log.debug("PUT " + remoteURL + " Content-Range: " + contentRange);
+        setRequestHeaders(conn);
+        return conn;
+    }
+
+    // parse Range: bytes=0-{last} to get the number of committed bytes
+    static long parseCommittedOffset(String range, long defaultValue) {
+        if (range == null) {
+            return defaultValue;
+        }
+        String r = range.trim();
+        if (!r.startsWith("bytes=")) {
+            log.debug("ignoring invalid Range: " + range);
+            return defaultValue;
+        }
+        String[] se = r.substring("bytes=".length()).split("-");
+        try {
+            return Long.parseLong(se[1].trim()) + 1L;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            log.debug("ignoring invalid Range: " + range);
+            return defaultValue;
+        }
+    }
+
+    // read a fixed number of bytes from the current file position
+    private static class ChunkInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private long remaining;
+
+        ChunkInputStream(RandomAccessFile raf, long len) {
+            this.raf = raf;
+            this.remaining = len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int ret = raf.read();
+            if (ret != -1) {
+                remaining--;
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = raf.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    private void readResponseBody(HttpURLConnection conn)
+        throws IOException, InterruptedException {
         // Write reponse body for retrieval.
         InputStream inputStream = conn.getInputStream();
         if (inputStream != null) {
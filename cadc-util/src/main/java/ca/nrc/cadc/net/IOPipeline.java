@@ -0,0 +1,328 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Buffer pipeline used by HttpTransfer in pipelined IO mode. The caller (reader) takes
+ * a free buffer, fills it, and submits it; the write and digest stages process the
+ * filled buffers concurrently in separate threads and the buffer is returned to the
+ * free pool when both are done with it. The fixed number of buffers limits how far
+ * the reader can get ahead of the slowest stage (back-pressure).
+ */
+class IOPipeline {
+    private static final Logger log = Logger.getLogger(IOPipeline.class);
+
+    private static final Chunk EOF = new Chunk(new byte[0]);
+    private static ExecutorService stagePool;
+
+    private final OutputStream ostream;
+    private final MessageDigest digest;
+    private final boolean logIO;
+    private final int numStages;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> writeQueue = new LinkedBlockingQueue<Chunk>();
+    private final BlockingQueue<Chunk> digestQueue = new LinkedBlockingQueue<Chunk>();
+    private final Future<?> writer;
+    private final Future<?> digester;
+
+    private volatile Throwable failure;
+    private long writeTime = 0L;
+    private boolean closed = false;
+
+    static class Chunk {
+        final byte[] buf;
+        int len;
+        final AtomicInteger refs = new AtomicInteger();
+
+        Chunk(byte[] buf) {
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * Create and start a pipeline.
+     * 
+     * @param ostream destination for the data
+     * @param digest digest to update, may be null
+     * @param numBuffers number of buffers in the pool
+     * @param sz size of each buffer
+     * @param logIO accumulate time spent in write calls
+     */
+    IOPipeline(OutputStream ostream, MessageDigest digest, int numBuffers, int sz, boolean logIO) {
+        this.ostream = ostream;
+        this.digest = digest;
+        this.logIO = logIO;
+        this.free = new ArrayBlockingQueue<Chunk>(numBuffers);
+        for (int i = 0; i < numBuffers; i++) {
+            free.add(new Chunk(new byte[sz]));
+        }
+        ExecutorService pool = getStagePool();
+        this.writer = pool.submit(new WriteStage());
+        if (digest != null) {
+            this.numStages = 2;
+            this.digester = pool.submit(new DigestStage());
+        } else {
+            this.numStages = 1;
+            this.digester = null;
+        }
+    }
+
+    private static synchronized ExecutorService getStagePool() {
+        if (stagePool == null) {
+            stagePool = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger threadNum = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, IOPipeline.class.getSimpleName() + "-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return stagePool;
+    }
+
+    /**
+     * Get a free buffer, waiting until one is available.
+     * 
+     * @return an empty buffer
+     * @throws IOException if a previous write failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Chunk nextBuffer() throws IOException, InterruptedException {
+        checkFailure();
+        return free.take();
+    }
+
+    /**
+     * Submit a filled buffer to the write and digest stages.
+     * 
+     * @param c the buffer
+     * @param len number of bytes in the buffer
+     */
+    void submit(Chunk c, int len) {
+        c.len = len;
+        c.refs.set(numStages);
+        writeQueue.add(c);
+        if (digester != null) {
+            digestQueue.add(c);
+        }
+    }
+
+    /**
+     * Return an unused buffer to the pool.
+     * 
+     * @param c the buffer
+     */
+    void release(Chunk c) {
+        free.add(c);
+    }
+
+    /**
+     * Wait for all submitted buffers to be written and digested.
+     * 
+     * @throws IOException if a write failed
+     */
+    void finish() throws IOException {
+        close();
+        checkFailure();
+    }
+
+    /**
+     * Stop the stages after they have processed the submitted buffers. This method
+     * is safe to call more than once.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeQueue.add(EOF);
+        digestQueue.add(EOF);
+        boolean interrupted = false;
+        for (Future<?> f : new Future<?>[] { writer, digester }) {
+            while (f != null) {
+                try {
+                    f.get();
+                    f = null;
+                } catch (InterruptedException ex) {
+                    // the stages terminate once they reach EOF: finish waiting
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    log.debug("stage failed: " + ex.getCause());
+                    if (failure == null) {
+                        failure = ex.getCause();
+                    }
+                    f = null;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return time (ms) spent in write calls if logIO was enabled
+     */
+    long getWriteTime() {
+        return writeTime;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t == null) {
+            return;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException("unexpected failure in write stage", t);
+    }
+
+    private void done(Chunk c) {
+        if (c.refs.decrementAndGet() == 0) {
+            free.add(c);
+        }
+    }
+
+    private class WriteStage implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Chunk c = writeQueue.take();
+                while (c != EOF) {
+                    if (failure == null) {
+                        try {
+                            long start = 0L;
+                            if (logIO) {
+                                start = System.currentTimeMillis();
+                            }
+                            ostream.write(c.buf, 0, c.len);
+                            if (logIO) {
+                                writeTime += System.currentTimeMillis() - start;
+                            }
+                        } catch (Throwable t) {
+                            // keep consuming so the reader does not block on the free pool
+                            failure = t;
+                        }
+                    }
+                    done(c);
+                    c = writeQueue.take();
+                }
+            } catch (InterruptedException ex) {
+                log.debug("write stage interrupted");
+            }
+        }
+    }
+
+    private class DigestStage implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Chunk c = digestQueue.take();
+                while (c != EOF) {
+                    if (failure == null) {
+                        try {
+                            digest.update(c.buf, 0, c.len);
+                        } catch (Throwable t) {
+                            failure = t;
+                        }
+                    }
+                    done(c);
+                    c = digestQueue.take();
+                }
+            } catch (InterruptedException ex) {
+                log.debug("digest stage interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.FileMetadata;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.log4j.Logger;
+
+/**
+ * Bulk metadata check for a collection of URLs. The URLs are checked with concurrent
+ * HTTP HEAD requests (HttpDownload in head-only mode run by an HttpTransferExecutor) 
+ * so the usual authentication, redirect, and retry behaviour applies. HEAD responses
+ * have no body so the connections are re-used (HTTP keep-alive) by later requests to
+ * the same server; note that the JVM only keeps <code>http.maxConnections</code> 
+ * (system property, default: 5) idle connections per server so that should be set
+ * to at least the parallelism.
+ * 
+ * <p>Throughput statistics are accumulated over all calls to probe().
+ */
+public class MetadataProbe {
+    private static final Logger log = Logger.getLogger(MetadataProbe.class);
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            // discard
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // discard
+        }
+    };
+
+    private final HttpTransferExecutor executor;
+    private final int maxPending;
+    private final boolean ownExecutor;
+    private final Stats stats = new Stats();
+
+    /**
+     * Outcome of the HEAD request for one URL.
+     */
+    public static class Result {
+        private final URL url;
+        private final int responseCode;
+        private final FileMetadata metadata;
+        private final Throwable failure;
+
+        Result(URL url, int responseCode, FileMetadata metadata, Throwable failure) {
+            this.url = url;
+            this.responseCode = responseCode;
+            this.metadata = metadata;
+            this.failure = failure;
+        }
+
+        public URL getURL() {
+            return url;
+        }
+
+        /**
+         * @return the HTTP response code or -1 if no response was received
+         */
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * @return the metadata or null if the request failed
+         */
+        public FileMetadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * @return the failure or null if the request was successful
+         */
+        public Throwable getThrowable() {
+            return failure;
+        }
+
+        public boolean isSuccessful() {
+            return metadata != null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("MetadataProbe.Result[").append(url).append(",").append(responseCode);
+            if (failure != null) {
+                sb.append(",").append(failure);
+            }
+            sb.append("]");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Throughput statistics.
+     */
+    public static class Stats {
+        private long requests = 0L;
+        private long failures = 0L;
+        private long latencyCount = 0L;
+        private long totalLatency = 0L;
+        private long elapsed = 0L;
+
+        Stats() { 
+        }
+
+        private Stats(Stats s) {
+            this.requests = s.requests;
+            this.failures = s.failures;
+            this.latencyCount = s.latencyCount;
+            this.totalLatency = s.totalLatency;
+            this.elapsed = s.elapsed;
+        }
+
+        /**
+         * @return number of URLs checked
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return number of URLs that could not be checked
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return wall-clock time spent in probe() in milliseconds
+         */
+        public long getElapsedTime() {
+            return elapsed;
+        }
+
+        /**
+         * @return mean time from request to response for successful requests in 
+         *     milliseconds, or null if not known
+         */
+        public Double getMeanLatency() {
+            if (latencyCount == 0) {
+                return null;
+            }
+            return ((double) totalLatency) / latencyCount;
+        }
+
+        /**
+         * @return number of URLs checked per second
+         */
+        public double getRequestRate() {
+            if (elapsed == 0L) {
+                return 0.0;
+            }
+            return 1000.0 * requests / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            Double lat = getMeanLatency();
+            return "MetadataProbe.Stats[requests=" + requests + ",failures=" + failures 
+                + ",elapsed=" + elapsed + "ms" + ",rate=" + String.format("%.1f", getRequestRate()) + "/sec"
+                + ",latency=" + (lat == null ? "?" : String.format("%.1f", lat) + "ms") + "]";
+        }
+    }
+
+    /**
+     * Create a probe with a new executor.
+     * 
+     * @param parallelism maximum number of concurrent HEAD requests
+     */
+    public MetadataProbe(int parallelism) {
+        this(new HttpTransferExecutor(parallelism), true);
+    }
+
+    /**
+     * Create a probe that uses the specified executor.
+     * 
+     * @param executor executor to run the HEAD requests
+     */
+    public MetadataProbe(HttpTransferExecutor executor) {
+        this(executor, false);
+    }
+
+    private MetadataProbe(HttpTransferExecutor executor, boolean ownExecutor) {
+        this.executor = executor;
+        this.maxPending = 4 * executor.getParallelism();
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * @return a snapshot of the statistics for all calls to probe()
+     */
+    public Stats getStats() {
+        synchronized (stats) {
+            return new Stats(stats);
+        }
+    }
+
+    /**
+     * Check the URLs. The result has one entry per distinct URL, in input order,
+     * keyed by the URL string (URL.toExternalForm()): java.net.URL equality resolves 
+     * host names and would treat virtual hosts on the same address as the same URL.
+     * Only a bounded number of requests are submitted to the executor at a time, so
+     * very large collections can be checked.
+     * 
+     * @param urls URLs to check
+     * @return map of URL string to result
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public Map<String,Result> probe(Collection<URL> urls) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Map<String,Result> ret = new LinkedHashMap<String,Result>();
+        BlockingQueue<TransferFuture<HttpDownload>> completed = new LinkedBlockingQueue<TransferFuture<HttpDownload>>();
+        int pending = 0;
+        try {
+            for (URL u : urls) {
+                String key = u.toExternalForm();
+                if (ret.containsKey(key)) {
+                    continue;
+                }
+                ret.put(key, null); // retain input order
+                while (pending >= maxPending) {
+                    complete(completed.take(), ret);
+                    pending--;
+                }
+                executor.submit(createTransfer(u), completed);
+                pending++;
+            }
+            while (pending > 0) {
+                complete(completed.take(), ret);
+                pending--;
+            }
+        } finally {
+            long dt = System.currentTimeMillis() - start;
+            synchronized (stats) {
+                stats.elapsed += dt;
+            }
+            log.debug("probe: " + ret.size() + " URLs in " + dt + "ms");
+        }
+        return ret;
+    }
+
+    /**
+     * Close the probe. This shuts down the executor if it was created by this probe.
+     */
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Create the HEAD request. Subclasses can override this method to configure the 
+     * transfer (retry policy, request headers, etc).
+     * 
+     * @param url the URL to check
+     * @return a new head-only download
+     */
+    protected HttpDownload createTransfer(URL url) {
+        HttpDownload ret = new HttpDownload(url, DISCARD);
+        ret.setHeadOnly(true);
+        return ret;
+    }
+
+    private void complete(TransferFuture<HttpDownload> f, Map<String,Result> results) {
+        HttpDownload head = f.getTransfer();
+        Throwable failure = head.getThrowable();
+        FileMetadata meta = null;
+        if (failure == null) {
+            meta = new FileMetadata();
+            if (head.getContentLength() >= 0) {
+                meta.setContentLength(head.getContentLength());
+            }
+            meta.setContentType(head.getContentType());
+            meta.setContentEncoding(head.getContentEncoding());
+            meta.setMd5Sum(head.getContentMD5());
+            meta.setLastModified(head.getLastModified());
+            meta.setFileName(head.getFilename());
+        } else {
+            log.debug("HEAD failed: " + head.getURL() + " " + failure);
+        }
+        results.put(head.getURL().toExternalForm(), new Result(head.getURL(), head.getResponseCode(), meta, failure));
+        synchronized (stats) {
+            stats.requests++;
+            if (failure != null) {
+                stats.failures++;
+            }
+            Long lat = head.getResponceLatency();
+            if (lat != null) {
+                stats.latencyCount++;
+                stats.totalLatency += lat;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Per-host performance scores used to choose between mirrors (HttpDownload.setMirrors).
+ * The selector keeps an exponentially weighted moving average of the response latency
+ * and throughput of each host and the time of recent failures. Candidate URLs are ordered
+ * by the estimated time to download REFERENCE_BYTES from the host:
+ * <ul>
+ * <li>hosts with no measurements are tried first (in the original order) so that every
+ * mirror is measured</li>
+ * <li>measured hosts are ordered by latency + REFERENCE_BYTES / throughput, where
+ * DEFAULT_THROUGHPUT is assumed until a large enough transfer has been measured</li>
+ * <li>each failure in the last FAILURE_MEMORY milliseconds adds FAILURE_PENALTY</li>
+ * </ul>
+ * The shared selector keeps the scores in memory for all transfers in this JVM.
+ */
+public class MirrorSelector {
+    private static final Logger log = Logger.getLogger(MirrorSelector.class);
+
+    public static final long REFERENCE_BYTES = 16 * 1024 * 1024L;
+    public static final long FAILURE_PENALTY = 60000L;
+    public static final long FAILURE_MEMORY = 300000L;
+    public static final long DEFAULT_THROUGHPUT = 1024L; // bytes per millisecond
+    
+    // minimum transfer size for a throughput measurement
+    static final long MIN_SAMPLE_BYTES = 64 * 1024L;
+    
+    // weight of a new measurement in the moving average
+    static final double ALPHA = 0.3;
+
+    private static final MirrorSelector sharedSelector = new MirrorSelector();
+
+    private final Map<String,HostScore> hosts = new HashMap<String,HostScore>();
+
+    private static class HostScore {
+        double latency = -1.0; // milliseconds
+        double throughput = -1.0; // bytes per millisecond
+        int failures;
+        long lastFailure;
+    }
+
+    public MirrorSelector() { 
+    }
+
+    /**
+     * Get the selector shared by all users in this JVM.
+     * 
+     * @return the shared selector
+     */
+    public static MirrorSelector getSharedSelector() {
+        return sharedSelector;
+    }
+
+    /**
+     * Record the time to receive the response from a host.
+     * 
+     * @param host the host name
+     * @param millis latency in milliseconds
+     */
+    public synchronized void recordLatency(String host, long millis) {
+        HostScore s = getScore(host);
+        s.latency = average(s.latency, millis);
+    }
+
+    /**
+     * Record a successful transfer from a host. Small transfers do not change the
+     * throughput estimate.
+     * 
+     * @param host the host name
+     * @param bytes number of bytes transferred
+     * @param millis time to transfer the bytes in milliseconds
+     */
+    public synchronized void recordSuccess(String host, long bytes, long millis) {
+        HostScore s = getScore(host);
+        s.failures = 0;
+        if (bytes >= MIN_SAMPLE_BYTES) {
+            s.throughput = average(s.throughput, (double) bytes / Math.max(1L, millis));
+        }
+    }
+
+    /**
+     * Record a failed or abandoned transfer from a host.
+     * 
+     * @param host the host name
+     */
+    public synchronized void recordFailure(String host) {
+        HostScore s = getScore(host);
+        long now = System.currentTimeMillis();
+        if (now - s.lastFailure > FAILURE_MEMORY) {
+            s.failures = 0;
+        }
+        s.failures++;
+        s.lastFailure = now;
+    }
+
+    /**
+     * Get the estimated cost of a download from the host.
+     * 
+     * @param host the host name
+     * @return estimated time in milliseconds or 0 if the host has not been measured
+     */
+    public synchronized double getCost(String host) {
+        HostScore s = hosts.get(host);
+        if (s == null) {
+            return 0.0;
+        }
+        double ret = 0.0;
+        if (s.latency >= 0.0) {
+            ret += s.latency;
+        }
+        if (s.throughput > 0.0) {
+            ret += REFERENCE_BYTES / s.throughput;
+        } else {
+            ret += REFERENCE_BYTES / DEFAULT_THROUGHPUT;
+        }
+        if (s.failures > 0 && System.currentTimeMillis() - s.lastFailure <= FAILURE_MEMORY) {
+            ret += s.failures * FAILURE_PENALTY;
+        }
+        return ret;
+    }
+
+    /**
+     * Order candidate URLs from best to worst. The input list is not modified.
+     * 
+     * @param urls candidate URLs
+     * @return new list in the preferred order
+     */
+    public List<URL> order(List<URL> urls) {
+        // keyed by host name: URL.equals and hashCode resolve the host
+        final Map<String,Double> cost = new HashMap<String,Double>();
+        for (URL u : urls) {
+            cost.put(u.getHost(), getCost(u.getHost()));
+        }
+        List<URL> ret = new ArrayList<URL>(urls);
+        Collections.sort(ret, new Comparator<URL>() { // stable
+            @Override
+            public int compare(URL lhs, URL rhs) {
+                return Double.compare(cost.get(lhs.getHost()), cost.get(rhs.getHost()));
+            }
+        });
+        log.debug("mirror order: " + ret + " cost: " + cost);
+        return ret;
+    }
+
+    private static double average(double cur, double val) {
+        if (cur < 0.0) {
+            return val;
+        }
+        return (1.0 - ALPHA) * cur + ALPHA * val;
+    }
+
+    private HostScore getScore(String host) {
+        HostScore ret = hosts.get(host);
+        if (ret == null) {
+            ret = new HostScore();
+            hosts.put(host, ret);
+        }
+        return ret;
+    }
+}
@@ -74,8 +74,10 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -84,10 +86,12 @@ import org.apache.log4j.Logger;
 /**
  * Utility class to invoke the appropriate SchemeHandler to convert a URI to URL(s). 
  * If no SchemeHandler can be found, the URI.toURL() method is called as a fallback.
+ * Bulk conversion groups the URIs by scheme so that each BulkSchemeHandler is called
+ * once with all the URIs for its scheme.
  * 
  * @author pdowler
  */
-public class MultiSchemeHandler implements SchemeHandler {
+public class MultiSchemeHandler implements BulkSchemeHandler {
     private static final Logger log = Logger.getLogger(MultiSchemeHandler.class);
 
     private static final String CACHE_FILENAME = MultiSchemeHandler.class.getSimpleName() + ".properties";
@@ -166,6 +170,60 @@ public class MultiSchemeHandler implements SchemeHandler {
             return sh.toURL(uri);
         }
         
+        return fallbackURL(uri);
+    }
+
+    /**
+     * Find and call suitable SchemeHandler(s) for many URIs. The URIs are grouped by
+     * scheme and each group is passed to the SchemeHandler for that scheme in one call 
+     * if it is a BulkSchemeHandler. URIs that cannot be converted are not included in
+     * the result.
+     * 
+     * @param uris the URIs to convert
+     * @return map of URI to URL(s) to the identified resource
+     */
+    @Override
+    public Map<URI,List<URL>> toURL(Collection<URI> uris) {
+        Map<String,List<URI>> byScheme = new LinkedHashMap<String,List<URI>>();
+        for (URI u : uris) {
+            if (u != null) {
+                List<URI> group = byScheme.get(u.getScheme());
+                if (group == null) {
+                    group = new ArrayList<URI>();
+                    byScheme.put(u.getScheme(), group);
+                }
+                group.add(u);
+            }
+        }
+        
+        Map<URI,List<URL>> ret = new HashMap<URI,List<URL>>();
+        for (Map.Entry<String,List<URI>> me : byScheme.entrySet()) {
+            SchemeHandler sh = handlers.get(me.getKey());
+            log.debug("bulk: " + me.getValue().size() + " URIs with scheme " + me.getKey() + " handler: " + sh);
+            if (sh instanceof BulkSchemeHandler) {
+                ret.putAll(((BulkSchemeHandler) sh).toURL(me.getValue()));
+            } else {
+                for (URI u : me.getValue()) {
+                    try {
+                        List<URL> urls;
+                        if (sh != null) {
+                            urls = sh.toURL(u);
+                        } else {
+                            urls = fallbackURL(u);
+                        }
+                        if (urls != null) {
+                            ret.put(u, urls);
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        log.debug("failed to convert " + u + ": " + ex);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private List<URL> fallbackURL(URI uri) {
         // fallback: hope for the best
         try  {
             URL url = uri.toURL();
@@ -0,0 +1,310 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.log4j.Logger;
+
+/**
+ * Retry policy that can be shared by many transfers (setRetryPolicy in HttpTransfer).
+ * The policy provides:
+ * <ul>
+ * <li>full-jitter exponential backoff: the delay before retry n is a random value between 
+ * 0 and min(maxDelay, baseDelay * 2^n), so clients that failed together do not retry
+ * together; a Retry-After value from the server is honoured as the minimum delay and
+ * up to baseDelay of jitter is added</li>
+ * <li>per-host retry budget: a token bucket of retries for each host (capacity, refill rate)
+ * shared by all transfers using the policy; when the budget is exhausted, failures are
+ * not retried</li>
+ * <li>per-host circuit breaker: after a number of consecutive failures (5xx responses that
+ * indicate an overloaded or unavailable server and failures to connect) the host is
+ * considered open for a period of time; transfers to an open host are deferred (if they
+ * can still retry) or fail without making a request. After the open period, one trial
+ * request is allowed: success closes the circuit and failure opens it again. If the 
+ * outcome of the trial is not recorded within the open time, another trial is allowed.</li>
+ * </ul>
+ * 
+ * <p>The RetryReason and maxRetries configured in the transfer still determine which 
+ * failures are retried and how many times.
+ */
+public class RetryPolicy {
+    private static final Logger log = Logger.getLogger(RetryPolicy.class);
+
+    public static final long DEFAULT_BASE_DELAY = 1000L;
+    public static final long DEFAULT_MAX_DELAY = 1000L * HttpTransfer.MAX_RETRY_DELAY;
+    public static final int DEFAULT_BUDGET_CAPACITY = 20;
+    public static final double DEFAULT_BUDGET_REFILL_RATE = 1.0;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME = 30000L;
+
+    private static final RetryPolicy sharedPolicy = new RetryPolicy();
+
+    private long baseDelay = DEFAULT_BASE_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private int budgetCapacity = DEFAULT_BUDGET_CAPACITY;
+    private double budgetRefillRate = DEFAULT_BUDGET_REFILL_RATE;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openTime = DEFAULT_OPEN_TIME;
+
+    private final Map<String,HostState> hosts = new HashMap<String,HostState>();
+
+    private static class HostState {
+        double tokens;
+        long lastRefill;
+        int failures;
+        long openUntil;
+        boolean probing;
+        long probeUntil;
+    }
+
+    public RetryPolicy() { 
+    }
+
+    /**
+     * Get the policy shared by all users in this JVM.
+     * 
+     * @return the shared policy
+     */
+    public static RetryPolicy getSharedPolicy() {
+        return sharedPolicy;
+    }
+
+    /**
+     * Configure the backoff.
+     * 
+     * @param baseDelay delay (ms) for the first retry
+     * @param maxDelay maximum delay (ms)
+     */
+    public synchronized void setBackoff(long baseDelay, long maxDelay) {
+        if (baseDelay <= 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("invalid backoff: baseDelay=" + baseDelay + " maxDelay=" + maxDelay);
+        }
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Configure the per-host retry budget.
+     * 
+     * @param capacity maximum number of retries that can be made in a burst
+     * @param refillRate number of retries added to the budget per second
+     */
+    public synchronized void setRetryBudget(int capacity, double refillRate) {
+        if (capacity < 0 || refillRate < 0.0) {
+            throw new IllegalArgumentException("invalid retry budget: capacity=" + capacity + " refillRate=" + refillRate);
+        }
+        this.budgetCapacity = capacity;
+        this.budgetRefillRate = refillRate;
+        hosts.clear();
+    }
+
+    /**
+     * Configure the per-host circuit breaker.
+     * 
+     * @param failureThreshold number of consecutive failures that opens the circuit, 0 to disable
+     * @param openTime time (ms) the circuit stays open before a trial request is allowed
+     */
+    public synchronized void setCircuitBreaker(int failureThreshold, long openTime) {
+        if (failureThreshold < 0 || openTime < 0) {
+            throw new IllegalArgumentException("invalid circuit breaker: failureThreshold=" + failureThreshold 
+                + " openTime=" + openTime);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        hosts.clear();
+    }
+
+    /**
+     * Compute the delay before the next retry.
+     * 
+     * @param numRetries number of retries already made by the transfer
+     * @param retryAfter delay (ms) requested by the server, 0 if none
+     * @return delay in milliseconds
+     */
+    public synchronized long getRetryDelay(int numRetries, long retryAfter) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        if (retryAfter > 0) {
+            return retryAfter + (long) (rnd.nextDouble() * baseDelay);
+        }
+        long cap = baseDelay;
+        for (int i = 0; i < numRetries && cap < maxDelay; i++) {
+            cap *= 2;
+        }
+        cap = Math.min(cap, maxDelay);
+        return (long) (rnd.nextDouble() * cap);
+    }
+
+    /**
+     * Take a retry from the budget for the specified host.
+     * 
+     * @param host the host
+     * @return true if the retry is allowed
+     */
+    public synchronized boolean tryAcquireRetry(String host) {
+        HostState hs = getState(host);
+        long now = System.currentTimeMillis();
+        hs.tokens = Math.min(budgetCapacity, hs.tokens + budgetRefillRate * (now - hs.lastRefill) / 1000.0);
+        hs.lastRefill = now;
+        if (hs.tokens >= 1.0) {
+            hs.tokens -= 1.0;
+            return true;
+        }
+        log.debug("retry budget exhausted: " + host);
+        return false;
+    }
+
+    /**
+     * Check if a request to the specified host is allowed by the circuit breaker. When
+     * the open period has passed, the first caller is allowed to make a trial request
+     * and other callers are deferred until the outcome is recorded (or the trial has
+     * taken longer than the open time).
+     * 
+     * @param host the host
+     * @return 0 if the request is allowed, otherwise the time (ms) to wait
+     */
+    public synchronized long checkHost(String host) {
+        if (failureThreshold <= 0) {
+            return 0L;
+        }
+        HostState hs = hosts.get(host);
+        if (hs == null || hs.failures < failureThreshold) {
+            return 0L;
+        }
+        long now = System.currentTimeMillis();
+        if (now < hs.openUntil) {
+            return hs.openUntil - now;
+        }
+        if (hs.probing && now < hs.probeUntil) {
+            return Math.max(1L, Math.min(baseDelay, hs.probeUntil - now));
+        }
+        log.debug("circuit half-open, allowing trial request: " + host);
+        hs.probing = true;
+        hs.probeUntil = now + openTime;
+        return 0L;
+    }
+
+    /**
+     * Record a successful response from the host. This closes the circuit.
+     * 
+     * @param host the host
+     */
+    public synchronized void recordSuccess(String host) {
+        HostState hs = hosts.get(host);
+        if (hs != null) {
+            if (hs.failures >= failureThreshold && failureThreshold > 0) {
+                log.debug("circuit closed: " + host);
+            }
+            hs.failures = 0;
+            hs.probing = false;
+        }
+    }
+
+    /**
+     * Record a failure (server unavailable or overloaded, failed to connect) for the host.
+     * 
+     * @param host the host
+     */
+    public synchronized void recordFailure(String host) {
+        HostState hs = getState(host);
+        hs.failures++;
+        if (failureThreshold > 0 && hs.failures >= failureThreshold
+            && (hs.probing || hs.failures == failureThreshold)) {
+            log.debug("circuit open: " + host + " failures: " + hs.failures);
+            hs.openUntil = System.currentTimeMillis() + openTime;
+            hs.probing = false;
+        }
+    }
+
+    /**
+     * Check if a response code indicates that the server is unavailable or overloaded.
+     * 
+     * @param code HTTP response code
+     * @return true if the code counts as a failure for the circuit breaker
+     */
+    public static boolean isServerFailure(int code) {
+        return code == HttpURLConnection.HTTP_BAD_GATEWAY
+            || code == HttpURLConnection.HTTP_UNAVAILABLE
+            || code == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    private HostState getState(String host) {
+        HostState hs = hosts.get(host);
+        if (hs == null) {
+            hs = new HostState();
+            hs.tokens = budgetCapacity;
+            hs.lastRefill = System.currentTimeMillis();
+            hosts.put(host, hs);
+        }
+        return hs;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+
+/**
+ * Handle for a transfer submitted to an HttpTransferExecutor. The future completes 
+ * with a TransferResult when the transfer has finished, whether it succeeded or
+ * failed (see TransferResult.getThrowable()). Cancelling the future terminates the
+ * transfer.
+ * @param <T> the transfer type
+ */
+public class TransferFuture<T extends HttpTransfer> extends FutureTask<TransferResult> {
+    private static final Logger log = Logger.getLogger(TransferFuture.class);
+
+    private final T transfer;
+    private final Callable<TransferResult> task;
+    private final HttpTransferExecutor executor;
+    private final AtomicBoolean cancelled;
+    private final BlockingQueue<? super TransferFuture<T>> completionQueue;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    TransferFuture(T transfer, Callable<TransferResult> task, AtomicBoolean cancelled, HttpTransferExecutor executor,
+            BlockingQueue<? super TransferFuture<T>> completionQueue) {
+        super(task);
+        this.transfer = transfer;
+        this.task = task;
+        this.cancelled = cancelled;
+        this.executor = executor;
+        this.completionQueue = completionQueue;
+    }
+
+    /**
+     * @return the transfer, which can be used to get type-specific result state
+     */
+    public T getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * Cancel the transfer. This calls HttpTransfer.terminate(), which interrupts
+     * the transfer if it is running and prevents it from starting if it is queued.
+     * 
+     * @param mayInterruptIfRunning ignored: terminate() always interrupts a running transfer
+     * @return false if the transfer has already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        log.debug("cancel: " + transfer);
+        cancelled.set(true);
+        transfer.terminate();
+        boolean ret = super.cancel(false);
+        if (!running.get()) {
+            // queued or waiting to retry: run() will not execute the transfer
+            release();
+        }
+        return ret;
+    }
+
+    /**
+     * Run the transfer. If the transfer defers a retry (non-blocking retry mode of the
+     * executor), it is handed to the executor to run again after the delay and this
+     * future remains incomplete.
+     */
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            log.debug("already running: " + transfer);
+            return;
+        }
+        try {
+            runTransfer();
+        } finally {
+            running.set(false);
+            if (isDone()) {
+                // the transfer has actually stopped
+                release();
+            }
+        }
+    }
+
+    private void runTransfer() {
+        while (!isDone()) {
+            TransferResult result;
+            try {
+                result = task.call();
+            } catch (Throwable t) {
+                setException(t);
+                return;
+            }
+            long dt = transfer.takeDeferredRetry();
+            if (dt <= 0 || cancelled.get()) {
+                set(result);
+                return;
+            }
+            if (executor.scheduleRetry(this, dt)) {
+                return;
+            }
+            // executor is shut down: wait in this thread
+            try {
+                log.debug("retry in " + dt + "ms: " + transfer);
+                Thread.sleep(dt);
+            } catch (InterruptedException ex) {
+                set(result);
+                return;
+            }
+        }
+    }
+
+    // give back the executor capacity once the transfer will not run (again)
+    private void release() {
+        if (released.compareAndSet(false, true)) {
+            executor.transferDone(this);
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (completionQueue != null) {
+            completionQueue.add(this);
+        }
+    }
+}
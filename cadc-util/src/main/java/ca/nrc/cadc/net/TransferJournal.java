@@ -0,0 +1,417 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of completed downloads. A bulk download records each file 
+ * when it completes and consults the journal when it is restarted so finished work
+ * is skipped without contacting the server; an interrupted download is simply not
+ * in the journal and resumes from its partial (.part) file. 
+ * 
+ * <p>Each record is one line with a checksum: a line that was only partly written
+ * when a process died is detected and discarded when the journal is opened. Records 
+ * for a URL that was downloaded again supersede older ones; compact() rewrites the 
+ * journal with only the current records (this is done automatically when the journal
+ * is opened if most of the records are obsolete). Records are flushed to the operating
+ * system as they are written, which is sufficient if the process dies; use setSync(true)
+ * to also survive a system crash at the cost of an fsync per record.
+ */
+public class TransferJournal {
+    private static final Logger log = Logger.getLogger(TransferJournal.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ADD = "+";
+    private static final String REMOVE = "-";
+    private static final String SEP = "\t";
+
+    private final File file;
+    private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+    private FileOutputStream out;
+    private int obsolete = 0;
+    private boolean sync = false;
+
+    /**
+     * A completed download.
+     */
+    public static class Entry {
+        private final String url;
+        private final File file;
+        private final long size;
+        private final String md5;
+        private final String etag;
+
+        Entry(String url, File file, long size, String md5, String etag) {
+            this.url = url;
+            this.file = file;
+            this.size = size;
+            this.md5 = md5;
+            this.etag = etag;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the MD5 of the content (hex) or null if not known
+         */
+        public String getMD5() {
+            return md5;
+        }
+
+        /**
+         * @return the ETag of the content or null if not known
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        @Override
+        public String toString() {
+            return "TransferJournal.Entry[" + url + "," + file + "," + size + "]";
+        }
+    }
+
+    /**
+     * Open a journal. The journal file is created if it does not exist.
+     * 
+     * @param file the journal file
+     * @throws IOException failure to read or create the journal
+     */
+    public TransferJournal(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("journal file cannot be null");
+        }
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+        if (obsolete > entries.size()) {
+            compact();
+        } else {
+            this.out = new FileOutputStream(file, true);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param sync if true, force each record to the storage device
+     */
+    public synchronized void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    public synchronized boolean getSync() {
+        return sync;
+    }
+
+    /**
+     * @return number of completed downloads in the journal
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param url the URL
+     * @return the completed download or null if the URL is not in the journal
+     */
+    public synchronized Entry get(URL url) {
+        return entries.get(url.toExternalForm());
+    }
+
+    /**
+     * Check if a URL has been downloaded: the journal has a record for the URL and 
+     * the file still exists with the recorded size.
+     * 
+     * @param url the URL
+     * @return true if the download of the URL can be skipped
+     */
+    public boolean isComplete(URL url) {
+        Entry e = get(url);
+        return e != null && e.file.isFile() && e.file.length() == e.size;
+    }
+
+    /**
+     * Record a completed download.
+     * 
+     * @param url the downloaded URL
+     * @param dest the downloaded file
+     * @param md5 the MD5 of the content (hex) or null
+     * @param etag the ETag of the content or null
+     * @throws IOException failure to write the journal
+     */
+    public synchronized void record(URL url, File dest, String md5, String etag) 
+        throws IOException {
+        Entry e = new Entry(url.toExternalForm(), dest.getAbsoluteFile(), dest.length(), md5, etag);
+        append(format(e));
+        if (entries.put(e.url, e) != null) {
+            obsolete++;
+        }
+    }
+
+    /**
+     * Remove the record for a URL so it will be downloaded again.
+     * 
+     * @param url the URL
+     * @throws IOException failure to write the journal
+     */
+    public synchronized void remove(URL url) throws IOException {
+        String key = url.toExternalForm();
+        if (entries.containsKey(key)) {
+            append(REMOVE + SEP + escape(key));
+            entries.remove(key);
+            obsolete += 2;
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the current records. The new journal is written
+     * to a temporary file and renamed so the journal is intact if this fails.
+     * 
+     * @throws IOException failure to write the journal
+     */
+    public synchronized void compact() throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            for (Entry e : entries.values()) {
+                write(fos, format(e));
+            }
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        close();
+        if (!tmp.renameTo(file)) {
+            // rename does not replace on some platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("failed to replace journal: " + file);
+            }
+        }
+        log.debug("compact: " + file + " removed " + obsolete + " obsolete records");
+        this.obsolete = 0;
+        this.out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Close the journal file.
+     * 
+     * @throws IOException failure to close the file
+     */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void append(String rec) throws IOException {
+        if (out == null) {
+            throw new IOException("journal is closed: " + file);
+        }
+        write(out, rec);
+        if (sync) {
+            out.getFD().sync();
+        }
+    }
+
+    private static void write(OutputStream ostream, String rec) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] b = rec.getBytes(UTF8);
+        crc.update(b);
+        String line = rec + SEP + Long.toHexString(crc.getValue()) + "\n";
+        ostream.write(line.getBytes(UTF8));
+        ostream.flush();
+    }
+
+    private void load() throws IOException {
+        truncatePartialLine();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line = r.readLine();
+            while (line != null) {
+                if (!parse(line)) {
+                    log.debug("discard invalid record: " + line);
+                    obsolete++;
+                }
+                line = r.readLine();
+            }
+        } finally {
+            r.close();
+        }
+        log.debug("load: " + file + " " + entries.size() + " records " + obsolete + " obsolete");
+    }
+
+    // remove the end of a record that was only partly written
+    private void truncatePartialLine() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long pos = raf.length();
+            while (pos > 0) {
+                raf.seek(pos - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                pos--;
+            }
+            if (pos < raf.length()) {
+                log.debug("truncate partial record: " + file + " at " + pos);
+                raf.setLength(pos);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private boolean parse(String line) {
+        int i = line.lastIndexOf(SEP);
+        if (i < 0) {
+            return false;
+        }
+        String rec = line.substring(0, i);
+        CRC32 crc = new CRC32();
+        crc.update(rec.getBytes(UTF8));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(i + 1))) {
+            return false;
+        }
+        String[] tokens = rec.split(SEP, -1);
+        if (ADD.equals(tokens[0]) && tokens.length == 6) {
+            try {
+                Entry e = new Entry(unescape(tokens[1]), new File(unescape(tokens[5])), 
+                        Long.parseLong(tokens[2]), emptyToNull(tokens[3]), emptyToNull(unescape(tokens[4])));
+                if (entries.put(e.url, e) != null) {
+                    obsolete++;
+                }
+                return true;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }
+        if (REMOVE.equals(tokens[0]) && tokens.length == 2) {
+            entries.remove(unescape(tokens[1]));
+            obsolete += 2;
+            return true;
+        }
+        return false;
+    }
+
+    private static String format(Entry e) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(ADD).append(SEP).append(escape(e.url));
+        sb.append(SEP).append(e.size);
+        sb.append(SEP).append(e.md5 == null ? "" : e.md5);
+        sb.append(SEP).append(e.etag == null ? "" : escape(e.etag));
+        sb.append(SEP).append(escape(e.file.getPath()));
+        return sb.toString();
+    }
+
+    private static String emptyToNull(String s) {
+        if (s.isEmpty()) {
+            return null;
+        }
+        return s;
+    }
+
+    // fields cannot contain the separator or line breaks
+    private static String escape(String s) {
+        return s.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    private static String unescape(String s) {
+        return s.replace("%0D", "\r").replace("%0A", "\n").replace("%09", "\t").replace("%25", "%");
+    }
+}
@@ -0,0 +1,175 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.CaseInsensitiveStringComparator;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of an HTTP transfer run by an HttpTransferExecutor. This is a snapshot
+ * of the transfer state when it completed.
+ */
+public class TransferResult {
+    private final URL url;
+    private final int responseCode;
+    private final Map<String,String> responseHeaders;
+    private final long bytesTransferred;
+    private final int ioBufferSize;
+    private final int retries;
+    private final Throwable failure;
+    private final boolean cancelled;
+
+    TransferResult(HttpTransfer transfer, boolean cancelled) {
+        this.url = transfer.getURL();
+        this.responseCode = transfer.getResponseCode();
+        this.responseHeaders = new TreeMap<String,String>(new CaseInsensitiveStringComparator());
+        this.responseHeaders.putAll(transfer.getResponseHeaders());
+        this.bytesTransferred = transfer.getBytesTransferred();
+        this.ioBufferSize = transfer.getIOBufferSize();
+        this.retries = transfer.getRetriesPerformed();
+        this.failure = transfer.getThrowable();
+        this.cancelled = cancelled;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * @return the HTTP response code or -1 if no HTTP call was made
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public Map<String,String> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    /**
+     * @param key header name (case insensitive)
+     * @return header value, possibly null
+     */
+    public String getResponseHeader(String key) {
+        return responseHeaders.get(key);
+    }
+
+    /**
+     * @see HttpTransfer#getBytesTransferred() 
+     * @return number of content bytes transferred
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @see HttpTransfer#getIOBufferSize() 
+     * @return buffer size used by the IO loop
+     */
+    public int getIOBufferSize() {
+        return ioBufferSize;
+    }
+
+    public int getRetriesPerformed() {
+        return retries;
+    }
+
+    /**
+     * @return the failure, or null if the transfer was successful or cancelled
+     */
+    public Throwable getThrowable() {
+        return failure;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isSuccessful() {
+        return failure == null && !cancelled;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("TransferResult[").append(url).append(",").append(responseCode);
+        sb.append(",").append(bytesTransferred);
+        if (cancelled) {
+            sb.append(",cancelled");
+        }
+        if (failure != null) {
+            sb.append(",").append(failure);
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -78,6 +78,7 @@ public class TransientException extends Exception {
     private static final long serialVersionUID = 368806655217191211L;
 
     private int retryDelay;
+    private long retryDelayMillis;
 
     /**
      * Constructor.
@@ -118,6 +119,21 @@ public class TransientException extends Exception {
     TransientException(String msg, Throwable cause, int retryDelay) {
         super(msg, cause);
         this.retryDelay = retryDelay;
+        this.retryDelayMillis = 1000L * retryDelay;
+    }
+
+    /**
+     * Create an exception with a retry delay in milliseconds. The delay in seconds
+     * (getRetryDelay) is rounded up.
+     * 
+     * @param msg Error message.
+     * @param retryDelayMillis Retry delay in milliseconds.
+     * @return the exception
+     */
+    static TransientException withDelayMillis(String msg, long retryDelayMillis) {
+        TransientException ret = new TransientException(msg, null, (int) ((retryDelayMillis + 999L) / 1000L));
+        ret.retryDelayMillis = retryDelayMillis;
+        return ret;
     }
     
     /**
@@ -127,6 +143,14 @@ public class TransientException extends Exception {
     public int getRetryDelay() {
         return retryDelay;
     }
+
+    /**
+     * Get the retry delay (in milliseconds).
+     * @return
+     */
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
     
     @Override
     public String toString() {
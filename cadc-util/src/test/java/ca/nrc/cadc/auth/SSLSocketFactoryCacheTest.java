@@ -0,0 +1,193 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.auth;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.security.PrivateKey;
+import java.util.Date;
+import javax.net.ssl.SSLSocketFactory;
+import javax.security.auth.x500.X500Principal;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SSLSocketFactoryCacheTest
+{
+    private static final Logger log = Logger.getLogger(SSLSocketFactoryCacheTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.auth", Level.INFO);
+    }
+
+    // count creation and return a distinct factory each time
+    private static class TestCache extends SSLSocketFactoryCache
+    {
+        int created = 0;
+
+        TestCache(int maxSize)
+        {
+            super(maxSize);
+        }
+
+        @Override
+        protected SSLSocketFactory createSocketFactory(X509CertificateChain chain)
+        {
+            created++;
+            return EasyMock.createMock(SSLSocketFactory.class);
+        }
+    }
+
+    private X509CertificateChain createChain(String cn, long expiresIn)
+    {
+        PrivateKey pk = EasyMock.createMock(PrivateKey.class);
+        X509CertificateChain ret = new X509CertificateChain(new X500Principal("CN=" + cn), pk, null);
+        ret.setExpiryDate(new Date(System.currentTimeMillis() + expiresIn));
+        return ret;
+    }
+
+    @Test
+    public void testReuse()
+        throws Exception
+    {
+        TestCache cache = new TestCache(4);
+        X509CertificateChain c1 = createChain("one", 60000L);
+        X509CertificateChain c2 = createChain("two", 60000L);
+
+        SSLSocketFactory sf1 = cache.getSocketFactory(c1);
+        Assert.assertSame(sf1, cache.getSocketFactory(c1));
+        Assert.assertEquals(1, cache.created);
+
+        SSLSocketFactory sf2 = cache.getSocketFactory(c2);
+        Assert.assertNotSame(sf1, sf2);
+        Assert.assertEquals(2, cache.created);
+        Assert.assertEquals(2, cache.size());
+
+        // same DN but different object: identity key
+        X509CertificateChain c3 = createChain("one", 60000L);
+        Assert.assertNotSame(sf1, cache.getSocketFactory(c3));
+        Assert.assertEquals(3, cache.created);
+    }
+
+    @Test
+    public void testExpiry()
+        throws Exception
+    {
+        TestCache cache = new TestCache(4);
+        X509CertificateChain c1 = createChain("one", 60000L);
+        SSLSocketFactory sf1 = cache.getSocketFactory(c1);
+
+        c1.setExpiryDate(new Date(System.currentTimeMillis() - 1000L));
+        Assert.assertSame("expiry captured when cached", sf1, cache.getSocketFactory(c1));
+
+        X509CertificateChain c2 = createChain("two", -1000L);
+        SSLSocketFactory sf2 = cache.getSocketFactory(c2);
+        Assert.assertNotSame(sf2, cache.getSocketFactory(c2));
+        Assert.assertEquals(3, cache.created);
+
+        cache.expire();
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testKeyChanged()
+        throws Exception
+    {
+        TestCache cache = new TestCache(4);
+        X509CertificateChain c1 = createChain("one", 60000L);
+        SSLSocketFactory sf1 = cache.getSocketFactory(c1);
+        c1.setKey(EasyMock.createMock(PrivateKey.class));
+        Assert.assertNotSame(sf1, cache.getSocketFactory(c1));
+        Assert.assertEquals(2, cache.created);
+    }
+
+    @Test
+    public void testEviction()
+        throws Exception
+    {
+        TestCache cache = new TestCache(2);
+        X509CertificateChain c1 = createChain("one", 60000L);
+        X509CertificateChain c2 = createChain("two", 60000L);
+        X509CertificateChain c3 = createChain("three", 60000L);
+
+        SSLSocketFactory sf1 = cache.getSocketFactory(c1);
+        cache.getSocketFactory(c2);
+        cache.getSocketFactory(c1); // c2 is now least recently used
+        cache.getSocketFactory(c3);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(3, cache.created);
+
+        Assert.assertSame(sf1, cache.getSocketFactory(c1));
+        cache.getSocketFactory(c2);
+        Assert.assertEquals(4, cache.created);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import org.apache.log4j.Level;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for AdaptiveBuffer.
+ */
+public class AdaptiveBufferTest
+{
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static final long MS = 1000000L; // nanoseconds
+
+    // one window of reads at the specified rate (bytes/ms)
+    private long window(AdaptiveBuffer buf, int nb, long rate, long t)
+    {
+        for (int i = 0; i < AdaptiveBuffer.WINDOW; i++)
+        {
+            t += nb * MS / rate;
+            buf.update(nb, t);
+        }
+        return t;
+    }
+
+    @Test
+    public void testFixed()
+    {
+        AdaptiveBuffer buf = new AdaptiveBuffer(5000);
+        Assert.assertEquals(5000, buf.getSize());
+        Assert.assertEquals(8192, buf.getBuffer().length);
+        long t = 0L;
+        buf.update(5000, t);
+        t = window(buf, 5000, 1000L, t);
+        Assert.assertEquals(5000, buf.getSize());
+        buf.release();
+        Assert.assertNull(buf.getBuffer());
+    }
+
+    @Test
+    public void testGrowShrink()
+    {
+        AdaptiveBuffer buf = new AdaptiveBuffer(8192, 4096, 65536);
+        long t = 0L;
+        buf.update(8192, t);
+
+        // full reads at constant throughput: grow to max
+        while (buf.getSize() < 65536)
+        {
+            int sz = buf.getSize();
+            t = window(buf, sz, 100000L, t);
+            Assert.assertEquals(2 * sz, buf.getSize());
+            Assert.assertTrue(buf.getBuffer().length >= buf.getSize());
+        }
+        t = window(buf, 65536, 100000L, t);
+        Assert.assertEquals(65536, buf.getSize());
+
+        // small reads: shrink to min
+        while (buf.getSize() > 4096)
+        {
+            int sz = buf.getSize();
+            t = window(buf, 1000, 100000L, t);
+            Assert.assertEquals(sz / 2, buf.getSize());
+        }
+        t = window(buf, 1000, 100000L, t);
+        Assert.assertEquals(4096, buf.getSize());
+        buf.release();
+    }
+
+    @Test
+    public void testGrowLocked()
+    {
+        AdaptiveBuffer buf = new AdaptiveBuffer(8192, 4096, 65536);
+        long t = 0L;
+        buf.update(8192, t);
+        t = window(buf, 8192, 1000L, t);
+        Assert.assertEquals(16384, buf.getSize());
+
+        // slower after grow: revert and do not grow again
+        t = window(buf, 16384, 500L, t);
+        Assert.assertEquals(8192, buf.getSize());
+        t = window(buf, 8192, 1000L, t);
+        t = window(buf, 8192, 1000L, t);
+        Assert.assertEquals(8192, buf.getSize());
+        buf.release();
+    }
+
+    @Test
+    public void testPool()
+    {
+        Assert.assertEquals(8192, AdaptiveBuffer.poolSize(8192));
+        Assert.assertEquals(16384, AdaptiveBuffer.poolSize(8193));
+        Assert.assertEquals(1, AdaptiveBuffer.poolSize(1));
+
+        byte[] b = AdaptiveBuffer.acquire(3000000);
+        Assert.assertEquals(4194304, b.length);
+        AdaptiveBuffer.recycle(b);
+        Assert.assertSame(b, AdaptiveBuffer.acquire(4000000));
+
+        // not from the pool
+        AdaptiveBuffer.recycle(new byte[3000000]);
+        Assert.assertEquals(4194304, AdaptiveBuffer.acquire(3000000).length);
+    }
+}
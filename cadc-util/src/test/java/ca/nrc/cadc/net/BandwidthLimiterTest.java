@@ -0,0 +1,207 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for BandwidthLimiter.
+ */
+public class BandwidthLimiterTest
+{
+    private static final Logger log = Logger.getLogger(BandwidthLimiterTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static final long MS = 1000000L; // nanoseconds
+
+    @Test
+    public void testNoLimit()
+    {
+        BandwidthLimiter lim = new BandwidthLimiter();
+        Assert.assertEquals(0L, lim.getGlobalLimit());
+        Assert.assertEquals(0L, lim.getHostLimit("a.example.net"));
+        for (int i = 0; i < 10; i++)
+        {
+            Assert.assertEquals(0L, lim.reserve("a.example.net", 1000000L, 0L));
+        }
+    }
+
+    @Test
+    public void testGlobalLimit()
+    {
+        BandwidthLimiter lim = new BandwidthLimiter();
+        lim.setGlobalLimit(10000L); // burst: 1000 bytes
+        long t = 0L;
+        Assert.assertEquals(0L, lim.reserve(null, 1000L, t));
+        // requests are queued behind earlier ones
+        Assert.assertEquals(100L * MS, lim.reserve("a.example.net", 1000L, t));
+        Assert.assertEquals(200L * MS, lim.reserve("b.example.net", 1000L, t));
+
+        // debt is paid off after 200ms and the bucket refills to the burst size
+        t += 1000L * MS;
+        Assert.assertEquals(0L, lim.reserve(null, 1000L, t));
+        Assert.assertEquals(50L * MS, lim.reserve(null, 500L, t));
+    }
+
+    @Test
+    public void testHostLimit()
+    {
+        BandwidthLimiter lim = new BandwidthLimiter();
+        lim.setHostLimit("a.example.net", 10000L);
+        long t = 0L;
+        Assert.assertEquals(0L, lim.reserve("a.example.net", 1000L, t));
+        Assert.assertEquals(100L * MS, lim.reserve("a.example.net", 1000L, t));
+        Assert.assertEquals(0L, lim.reserve("b.example.net", 1000000L, t));
+
+        lim.setDefaultHostLimit(20000L);
+        Assert.assertEquals(10000L, lim.getHostLimit("a.example.net"));
+        Assert.assertEquals(20000L, lim.getHostLimit("b.example.net"));
+        Assert.assertEquals(0L, lim.reserve("b.example.net", 2000L, t));
+        Assert.assertEquals(100L * MS, lim.reserve("b.example.net", 2000L, t));
+
+        // the tighter of the host and global limits applies
+        lim.setGlobalLimit(1000L);
+        Assert.assertEquals(0L, lim.reserve("c.example.net", 100L, t));
+        Assert.assertEquals(100L * MS, lim.reserve("c.example.net", 100L, t));
+    }
+
+    @Test
+    public void testChangeLimit()
+    {
+        BandwidthLimiter lim = new BandwidthLimiter();
+        lim.setHostLimit("a.example.net", 10000L);
+        long t = 0L;
+        lim.reserve("a.example.net", 1000L, t);
+        Assert.assertEquals(100L * MS, lim.reserve("a.example.net", 1000L, t));
+
+        lim.setHostLimit("a.example.net", 100000L);
+        Assert.assertEquals(0L, lim.reserve("a.example.net", 10000L, t));
+        Assert.assertEquals(10L * MS, lim.reserve("a.example.net", 1000L, t));
+
+        lim.setHostLimit("a.example.net", null);
+        Assert.assertEquals(0L, lim.getHostLimit("a.example.net"));
+        Assert.assertEquals(0L, lim.reserve("a.example.net", 1000000L, t));
+    }
+
+    @Test
+    public void testInvalidLimit()
+    {
+        BandwidthLimiter lim = new BandwidthLimiter();
+        try
+        {
+            lim.setGlobalLimit(-1L);
+            Assert.fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected)
+        {
+            log.debug("caught expected: " + expected);
+        }
+        try
+        {
+            lim.setHostLimit("a.example.net", -1L);
+            Assert.fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected)
+        {
+            log.debug("caught expected: " + expected);
+        }
+    }
+
+    @Test
+    public void testThrottledLoop() throws Exception
+    {
+        BandwidthLimiter lim = new BandwidthLimiter();
+        lim.setGlobalLimit(1000000L); // burst: 100000 bytes
+        byte[] data = TestHttpServer.randomContent(300000);
+        HttpTransfer trans = new HttpTransfer(true)
+        {
+            public void run()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        trans.setBandwidthLimiter(lim);
+        long start = System.currentTimeMillis();
+        trans.ioLoop(new ByteArrayInputStream(data), new ByteArrayOutputStream(), 8192, 0L);
+        long dt = System.currentTimeMillis() - start;
+        log.info("throttled loop: " + dt + "ms");
+        Assert.assertEquals(data.length, trans.loopBytes);
+        Assert.assertTrue("elapsed: " + dt, dt >= 150L);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Level;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for CachingSchemeHandler and CachingStorageResolver.
+ */
+public class CachingSchemeHandlerTest
+{
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static class CountingHandler extends TestSchemeHandler
+    {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public List<URL> toURL(URI uri)
+        {
+            calls.incrementAndGet();
+            return super.toURL(uri);
+        }
+    }
+
+    private static class CountingResolver implements StorageResolver
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final TestSchemeHandler handler = new TestSchemeHandler();
+
+        public String getScheme()
+        {
+            return "test";
+        }
+
+        public URL toURL(URI uri)
+        {
+            calls.incrementAndGet();
+            return handler.toURL(uri).get(0);
+        }
+    }
+
+    @Test
+    public void testSchemeHandler()
+        throws Exception
+    {
+        CountingHandler handler = new CountingHandler();
+        CachingSchemeHandler csh = new CachingSchemeHandler(handler, 100, 60000L);
+        URI uri = new URI("test://www.example.com/foo");
+        List<URL> urls = csh.toURL(uri);
+        Assert.assertEquals(new URL("http://www.example.com/foo"), urls.get(0));
+        urls.clear(); // caller cannot modify the cached list
+        Assert.assertEquals(new URL("http://www.example.com/foo"), csh.toURL(uri).get(0));
+        Assert.assertEquals(1, handler.calls.get());
+
+        URI uri2 = new URI("test://www.example.com/bar");
+        Map<URI,List<URL>> map = csh.toURL(Arrays.asList(uri, uri2, new URI("other://www.example.com/baz")));
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals(new URL("http://www.example.com/bar"), map.get(uri2).get(0));
+        Assert.assertEquals(3, handler.calls.get()); // uri2 and the failed URI
+
+        csh.toURL(Arrays.asList(uri, uri2));
+        Assert.assertEquals(3, handler.calls.get());
+
+        csh.clear();
+        csh.toURL(uri);
+        Assert.assertEquals(4, handler.calls.get());
+    }
+
+    @Test
+    public void testBounds()
+        throws Exception
+    {
+        CountingHandler handler = new CountingHandler();
+        CachingSchemeHandler csh = new CachingSchemeHandler(handler, 2, 100L);
+        URI u1 = new URI("test://www.example.com/1");
+        URI u2 = new URI("test://www.example.com/2");
+        URI u3 = new URI("test://www.example.com/3");
+        csh.toURL(u1);
+        csh.toURL(u2);
+        csh.toURL(u1); // u2 is least recently used
+        csh.toURL(u3);
+        Assert.assertEquals(3, handler.calls.get());
+        csh.toURL(u1);
+        Assert.assertEquals(3, handler.calls.get());
+        csh.toURL(u2);
+        Assert.assertEquals(4, handler.calls.get());
+
+        // expired
+        Thread.sleep(150L);
+        csh.toURL(u2);
+        Assert.assertEquals(5, handler.calls.get());
+    }
+
+    @Test
+    public void testStorageResolver()
+        throws Exception
+    {
+        CountingResolver resolver = new CountingResolver();
+        CachingStorageResolver csr = new CachingStorageResolver(resolver, 100, 60000L);
+        Assert.assertEquals("test", csr.getScheme());
+        URI uri = new URI("test://www.example.com/foo");
+        Assert.assertEquals(new URL("http://www.example.com/foo"), csr.toURL(uri));
+        Assert.assertEquals(new URL("http://www.example.com/foo"), csr.toURL(uri));
+        Assert.assertEquals(1, resolver.calls.get());
+
+        URI uri2 = new URI("test://www.example.com/bar");
+        Map<URI,URL> map = csr.toURL(Arrays.asList(uri, uri2));
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals(new URL("http://www.example.com/bar"), map.get(uri2));
+        Assert.assertEquals(2, resolver.calls.get());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.FileUtil;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DownloadCoordinatorTest
+{
+    private static final Logger log = Logger.getLogger(DownloadCoordinatorTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    private static List<Thread> start(CoordinatedDownload... downloads)
+    {
+        List<Thread> ret = new ArrayList<Thread>();
+        for (CoordinatedDownload d : downloads)
+        {
+            Thread t = new Thread(d);
+            t.start();
+            ret.add(t);
+        }
+        return ret;
+    }
+
+    private static void join(List<Thread> threads)
+        throws InterruptedException
+    {
+        for (Thread t : threads)
+        {
+            t.join(10000L);
+            Assert.assertFalse(t.isAlive());
+        }
+    }
+
+    @Test
+    public void testShared()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(200 * 1024);
+        server.setContent("/coord/shared", data);
+        File dest = File.createTempFile("DownloadCoordinatorTest", ".dat");
+        server.delay = 500L;
+        try
+        {
+            DownloadCoordinator dc = new DownloadCoordinator();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final ByteArrayOutputStream wrapped = new ByteArrayOutputStream();
+            CoordinatedDownload d1 = dc.createDownload(server.getURL("/coord/shared"), dest);
+            CoordinatedDownload d2 = dc.createDownload(server.getURL("/coord/shared"), bos);
+            CoordinatedDownload d3 = dc.createDownload(server.getURL("/coord/shared"), new InputStreamWrapper()
+            {
+                @Override
+                public void read(InputStream in)
+                    throws IOException
+                {
+                    byte[] buf = new byte[1000];
+                    int n = in.read(buf);
+                    while (n != -1)
+                    {
+                        wrapped.write(buf, 0, n);
+                        n = in.read(buf);
+                    }
+                }
+            });
+            int requests = server.requestCount.get();
+            join(start(d1, d2, d3));
+
+            Assert.assertEquals(1, dc.getTransferCount());
+            Assert.assertEquals(0, dc.getActiveCount());
+            Assert.assertEquals(requests + 1, server.requestCount.get());
+            int shared = 0;
+            for (CoordinatedDownload d : new CoordinatedDownload[] { d1, d2, d3 })
+            {
+                Assert.assertNull(d.getThrowable());
+                Assert.assertFalse(d.isCancelled());
+                Assert.assertEquals(200, d.getResponseCode());
+                Assert.assertEquals(data.length, d.getBytesTransferred());
+                Assert.assertEquals(TestHttpServer.md5(data), d.getContentMD5());
+                if (d.isShared())
+                {
+                    shared++;
+                }
+            }
+            Assert.assertEquals(2, shared);
+            Assert.assertTrue(Arrays.equals(data, FileUtil.readFile(dest)));
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertTrue(Arrays.equals(data, wrapped.toByteArray()));
+
+            // not concurrent: new transfer
+            server.delay = 0L;
+            CoordinatedDownload d4 = dc.createDownload(server.getURL("/coord/shared"), new ByteArrayOutputStream());
+            d4.run();
+            Assert.assertNull(d4.getThrowable());
+            Assert.assertFalse(d4.isShared());
+            Assert.assertEquals(2, dc.getTransferCount());
+        }
+        finally
+        {
+            server.delay = 0L;
+            dest.delete();
+        }
+    }
+
+    @Test
+    public void testFailure()
+        throws Exception
+    {
+        File dest = File.createTempFile("DownloadCoordinatorTest", ".dat");
+        dest.delete();
+        server.delay = 500L;
+        try
+        {
+            DownloadCoordinator dc = new DownloadCoordinator();
+            CoordinatedDownload d1 = dc.createDownload(server.getURL("/coord/none"), dest);
+            CoordinatedDownload d2 = dc.createDownload(server.getURL("/coord/none"), new ByteArrayOutputStream());
+            join(start(d1, d2));
+
+            Assert.assertEquals(1, dc.getTransferCount());
+            Assert.assertEquals(404, d1.getResponseCode());
+            Assert.assertNotNull(d1.getThrowable());
+            Assert.assertSame(d1.getThrowable(), d2.getThrowable());
+            Assert.assertFalse(dest.exists());
+        }
+        finally
+        {
+            server.delay = 0L;
+        }
+    }
+
+    @Test
+    public void testCancel()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(10000);
+        server.setContent("/coord/cancel", data);
+        server.delay = 1000L;
+        try
+        {
+            DownloadCoordinator dc = new DownloadCoordinator();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            CoordinatedDownload d1 = dc.createDownload(server.getURL("/coord/cancel"), new ByteArrayOutputStream());
+            CoordinatedDownload d2 = dc.createDownload(server.getURL("/coord/cancel"), bos);
+            List<Thread> threads = start(d1, d2);
+            Thread.sleep(200L);
+
+            // other waiter not affected
+            d1.terminate();
+            join(threads);
+            Assert.assertTrue(d1.isCancelled());
+            Assert.assertNull(d1.getThrowable());
+            Assert.assertNull(d2.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+
+            // last waiter cancels the transfer
+            CoordinatedDownload d3 = dc.createDownload(server.getURL("/coord/cancel"), new ByteArrayOutputStream());
+            threads = start(d3);
+            Thread.sleep(200L);
+            Assert.assertEquals(1, dc.getActiveCount());
+            d3.terminate();
+            join(threads);
+            Assert.assertTrue(d3.isCancelled());
+            Assert.assertNull(d3.getThrowable());
+            Assert.assertEquals(0, d3.getBytesTransferred());
+            Assert.assertEquals(0, dc.getActiveCount());
+        }
+        finally
+        {
+            server.delay = 0L;
+        }
+    }
+}
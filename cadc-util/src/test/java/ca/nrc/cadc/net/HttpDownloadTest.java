@@ -0,0 +1,908 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.net.event.ProgressListener;
+import ca.nrc.cadc.net.event.TransferEvent;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for HttpDownload using a local server.
+ */
+public class HttpDownloadTest
+{
+    private static final Logger log = Logger.getLogger(HttpDownloadTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+    private static File tmpDir;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+        tmpDir = Files.createTempDirectory(HttpDownloadTest.class.getSimpleName()).toFile();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testSegmentedDownload()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(5 * (int) HttpDownload.MIN_SEGMENT_SIZE + 123);
+        server.setContent("/seg", data);
+        server.ranges.clear();
+
+        File dest = new File(tmpDir, "seg");
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong last = new AtomicLong();
+        HttpDownload dl = new HttpDownload(server.getURL("/seg"), dest);
+        dl.setSegments(4);
+        dl.setProgressListener(new ProgressListener()
+        {
+            public void update(long newBytes, long totalBytes)
+            {
+                total.addAndGet(newBytes);
+                last.set(totalBytes);
+            }
+
+            public void transferEvent(TransferEvent te)
+            {
+                log.debug(te);
+            }
+
+            public String getEventHeader()
+            {
+                return null;
+            }
+        });
+        dl.run();
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        Assert.assertEquals(4, server.ranges.size());
+        Assert.assertEquals(dest, dl.getFile());
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+        Assert.assertFalse(new File(tmpDir, "seg.part").exists());
+        Assert.assertEquals(data.length, total.get());
+        Assert.assertEquals(data.length, last.get());
+    }
+
+    @Test
+    public void testSegmentedIfRange()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(3 * (int) HttpDownload.MIN_SEGMENT_SIZE);
+        server.setContent("/segtag", data);
+        server.sendETag = true;
+        server.ifRanges.clear();
+        try
+        {
+            File dest = new File(tmpDir, "segtag");
+            HttpDownload dl = new HttpDownload(server.getURL("/segtag"), dest);
+            dl.setSegments(3);
+            dl.setOverwrite(true);
+            dl.run();
+
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+            // probe and two more segments pinned to the ETag
+            Assert.assertEquals(3, server.ifRanges.size());
+            for (String ir : server.ifRanges)
+            {
+                Assert.assertEquals("\"" + TestHttpServer.md5(data) + "\"", ir);
+            }
+        }
+        finally
+        {
+            server.sendETag = false;
+        }
+    }
+
+    @Test
+    public void testSegmentedContentRangeMismatch()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(3 * (int) HttpDownload.MIN_SEGMENT_SIZE);
+        server.setContent("/segshift", data);
+        server.shiftRanges = true;
+        try
+        {
+            File dest = new File(tmpDir, "segshift");
+            HttpDownload dl = new HttpDownload(server.getURL("/segshift"), dest);
+            dl.setSegments(3);
+            dl.setOverwrite(true);
+            dl.run();
+
+            Assert.assertNotNull(dl.getThrowable());
+            Assert.assertTrue(dl.getThrowable().getMessage(), dl.getThrowable().getMessage().contains("Content-Range"));
+            Assert.assertFalse(dest.exists());
+            Assert.assertFalse(new File(tmpDir, "segshift.part").exists());
+        }
+        finally
+        {
+            server.shiftRanges = false;
+        }
+    }
+
+    @Test
+    public void testSegmentedBadMD5()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(3 * (int) HttpDownload.MIN_SEGMENT_SIZE);
+        server.setContent("/segmd5", data);
+        server.wrongMD5 = true;
+        try
+        {
+            File dest = new File(tmpDir, "segmd5");
+            HttpDownload dl = new HttpDownload(server.getURL("/segmd5"), dest);
+            dl.setSegments(3);
+            dl.setOverwrite(true);
+            dl.run();
+
+            Assert.assertTrue("failure: " + dl.getThrowable(), dl.getThrowable() instanceof IncorrectContentChecksumException);
+            Assert.assertFalse(dest.exists());
+            Assert.assertFalse(new File(tmpDir, "segmd5.part").exists());
+        }
+        finally
+        {
+            server.wrongMD5 = false;
+        }
+    }
+
+    @Test
+    public void testSegmentedFallback()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(3 * (int) HttpDownload.MIN_SEGMENT_SIZE);
+        server.setContent("/noseg", data);
+        server.supportRanges = false;
+        try
+        {
+            File dest = new File(tmpDir, "noseg");
+            HttpDownload dl = new HttpDownload(server.getURL("/noseg"), dest);
+            dl.setSegments(4);
+            dl.run();
+
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+        }
+        finally
+        {
+            server.supportRanges = true;
+        }
+    }
+
+    @Test
+    public void testDownloadNIO()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(1000000);
+        server.setContent("/nio", data);
+
+        File dest = new File(tmpDir, "nio");
+        HttpDownload dl = new HttpDownload(server.getURL("/nio"), dest);
+        dl.setUseNIO(true);
+        dl.setLogIO(true);
+        dl.run();
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        Assert.assertEquals(TestHttpServer.md5(data), dl.getContentMD5());
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+        Assert.assertNotNull(dl.getIOReadTime());
+    }
+
+    @Test
+    public void testSmallFileNotSegmented()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(1000);
+        server.setContent("/small", data);
+        server.ranges.clear();
+
+        File dest = new File(tmpDir, "small");
+        HttpDownload dl = new HttpDownload(server.getURL("/small"), dest);
+        dl.setSegments(4);
+        dl.run();
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        Assert.assertTrue(server.ranges.isEmpty());
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+    }
+
+    @Test
+    public void testStreamingDecompressGzip()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(300000);
+        byte[] gz = gzip(data);
+        server.setContent("/stream.dat.gz", gz);
+
+        File dest = new File(tmpDir, "stream.dat.gz");
+        HttpDownload dl = new HttpDownload(server.getURL("/stream.dat.gz"), dest);
+        dl.setDecompress(true);
+        dl.setStreamingDecompress(true);
+        dl.setOverwrite(true);
+        dl.run();
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        File out = new File(tmpDir, "stream.dat");
+        Assert.assertEquals(out, dl.getFile());
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(out.toPath())));
+        Assert.assertFalse(dest.exists());
+        Assert.assertFalse(new File(tmpDir, "stream.dat.gz.part").exists());
+        Assert.assertFalse(new File(tmpDir, "stream.dat.part").exists());
+        Assert.assertEquals(gz.length, dl.getBytesTransferred());
+        Assert.assertEquals(TestHttpServer.md5(gz), dl.getContentMD5());
+    }
+
+    @Test
+    public void testStreamingDecompressZip()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(200000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        zos.putNextEntry(new ZipEntry("zstream.dat"));
+        zos.write(data);
+        zos.closeEntry();
+        zos.close();
+        byte[] zip = bos.toByteArray();
+        server.setContent("/zstream.dat.zip", zip);
+
+        File dest = new File(tmpDir, "zstream.dat.zip");
+        HttpDownload dl = new HttpDownload(server.getURL("/zstream.dat.zip"), dest);
+        dl.setDecompress(true);
+        dl.setStreamingDecompress(true);
+        dl.setOverwrite(true);
+        dl.run();
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        File out = new File(tmpDir, "zstream.dat");
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(out.toPath())));
+        Assert.assertEquals(zip.length, dl.getBytesTransferred());
+    }
+
+    @Test
+    public void testStreamingDecompressBadMD5()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(100000);
+        server.setContent("/badmd5.dat.gz", gzip(data));
+        server.wrongMD5 = true;
+        try
+        {
+            File dest = new File(tmpDir, "badmd5.dat.gz");
+            HttpDownload dl = new HttpDownload(server.getURL("/badmd5.dat.gz"), dest);
+            dl.setDecompress(true);
+            dl.setStreamingDecompress(true);
+            dl.setOverwrite(true);
+            dl.run();
+
+            Assert.assertTrue("failure: " + dl.getThrowable(), dl.getThrowable() instanceof IncorrectContentChecksumException);
+            Assert.assertFalse(new File(tmpDir, "badmd5.dat").exists());
+            Assert.assertFalse(new File(tmpDir, "badmd5.dat.part").exists());
+        }
+        finally
+        {
+            server.wrongMD5 = false;
+        }
+    }
+
+    @Test
+    public void testStreamingDecompressResumeFallback()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(300000);
+        byte[] gz = gzip(data);
+        server.setContent("/resume.dat.gz", gz);
+
+        // partial compressed file from a previous attempt
+        int partial = gz.length / 3;
+        File part = new File(tmpDir, "resume.dat.gz.part");
+        Files.write(part.toPath(), Arrays.copyOf(gz, partial));
+
+        File dest = new File(tmpDir, "resume.dat.gz");
+        HttpDownload dl = new HttpDownload(server.getURL("/resume.dat.gz"), dest);
+        dl.setDecompress(true);
+        dl.setStreamingDecompress(true);
+        dl.setOverwrite(true);
+        dl.run();
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        File out = new File(tmpDir, "resume.dat");
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(out.toPath())));
+        Assert.assertFalse(part.exists());
+        Assert.assertFalse(dest.exists());
+        Assert.assertEquals(gz.length - partial, dl.getBytesTransferred());
+    }
+
+    @Test
+    public void testPartResumeIfRange()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(300000);
+        server.setContent("/resume-part.dat", data);
+        server.ifRanges.clear();
+        server.sendETag = true;
+        try
+        {
+            // partial file from a previous attempt
+            int partial = data.length / 3;
+            File part = new File(tmpDir, "resume-part.dat.part");
+            Files.write(part.toPath(), Arrays.copyOf(data, partial));
+
+            File dest = new File(tmpDir, "resume-part.dat");
+            HttpDownload dl = new HttpDownload(server.getURL("/resume-part.dat"), dest);
+            dl.setOverwrite(true);
+            dl.run();
+
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+            Assert.assertEquals(data.length - partial, dl.getBytesTransferred());
+            Assert.assertEquals(Arrays.asList("\"" + TestHttpServer.md5(data) + "\""), server.ifRanges);
+        }
+        finally
+        {
+            server.sendETag = false;
+        }
+    }
+
+    @Test
+    public void testAcceptEncoding()
+        throws Exception
+    {
+        byte[] data = compressibleContent(500000);
+        server.setContent("/encoded.xml", data);
+        server.ranges.clear();
+        server.encodeContent = true;
+        try
+        {
+            // gzip to file: not segmented since Content-Length is the encoded size
+            File dest = new File(tmpDir, "encoded.xml");
+            HttpDownload dl = new HttpDownload(server.getURL("/encoded.xml"), dest);
+            dl.setAcceptEncoding(true);
+            dl.setSegments(4);
+            dl.setOverwrite(true);
+            dl.run();
+
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertEquals(dest, dl.getFile());
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+            Assert.assertTrue(server.ranges.isEmpty());
+            byte[] gz = TestHttpServer.encode(data, "gzip");
+            Assert.assertEquals("gzip", dl.getContentEncoding());
+            Assert.assertEquals(gz.length, dl.getContentLength());
+            Assert.assertEquals(data.length, dl.getBytesTransferred());
+            Assert.assertEquals(data.length, dl.getSize());
+            Assert.assertEquals(gz.length, dl.getWireBytes());
+
+            // not requested: identity
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            dl = new HttpDownload(server.getURL("/encoded.xml"), bos);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertNull(dl.getContentEncoding());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertEquals(data.length, dl.getWireBytes());
+        }
+        finally
+        {
+            server.encodeContent = false;
+        }
+    }
+
+    @Test
+    public void testAcceptEncodingWrapper()
+        throws Exception
+    {
+        final byte[] data = compressibleContent(100000);
+        server.setContent("/encoded.json", data);
+        server.encodeContent = true;
+        try
+        {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpDownload dl = new HttpDownload(server.getURL("/encoded.json"), new InputStreamWrapper()
+            {
+                public void read(InputStream in)
+                    throws IOException
+                {
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while ((n = in.read(buf)) != -1)
+                    {
+                        bos.write(buf, 0, n);
+                    }
+                }
+            });
+            dl.setAcceptEncoding(true);
+            dl.run();
+
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertEquals(data.length, dl.getBytesTransferred());
+            Assert.assertTrue(dl.getWireBytes() < data.length);
+        }
+        finally
+        {
+            server.encodeContent = false;
+        }
+    }
+
+    @Test
+    public void testCache()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(300000);
+        server.setContent("/cached.dat", data);
+        server.sendETag = true;
+        server.notModified.set(0);
+        try
+        {
+            DownloadCache cache = new DownloadCache(new File(tmpDir, "cache"), 10000000L);
+            File dest = new File(tmpDir, "cached.dat");
+            HttpDownload dl = new HttpDownload(server.getURL("/cached.dat"), dest);
+            dl.setCache(cache);
+            dl.setOverwrite(true);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertFalse(dl.isFromCache());
+            Assert.assertEquals(1, cache.getEntryCount());
+            Assert.assertEquals(data.length, cache.getTotalBytes());
+            DownloadCache.Entry e = cache.get(server.getURL("/cached.dat"));
+            Assert.assertNotNull(e);
+            Assert.assertEquals(TestHttpServer.md5(data), e.getContentMD5());
+            Assert.assertEquals("\"" + TestHttpServer.md5(data) + "\"", e.getETag());
+
+            // file
+            dest.delete();
+            dl = new HttpDownload(server.getURL("/cached.dat"), dest);
+            dl.setCache(cache);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(dl.isFromCache());
+            Assert.assertEquals(1, server.notModified.get());
+            Assert.assertEquals(dest, dl.getFile());
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+            Assert.assertEquals(data.length, dl.getBytesTransferred());
+            Assert.assertEquals(TestHttpServer.md5(data), dl.getContentMD5());
+
+            // stream
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            dl = new HttpDownload(server.getURL("/cached.dat"), bos);
+            dl.setCache(cache);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(dl.isFromCache());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+
+            // modified content replaces the entry
+            byte[] data2 = TestHttpServer.randomContent(200000);
+            server.setContent("/cached.dat", data2);
+            bos = new ByteArrayOutputStream();
+            dl = new HttpDownload(server.getURL("/cached.dat"), bos);
+            dl.setCache(cache);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertFalse(dl.isFromCache());
+            Assert.assertTrue(Arrays.equals(data2, bos.toByteArray()));
+            Assert.assertEquals(1, cache.getEntryCount());
+            Assert.assertEquals(data2.length, cache.getTotalBytes());
+
+            // wrapper
+            final ByteArrayOutputStream wbos = new ByteArrayOutputStream();
+            dl = new HttpDownload(server.getURL("/cached.dat"), new InputStreamWrapper()
+            {
+                public void read(InputStream in)
+                    throws IOException
+                {
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while ((n = in.read(buf)) != -1)
+                    {
+                        wbos.write(buf, 0, n);
+                    }
+                }
+            });
+            dl.setCache(cache);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(dl.isFromCache());
+            Assert.assertTrue(Arrays.equals(data2, wbos.toByteArray()));
+            Assert.assertEquals(3, server.notModified.get());
+
+            // entries persist; only stale temporary files are removed
+            File live = new File(new File(tmpDir, "cache"), "download-live.tmp");
+            File stale = new File(new File(tmpDir, "cache"), "download-stale.tmp");
+            Files.write(live.toPath(), data2);
+            Files.write(stale.toPath(), data2);
+            stale.setLastModified(System.currentTimeMillis() - DownloadCache.STALE_TMP_AGE - 60000L);
+            DownloadCache cache2 = new DownloadCache(new File(tmpDir, "cache"), 10000000L);
+            Assert.assertEquals(1, cache2.getEntryCount());
+            Assert.assertTrue(live.exists());
+            Assert.assertFalse(stale.exists());
+            live.delete();
+            Assert.assertEquals(TestHttpServer.md5(data2), cache2.get(server.getURL("/cached.dat")).getContentMD5());
+        }
+        finally
+        {
+            server.sendETag = false;
+        }
+    }
+
+    @Test
+    public void testCacheEviction()
+        throws Exception
+    {
+        server.sendETag = true;
+        try
+        {
+            DownloadCache cache = new DownloadCache(new File(tmpDir, "lru"), 250000L);
+            for (int i = 0; i < 3; i++)
+            {
+                server.setContent("/lru" + i, TestHttpServer.randomContent(100000 + i));
+                HttpDownload dl = new HttpDownload(server.getURL("/lru" + i), new ByteArrayOutputStream());
+                dl.setCache(cache);
+                dl.run();
+                Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+                if (i == 1)
+                {
+                    Assert.assertNotNull(cache.get(server.getURL("/lru0"))); // most recently used
+                }
+            }
+            Assert.assertEquals(2, cache.getEntryCount());
+            Assert.assertNotNull(cache.get(server.getURL("/lru0")));
+            Assert.assertNull(cache.get(server.getURL("/lru1")));
+            Assert.assertNotNull(cache.get(server.getURL("/lru2")));
+            Assert.assertTrue(cache.getTotalBytes() <= 250000L);
+
+            // larger than the cache
+            server.setContent("/big", TestHttpServer.randomContent(300000));
+            HttpDownload dl = new HttpDownload(server.getURL("/big"), new ByteArrayOutputStream());
+            dl.setCache(cache);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertNull(cache.get(server.getURL("/big")));
+            Assert.assertEquals(2, cache.getEntryCount());
+
+            cache.setMaxBytes(150000L);
+            Assert.assertEquals(1, cache.getEntryCount());
+            cache.clear();
+            Assert.assertEquals(0, cache.getEntryCount());
+            Assert.assertEquals(0L, cache.getTotalBytes());
+        }
+        finally
+        {
+            server.sendETag = false;
+        }
+    }
+
+    @Test
+    public void testMirrorFailover()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(200000);
+        server.setContent("/mirror.dat", data);
+        TestHttpServer server2 = new TestHttpServer();
+        try
+        {
+            // same server process, different host name
+            URL good = server.getURL("/mirror.dat");
+            URL bad = new URL("http://127.0.0.1:" + server2.getURL("/").getPort() + "/mirror.dat");
+            MirrorSelector sel = new MirrorSelector();
+            
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpDownload dl = new HttpDownload(bad, bos);
+            dl.setMirrors(Arrays.asList(bad, good));
+            dl.setMirrorSelector(sel);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertEquals(good, dl.getURL());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertEquals(1, server2.requestCount.get());
+            Assert.assertTrue(sel.getCost("127.0.0.1") >= MirrorSelector.FAILURE_PENALTY);
+            Assert.assertEquals(Arrays.asList(good, bad), sel.order(Arrays.asList(bad, good)));
+
+            // failed mirror is tried last
+            File dest = new File(tmpDir, "mirror.dat");
+            dl = new HttpDownload(bad, dest);
+            dl.setMirrors(Arrays.asList(bad, good));
+            dl.setMirrorSelector(sel);
+            dl.setOverwrite(true);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+            Assert.assertEquals(1, server2.requestCount.get());
+
+            // all mirrors fail
+            URL missing = server.getURL("/no-such-file");
+            dl = new HttpDownload(bad, new ByteArrayOutputStream());
+            dl.setMirrors(Arrays.asList(bad, missing));
+            dl.setMirrorSelector(sel);
+            dl.run();
+            Assert.assertNotNull(dl.getThrowable());
+        }
+        finally
+        {
+            server2.stop();
+        }
+    }
+
+    @Test
+    public void testMirrorFailoverRetries()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(1000);
+        server.setContent("/mirror-retry.dat", data);
+        server.requestCount.set(0);
+        server.unavailable.set(4); // two full rounds of 503
+        try
+        {
+            URL m1 = server.getURL("/mirror-retry.dat");
+            URL m2 = new URL("http://127.0.0.1:" + m1.getPort() + "/mirror-retry.dat");
+            RetryPolicy rp = new RetryPolicy();
+            rp.setBackoff(10L, 100L);
+            rp.setRetryBudget(2, 0.0);
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpDownload dl = new HttpDownload(m1, bos);
+            dl.setMirrors(Arrays.asList(m1, m2));
+            dl.setMirrorSelector(new MirrorSelector());
+            dl.setRetry(2, 1, HttpTransfer.RetryReason.TRANSIENT);
+            dl.setRetryPolicy(rp);
+            dl.run();
+
+            // failing over to the next mirror is not a retry: two retries are two rounds
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertEquals(5, server.requestCount.get());
+        }
+        finally
+        {
+            server.unavailable.set(0);
+        }
+    }
+
+    @Test
+    public void testMirrorFirstByteLatency()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(200000);
+        server.setContent("/latency.dat", data);
+        server.bodyDelay = 1000L;
+        try
+        {
+            final List<Long> latency = new ArrayList<Long>();
+            MirrorSelector sel = new MirrorSelector()
+            {
+                @Override
+                public synchronized void recordLatency(String host, long millis)
+                {
+                    latency.add(millis);
+                    super.recordLatency(host, millis);
+                }
+            };
+            URL url = server.getURL("/latency.dat");
+            URL alias = new URL("http://127.0.0.1:" + url.getPort() + "/latency.dat");
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpDownload dl = new HttpDownload(url, bos);
+            dl.setMirrors(Arrays.asList(url, alias));
+            dl.setMirrorSelector(sel);
+            dl.run();
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertTrue("response latency: " + dl.getResponceLatency(), dl.getResponceLatency() >= 1000L);
+
+            // ranking uses the time to the first byte, not the whole transfer
+            Assert.assertEquals(1, latency.size());
+            Assert.assertTrue("first byte latency: " + latency.get(0), latency.get(0) < 1000L);
+        }
+        finally
+        {
+            server.bodyDelay = 0L;
+        }
+    }
+
+    @Test
+    public void testMirrorSlowStart()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(100000);
+        server.setContent("/slow.dat", data);
+        TestHttpServer server2 = new TestHttpServer();
+        server2.setContent("/slow.dat", data);
+        server2.delay = 3000L;
+        try
+        {
+            URL fast = server.getURL("/slow.dat");
+            URL slow = new URL("http://127.0.0.1:" + server2.getURL("/").getPort() + "/slow.dat");
+            MirrorSelector sel = new MirrorSelector();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpDownload dl = new HttpDownload(slow, bos);
+            dl.setMirrors(Arrays.asList(slow, fast));
+            dl.setMirrorSelector(sel);
+            dl.setSlowStart(200L);
+            long start = System.currentTimeMillis();
+            dl.run();
+            long dt = System.currentTimeMillis() - start;
+            log.info("slow start failover: " + dt + "ms");
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertEquals(fast, dl.getURL());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertTrue("elapsed: " + dt, dt < 2000L);
+
+            // race: slower mirror is cancelled
+            sel = new MirrorSelector();
+            server2.delay = 1000L;
+            bos = new ByteArrayOutputStream();
+            dl = new HttpDownload(slow, bos);
+            dl.setMirrors(Arrays.asList(slow, fast));
+            dl.setMirrorSelector(sel);
+            dl.setRaceMirrors(true);
+            start = System.currentTimeMillis();
+            dl.run();
+            dt = System.currentTimeMillis() - start;
+            log.info("race: " + dt + "ms");
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertEquals(fast, dl.getURL());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertTrue("elapsed: " + dt, dt < 1000L);
+            Assert.assertTrue(sel.getCost("127.0.0.1") > sel.getCost("localhost"));
+        }
+        finally
+        {
+            server2.stop();
+        }
+    }
+
+    @Test
+    public void testMirrorRaceVirtualHosts()
+        throws Exception
+    {
+        // two names for the same address: URL.equals treats them as the same mirror
+        byte[] data = TestHttpServer.randomContent(100000);
+        server.setContent("/vhost.dat", data);
+        URL fast = server.getURL("/vhost.dat");
+        URL slow = new URL("http://127.0.0.1:" + fast.getPort() + "/vhost.dat");
+        server.delay = 1000L;
+        server.delayHost = "127.0.0.1";
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpDownload dl = new HttpDownload(slow, bos);
+            dl.setMirrors(Arrays.asList(slow, fast));
+            dl.setMirrorSelector(new MirrorSelector());
+            dl.setRaceMirrors(true);
+            long start = System.currentTimeMillis();
+            dl.run();
+            long dt = System.currentTimeMillis() - start;
+            log.info("race virtual hosts: " + dt + "ms");
+            Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+            Assert.assertEquals(fast.toExternalForm(), dl.getURL().toExternalForm());
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+            Assert.assertTrue("elapsed: " + dt, dt < 1000L);
+        }
+        finally
+        {
+            server.delay = 0L;
+            server.delayHost = null;
+        }
+    }
+
+    static byte[] compressibleContent(int len)
+    {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (sb.length() < len)
+        {
+            sb.append("<TR><TD>").append(i++).append("</TD><TD>some value</TD></TR>\n");
+        }
+        return sb.substring(0, len).getBytes();
+    }
+
+    private static byte[] gzip(byte[] data)
+        throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,379 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for HttpPost using a local server.
+ */
+public class HttpPostTest
+{
+    private static final Logger log = Logger.getLogger(HttpPostTest.class);
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+    private static File tmpDir;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+        tmpDir = Files.createTempDirectory(HttpPostTest.class.getSimpleName()).toFile();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testFormEncoding()
+        throws Exception
+    {
+        server.postRedirect = null;
+        server.postHeaders.clear();
+        Map<String,Object> params = new TreeMap<String,Object>();
+        params.put("a", "1");
+        params.put("b", "x&y z");
+
+        HttpPost post = new HttpPost(server.getURL("/post/form"), params, false);
+        post.run();
+        Assert.assertNull(post.getThrowable());
+        Assert.assertEquals(200, post.getResponseCode());
+
+        String expected = "a=1&b=x%26y+z&";
+        Assert.assertEquals(expected, post.getResponseBody());
+        Assert.assertEquals("Content-Length: " + expected.length(), server.postHeaders.get(0));
+    }
+
+    @Test
+    public void testMultipartStreaming()
+        throws Exception
+    {
+        server.postRedirect = null;
+        server.postHeaders.clear();
+        byte[] data = TestHttpServer.randomContent(200000);
+        File f = new File(tmpDir, "upload.bin");
+        Files.write(f.toPath(), data);
+
+        Map<String,Object> params = new TreeMap<String,Object>();
+        params.put("param", "value");
+        params.put("file", f);
+        params.put("inline", new FileContent("inline content", "text/plain", LATIN1));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpPost post = new HttpPost(server.getURL("/post/multi"), params, bos);
+        post.setBufferSize(4096);
+        post.run();
+        Assert.assertNull(post.getThrowable());
+        Assert.assertEquals(200, post.getResponseCode());
+
+        byte[] body = server.getContent("/post/multi");
+        Assert.assertArrayEquals(body, bos.toByteArray());
+        Assert.assertEquals("Content-Length: " + body.length, server.postHeaders.get(0));
+
+        String s = new String(body, LATIN1);
+        Assert.assertTrue(s.contains("name=\"param\"\r\n\r\nvalue"));
+        Assert.assertTrue(s.contains("name=\"file\"; filename=\"upload.bin\"\r\n\r\n" + new String(data, LATIN1)));
+        Assert.assertTrue(s.contains("name=\"inline\"; filename=\"dummyFile\"\r\nContent-Type: text/plain\r\n\r\ninline content"));
+        Assert.assertTrue(s.endsWith("--\r\n"));
+    }
+
+    @Test
+    public void testFollowRedirect()
+        throws Exception
+    {
+        server.setContent("/post/result", "job created".getBytes(LATIN1));
+        server.postRedirect = server.getURL("/post/result").toExternalForm();
+        try
+        {
+            Map<String,Object> params = new TreeMap<String,Object>();
+            params.put("a", "1");
+
+            server.getHeaders.clear();
+            HttpPost post = new HttpPost(server.getURL("/post/redirect"), params, true);
+            post.setUserAgent("test-agent");
+            post.setRequestProperty("X-Test", "token");
+            post.run();
+            Assert.assertNull(post.getThrowable());
+            Assert.assertEquals(200, post.getResponseCode());
+            Assert.assertEquals("job created", post.getResponseBody());
+            // request headers are sent with the GET
+            Assert.assertEquals(Arrays.asList("User-Agent: test-agent", "X-Test: token"), server.getHeaders);
+
+            post = new HttpPost(server.getURL("/post/redirect"), params, false);
+            post.run();
+            Assert.assertNull(post.getThrowable());
+            Assert.assertEquals(303, post.getResponseCode());
+            Assert.assertEquals(server.getURL("/post/result"), post.getRedirectURL());
+        }
+        finally
+        {
+            server.postRedirect = null;
+        }
+    }
+
+    @Test
+    public void testStreamContent()
+        throws Exception
+    {
+        server.postRedirect = null;
+        server.postHeaders.clear();
+        byte[] data = TestHttpServer.randomContent(100000);
+        File f = new File(tmpDir, "content.bin");
+        Files.write(f.toPath(), data);
+
+        FileContent[] inputs = new FileContent[] {
+            new FileContent(new ByteArrayInputStream(data), "application/octet-stream", -1L),
+            new FileContent(Channels.newChannel(new ByteArrayInputStream(data)), "application/octet-stream", data.length),
+            new FileContent(f, "application/octet-stream")
+        };
+        for (FileContent fc : inputs)
+        {
+            Assert.assertNull(fc.getBytes());
+            HttpPost post = new HttpPost(server.getURL("/post/stream"), fc, false);
+            post.setBufferSize(8192);
+            post.run();
+            Assert.assertNull(post.getThrowable());
+            Assert.assertEquals(200, post.getResponseCode());
+            Assert.assertArrayEquals(data, server.getContent("/post/stream"));
+        }
+        Assert.assertEquals("Transfer-Encoding: chunked", server.postHeaders.get(0));
+        Assert.assertEquals("Content-Length: " + data.length, server.postHeaders.get(1));
+        Assert.assertEquals("Content-Length: " + data.length, server.postHeaders.get(2));
+    }
+
+    @Test
+    public void testMultipartStreamContent()
+        throws Exception
+    {
+        server.postRedirect = null;
+        server.postHeaders.clear();
+        byte[] data = TestHttpServer.randomContent(50000);
+
+        Map<String,Object> params = new TreeMap<String,Object>();
+        params.put("param", "value");
+        params.put("upload", new FileContent(new ByteArrayInputStream(data), "application/x-votable+xml", -1L));
+
+        HttpPost post = new HttpPost(server.getURL("/post/multistream"), params, false);
+        post.run();
+        Assert.assertNull(post.getThrowable());
+        Assert.assertEquals("Transfer-Encoding: chunked", server.postHeaders.get(0));
+
+        String s = new String(server.getContent("/post/multistream"), LATIN1);
+        Assert.assertTrue(s.contains("Content-Type: application/x-votable+xml\r\n\r\n" + new String(data, LATIN1)));
+        Assert.assertTrue(s.contains("name=\"param\"\r\n\r\nvalue"));
+    }
+
+    @Test
+    public void testNoRetryConsumedStream()
+        throws Exception
+    {
+        server.postRedirect = null;
+        server.unavailable.set(1);
+        server.retryAfter = "1";
+        try
+        {
+            byte[] data = TestHttpServer.randomContent(1000);
+            FileContent fc = new FileContent(new ByteArrayInputStream(data), "application/octet-stream", data.length);
+            HttpPost post = new HttpPost(server.getURL("/post/noretry"), fc, false);
+            post.setMaxRetries(3);
+            post.run();
+            Assert.assertNotNull(post.getThrowable());
+            Assert.assertTrue(post.getThrowable().toString(), post.getThrowable().getCause() instanceof TransientException);
+        }
+        finally
+        {
+            server.unavailable.set(0);
+            server.retryAfter = null;
+        }
+    }
+
+    @Test
+    public void testResponseWrapper()
+        throws Exception
+    {
+        server.postRedirect = null;
+        final byte[] data = TestHttpServer.randomContent(30000);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpPost post = new HttpPost(server.getURL("/post/wrapper"), new FileContent(data, "application/octet-stream"), false);
+        post.setResponseWrapper(new InputStreamWrapper()
+        {
+            public void read(InputStream in)
+                throws IOException
+            {
+                byte[] buf = new byte[1000];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                {
+                    bos.write(buf, 0, n);
+                }
+            }
+        });
+        post.run();
+        Assert.assertNull(post.getThrowable());
+        Assert.assertArrayEquals(data, bos.toByteArray());
+        Assert.assertEquals(data.length, post.getBytesTransferred());
+        Assert.assertNull(post.getResponseBody());
+        Assert.assertNull(post.getResponseFile());
+    }
+
+    @Test
+    public void testSpillThreshold()
+        throws Exception
+    {
+        server.postRedirect = null;
+        String small = "small response";
+        HttpPost post = new HttpPost(server.getURL("/post/small"), new FileContent(small, "text/plain", LATIN1), false);
+        post.setSpillThreshold(1000L);
+        post.run();
+        Assert.assertNull(post.getThrowable());
+        Assert.assertEquals(small, post.getResponseBody());
+        Assert.assertNull(post.getResponseFile());
+
+        byte[] data = TestHttpServer.randomContent(20000);
+        post = new HttpPost(server.getURL("/post/large"), new FileContent(data, "application/octet-stream"), false);
+        post.setSpillThreshold(1000L);
+        post.setBufferSize(512);
+        post.run();
+        Assert.assertNull(post.getThrowable());
+        Assert.assertNull(post.getResponseBody());
+        File f = post.getResponseFile();
+        Assert.assertNotNull(f);
+        try
+        {
+            Assert.assertArrayEquals(data, Files.readAllBytes(f.toPath()));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            InputStream in = post.openResponseStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1)
+            {
+                bos.write(buf, 0, n);
+            }
+            in.close();
+            Assert.assertArrayEquals(data, bos.toByteArray());
+        }
+        finally
+        {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testAcceptEncoding()
+        throws Exception
+    {
+        server.postRedirect = null;
+        server.encodeContent = true;
+        try
+        {
+            String doc = new String(HttpDownloadTest.compressibleContent(50000), LATIN1);
+            HttpPost post = new HttpPost(server.getURL("/post/encoded"), new FileContent(doc, "text/xml", LATIN1), false);
+            post.setAcceptEncoding(true);
+            post.run();
+            Assert.assertNull(post.getThrowable());
+            Assert.assertEquals("gzip", post.getResponseContentEncoding());
+            Assert.assertEquals(doc, post.getResponseBody());
+            Assert.assertEquals(doc.length(), post.getBytesTransferred());
+            Assert.assertTrue(post.getWireBytes() < doc.length());
+        }
+        finally
+        {
+            server.encodeContent = false;
+        }
+    }
+}
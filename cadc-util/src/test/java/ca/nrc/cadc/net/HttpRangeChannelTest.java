@@ -0,0 +1,359 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.net.event.TransferEvent;
+import ca.nrc.cadc.net.event.TransferListener;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for HttpRangeChannel using a local server.
+ */
+public class HttpRangeChannelTest
+{
+    private static final Logger log = Logger.getLogger(HttpRangeChannelTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+    private static byte[] data = TestHttpServer.randomContent(100003);
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+        server.setContent("/range.fits", data);
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    private static byte[] read(HttpRangeChannel rc, long pos, int len)
+        throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        rc.position(pos);
+        while (buf.hasRemaining())
+        {
+            if (rc.read(buf) == -1)
+            {
+                break;
+            }
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    @Test
+    public void testRandomAccess()
+        throws Exception
+    {
+        HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/range.fits"));
+        rc.setBlockSize(2880);
+        rc.run();
+        Assert.assertNull(rc.getThrowable());
+        Assert.assertEquals(data.length, rc.size());
+        Assert.assertEquals(1, rc.getRangeRequests());
+
+        // header peek: first block is cached
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 0, 80), read(rc, 0L, 80)));
+        Assert.assertEquals(1, rc.getRangeRequests());
+
+        Random rnd = new Random(1L);
+        for (int i = 0; i < 20; i++)
+        {
+            int pos = rnd.nextInt(data.length);
+            int len = rnd.nextInt(5000);
+            int end = Math.min(data.length, pos + len);
+            Assert.assertTrue("read " + pos + "+" + len, Arrays.equals(Arrays.copyOfRange(data, pos, end), read(rc, pos, len)));
+        }
+
+        // read past the end
+        rc.position(data.length + 10);
+        Assert.assertEquals(-1, rc.read(ByteBuffer.allocate(10)));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - 3, data.length), read(rc, data.length - 3, 10)));
+        rc.close();
+        Assert.assertFalse(rc.isOpen());
+    }
+
+    @Test
+    public void testCoalesce()
+        throws Exception
+    {
+        HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/range.fits"));
+        rc.setBlockSize(1000);
+        server.ranges.clear();
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 5500, 9500), read(rc, 5500L, 4000)));
+        Assert.assertEquals(1, rc.getRangeRequests());
+        Assert.assertEquals("bytes=5000-9999", server.ranges.get(0));
+
+        // cached blocks 5-9 are not requested again
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 3000, 12000), read(rc, 3000L, 9000)));
+        Assert.assertEquals(3, rc.getRangeRequests());
+        Assert.assertEquals("bytes=3000-4999", server.ranges.get(1));
+        Assert.assertEquals("bytes=10000-12999", server.ranges.get(2)); // continued read: one block read-ahead
+    }
+
+    @Test
+    public void testSequentialReadAhead()
+        throws Exception
+    {
+        HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/range.fits"));
+        rc.setBlockSize(1024);
+        rc.setCacheBlocks(16);
+        InputStream istream = rc.getInputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[512];
+        int n = istream.read(buf);
+        while (n != -1)
+        {
+            bos.write(buf, 0, n);
+            n = istream.read(buf);
+        }
+        Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+        log.info("sequential read: " + rc.getRangeRequests() + " requests");
+        Assert.assertTrue(rc.getRangeRequests() < 20); // 98 blocks
+
+        // skip moves the position
+        rc.position(0L);
+        Assert.assertEquals(50000L, istream.skip(50000L));
+        Assert.assertEquals(data[50000] & 0xff, istream.read());
+        Assert.assertEquals(data.length - 50001, istream.skip(data.length));
+        Assert.assertEquals(-1, istream.read());
+        istream.close();
+        Assert.assertFalse(rc.isOpen());
+    }
+
+    @Test
+    public void testUnknownSize()
+        throws Exception
+    {
+        byte[] exact = TestHttpServer.randomContent(10000);
+        server.setContent("/exact.fits", exact);
+        server.unknownTotal = true;
+        try
+        {
+            // content ends on a block boundary: end found with a 416 response
+            HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/exact.fits"));
+            rc.setBlockSize(1000);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(exact, 0, 100), read(rc, 0L, 100)));
+            InputStream istream = rc.getInputStream();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(exact, 0, 100);
+            byte[] buf = new byte[700];
+            int n = istream.read(buf);
+            while (n != -1)
+            {
+                bos.write(buf, 0, n);
+                n = istream.read(buf);
+            }
+            Assert.assertTrue(Arrays.equals(exact, bos.toByteArray()));
+            Assert.assertEquals(exact.length, rc.size());
+
+            // size from HEAD
+            rc = new HttpRangeChannel(server.getURL("/range.fits"));
+            rc.setBlockSize(1000);
+            Assert.assertEquals(data.length, rc.size());
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 99000, data.length), read(rc, 99000L, 2000)));
+        }
+        finally
+        {
+            server.unknownTotal = false;
+        }
+    }
+
+    @Test
+    public void testRetry()
+        throws Exception
+    {
+        final List<TransferEvent> events = new ArrayList<TransferEvent>();
+        HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/range.fits"));
+        rc.setTransferListener(new TransferListener()
+        {
+            public void transferEvent(TransferEvent te)
+            {
+                events.add(te);
+            }
+
+            public String getEventHeader()
+            {
+                return null;
+            }
+        });
+        server.retryAfter = "1";
+        server.unavailable.set(1);
+        try
+        {
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 0, 100), read(rc, 0L, 100)));
+            Assert.assertEquals(1, rc.getRetriesPerformed());
+            Assert.assertEquals(1, events.size());
+            Assert.assertEquals(TransferEvent.RETRYING, events.get(0).getState());
+        }
+        finally
+        {
+            server.retryAfter = null;
+            server.unavailable.set(0);
+        }
+    }
+
+    @Test
+    public void testNoRangeSupport()
+        throws Exception
+    {
+        server.supportRanges = false;
+        try
+        {
+            HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/range.fits"));
+            rc.setBlockSize(4096);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 70000, 71000), read(rc, 70000L, 1000)));
+            Assert.assertEquals(data.length, rc.size());
+        }
+        finally
+        {
+            server.supportRanges = true;
+        }
+    }
+
+    @Test
+    public void testChangedResource()
+        throws Exception
+    {
+        byte[] orig = TestHttpServer.randomContent(50000);
+        server.setContent("/changed.fits", orig);
+        server.ifRanges.clear();
+        server.sendETag = true;
+        try
+        {
+            HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/changed.fits"));
+            rc.setBlockSize(4096);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(orig, 0, 100), read(rc, 0L, 100)));
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(orig, 20000, 20100), read(rc, 20000L, 100)));
+            String etag = "\"" + TestHttpServer.md5(orig) + "\"";
+            Assert.assertEquals(Arrays.asList(etag), server.ifRanges);
+
+            // blocks from a different version are not mixed
+            byte[] changed = Arrays.copyOf(orig, orig.length);
+            changed[40000]++;
+            server.setContent("/changed.fits", changed);
+            try
+            {
+                read(rc, 40000L, 100);
+                Assert.fail("expected IOException");
+            }
+            catch (IOException expected)
+            {
+                log.debug("caught expected: " + expected);
+                Assert.assertTrue(expected.getMessage().contains("changed"));
+            }
+        }
+        finally
+        {
+            server.sendETag = false;
+        }
+    }
+
+    @Test
+    public void testNotFound()
+        throws Exception
+    {
+        HttpRangeChannel rc = new HttpRangeChannel(server.getURL("/no-such-file"));
+        rc.run();
+        Assert.assertTrue(rc.getThrowable() instanceof FileNotFoundException);
+        try
+        {
+            rc.read(ByteBuffer.allocate(10));
+            Assert.fail("expected FileNotFoundException");
+        }
+        catch (FileNotFoundException expected)
+        {
+            log.debug("caught expected: " + expected);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HttpTransferExecutorTest
+{
+    private static final Logger log = Logger.getLogger(HttpTransferExecutorTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testSubmit()
+        throws Exception
+    {
+        HttpTransferExecutor exec = new HttpTransferExecutor(2, 1);
+        List<byte[]> data = new ArrayList<byte[]>();
+        List<ByteArrayOutputStream> dest = new ArrayList<ByteArrayOutputStream>();
+        List<TransferFuture<HttpDownload>> futures = new ArrayList<TransferFuture<HttpDownload>>();
+        for (int i = 0; i < 5; i++)
+        {
+            byte[] d = TestHttpServer.randomContent(1000 + i);
+            data.add(d);
+            server.setContent("/exec/" + i, d);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            dest.add(bos);
+            futures.add(exec.submit(new HttpDownload(server.getURL("/exec/" + i), bos)));
+        }
+        TransferFuture<HttpDownload> notFound = exec.submit(new HttpDownload(server.getURL("/exec/none"), new ByteArrayOutputStream()));
+
+        for (int i = 0; i < 5; i++)
+        {
+            TransferResult tr = futures.get(i).get(10, TimeUnit.SECONDS);
+            log.debug(tr);
+            Assert.assertTrue(tr.isSuccessful());
+            Assert.assertEquals(200, tr.getResponseCode());
+            Assert.assertEquals(data.get(i).length, tr.getBytesTransferred());
+            Assert.assertEquals(TestHttpServer.md5(data.get(i)), tr.getResponseHeader("Content-MD5"));
+            Assert.assertTrue(Arrays.equals(data.get(i), dest.get(i).toByteArray()));
+            Assert.assertSame(tr.getURL(), futures.get(i).getTransfer().getURL());
+        }
+
+        TransferResult tr = notFound.get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(tr.isSuccessful());
+        Assert.assertEquals(404, tr.getResponseCode());
+        Assert.assertNotNull(tr.getThrowable());
+
+        exec.shutdown();
+        Assert.assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCompletionQueue()
+        throws Exception
+    {
+        HttpTransferExecutor exec = new HttpTransferExecutor(3);
+        BlockingQueue<TransferFuture<HttpDownload>> completed = new LinkedBlockingQueue<TransferFuture<HttpDownload>>();
+        List<TransferFuture<HttpDownload>> futures = new ArrayList<TransferFuture<HttpDownload>>();
+        for (int i = 0; i < 4; i++)
+        {
+            server.setContent("/queue/" + i, TestHttpServer.randomContent(500 + i));
+            futures.add(exec.submit(new HttpDownload(server.getURL("/queue/" + i), new ByteArrayOutputStream()), completed));
+        }
+
+        for (int i = 0; i < futures.size(); i++)
+        {
+            TransferFuture<HttpDownload> f = completed.poll(10, TimeUnit.SECONDS);
+            Assert.assertNotNull("completed future " + i, f);
+            Assert.assertTrue(f.isDone());
+            Assert.assertTrue(futures.contains(f));
+            Assert.assertTrue(f.get().isSuccessful());
+        }
+        Assert.assertTrue(completed.isEmpty());
+
+        exec.shutdown();
+        Assert.assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancel()
+        throws Exception
+    {
+        server.setContent("/slow", TestHttpServer.randomContent(1000));
+        server.delay = 2000L;
+        try
+        {
+            HttpTransferExecutor exec = new HttpTransferExecutor(1);
+            TransferFuture<HttpDownload> running = exec.submit(new HttpDownload(server.getURL("/slow"), new ByteArrayOutputStream()));
+            TransferFuture<HttpDownload> queued = exec.submit(new HttpDownload(server.getURL("/slow"), new ByteArrayOutputStream()));
+
+            Assert.assertTrue(queued.cancel(true));
+            Assert.assertTrue(queued.isCancelled());
+            try
+            {
+                queued.get();
+                Assert.fail("expected CancellationException");
+            }
+            catch (CancellationException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+
+            Thread.sleep(200L);
+            Assert.assertTrue(running.cancel(true));
+            Assert.assertTrue(running.isCancelled());
+            Assert.assertFalse(running.cancel(true));
+            exec.shutdown();
+            Assert.assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            server.delay = 0L;
+        }
+    }
+
+    @Test
+    public void testCancelBounded()
+        throws Exception
+    {
+        final HttpTransferExecutor exec = new HttpTransferExecutor(1, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final int[] runs = new int[1];
+        // a transfer that keeps running after terminate()
+        HttpTransfer stubborn = new HttpTransfer(true)
+        {
+            @Override
+            public void run()
+            {
+                runs[0]++;
+                started.countDown();
+                while (true)
+                {
+                    try
+                    {
+                        finish.await();
+                        return;
+                    }
+                    catch (InterruptedException ignore)
+                    {
+                        // keep running
+                    }
+                }
+            }
+        };
+        final TransferFuture<HttpTransfer> f = exec.submit(stubborn);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // a second run of the same future does not run the transfer again
+        Thread second = new Thread(f);
+        second.start();
+        second.join(5000L);
+        Assert.assertFalse(second.isAlive());
+        Assert.assertEquals(1, runs[0]);
+
+        Assert.assertTrue(f.cancel(true));
+
+        // capacity is not released until the transfer stops
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread t = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    exec.submit(new HttpDownload(server.getURL("/bounded"), new ByteArrayOutputStream()));
+                    submitted.countDown();
+                }
+                catch (Exception ex)
+                {
+                    log.error("submit failed", ex);
+                }
+            }
+        };
+        t.start();
+        Assert.assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        finish.countDown();
+        Assert.assertTrue(submitted.await(5, TimeUnit.SECONDS));
+
+        exec.shutdown();
+        Assert.assertTrue(exec.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNonBlockingRetry()
+        throws Exception
+    {
+        HttpTransferExecutor exec = new HttpTransferExecutor(1);
+        exec.setNonBlockingRetry(true);
+        byte[] d1 = TestHttpServer.randomContent(1001);
+        byte[] d2 = TestHttpServer.randomContent(1002);
+        server.setContent("/retry/1", d1);
+        server.setContent("/retry/2", d2);
+        server.retryAfter = "1";
+        server.unavailable.set(1);
+        try
+        {
+            ByteArrayOutputStream bos1 = new ByteArrayOutputStream();
+            ByteArrayOutputStream bos2 = new ByteArrayOutputStream();
+            TransferFuture<HttpDownload> f1 = exec.submit(new HttpDownload(server.getURL("/retry/1"), bos1));
+            TransferFuture<HttpDownload> f2 = exec.submit(new HttpDownload(server.getURL("/retry/2"), bos2));
+
+            // the only thread is not held while f1 waits to retry
+            TransferResult tr2 = f2.get(900, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(tr2.isSuccessful());
+            Assert.assertTrue(Arrays.equals(d2, bos2.toByteArray()));
+            Assert.assertFalse(f1.isDone());
+            Assert.assertEquals(1, exec.getRetryWaitingCount());
+
+            TransferResult tr1 = f1.get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(tr1.isSuccessful());
+            Assert.assertTrue(Arrays.equals(d1, bos1.toByteArray()));
+            Assert.assertEquals(1, f1.getTransfer().getRetriesPerformed());
+            Assert.assertEquals(0, exec.getRetryWaitingCount());
+
+            // cancel while waiting to retry
+            server.unavailable.set(1);
+            TransferFuture<HttpDownload> f3 = exec.submit(new HttpDownload(server.getURL("/retry/1"), new ByteArrayOutputStream()));
+            long t = System.currentTimeMillis();
+            while (exec.getRetryWaitingCount() == 0 && System.currentTimeMillis() - t < 5000L)
+            {
+                Thread.sleep(10L);
+            }
+            Assert.assertTrue(f3.cancel(true));
+            Assert.assertTrue(f3.isCancelled());
+
+            exec.shutdown();
+            Assert.assertTrue(exec.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            server.retryAfter = null;
+            server.unavailable.set(0);
+        }
+    }
+}
@@ -72,7 +72,15 @@ package ca.nrc.cadc.net;
 import ca.nrc.cadc.auth.SSOCookieCredential;
 import ca.nrc.cadc.date.DateUtil;
 import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Date;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -204,6 +212,91 @@ public class HttpTransferTest
         EasyMock.verify(mockConnection);
     }
 
+    @Test
+    public void testNioLoop() throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(100000);
+        File tmp = File.createTempFile("testNioLoop", ".dat");
+        try
+        {
+            HttpTransfer trans = new TestDummy();
+            trans.setLogIO(true);
+            FileOutputStream fos = new FileOutputStream(tmp);
+            String md5;
+            try
+            {
+                md5 = trans.nioLoop(new ByteArrayInputStream(data), fos.getChannel(), 4096, 0L);
+            }
+            finally
+            {
+                fos.close();
+            }
+            Assert.assertEquals(TestHttpServer.md5(data), md5);
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(tmp.toPath())));
+
+            // same digest from ioLoop
+            String md5io = trans.ioLoop(new ByteArrayInputStream(data), new ByteArrayOutputStream(), 4096, 0L);
+            Assert.assertEquals(md5io, md5);
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testPipelinedLoop() throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(1000003);
+        HttpTransfer trans = new TestDummy();
+        trans.setPipelinedIO(true);
+        trans.setLogIO(true);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        String md5 = trans.ioLoop(new ByteArrayInputStream(data), bos, 4096, 0L);
+        Assert.assertEquals(TestHttpServer.md5(data), md5);
+        Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+        Assert.assertEquals(data.length, trans.loopBytes);
+
+        // write failure is reported to the reader
+        OutputStream broken = new OutputStream()
+        {
+            public void write(int b) throws IOException
+            {
+                throw new IOException("broken");
+            }
+        };
+        try
+        {
+            trans.ioLoop(new ByteArrayInputStream(data), broken, 4096, 0L);
+            Assert.fail("expected IOException");
+        }
+        catch (IOException expected)
+        {
+            Assert.assertEquals("broken", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testAdaptiveLoop() throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(2000003);
+        HttpTransfer trans = new TestDummy();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        trans.ioLoop(new ByteArrayInputStream(data), bos, 4096, 0L);
+        Assert.assertEquals(4096, trans.getIOBufferSize());
+
+        trans.setAdaptiveBuffer(true);
+        trans.setBufferSizeBounds(4096, 65536);
+        bos = new ByteArrayOutputStream();
+        String md5 = trans.ioLoop(new ByteArrayInputStream(data), bos, 4096, 0L);
+        Assert.assertEquals(TestHttpServer.md5(data), md5);
+        Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+        Assert.assertEquals(data.length, trans.loopBytes);
+        log.info("adaptive buffer size: " + trans.getIOBufferSize());
+        Assert.assertTrue(trans.getIOBufferSize() >= 4096);
+        Assert.assertTrue(trans.getIOBufferSize() <= 65536);
+    }
+
     private class TestDummy extends HttpTransfer
     {
         TestDummy() { super(true); }
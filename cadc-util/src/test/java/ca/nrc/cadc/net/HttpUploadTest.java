@@ -0,0 +1,440 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for HttpUpload using a local server.
+ */
+public class HttpUploadTest
+{
+    private static final Logger log = Logger.getLogger(HttpUploadTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+    private static File tmpDir;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+        tmpDir = Files.createTempDirectory(HttpUploadTest.class.getSimpleName()).toFile();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    private File createFile(String name, byte[] data)
+        throws Exception
+    {
+        File f = new File(tmpDir, name);
+        Files.write(f.toPath(), data);
+        return f;
+    }
+
+    @Test
+    public void testParseCommittedOffset()
+    {
+        Assert.assertEquals(7L, HttpUpload.parseCommittedOffset(null, 7L));
+        Assert.assertEquals(100L, HttpUpload.parseCommittedOffset("bytes=0-99", 0L));
+        Assert.assertEquals(0L, HttpUpload.parseCommittedOffset("bytes=0-", 0L));
+        Assert.assertEquals(0L, HttpUpload.parseCommittedOffset("foo", 0L));
+    }
+
+    @Test
+    public void testChunkedUpload()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(100000);
+        File src = createFile("chunked", data);
+        server.contentRanges.clear();
+
+        HttpUpload up = new HttpUpload(src, server.getURL("/up/chunked"));
+        up.setChunkSize(30000L);
+        up.run();
+
+        Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+        Assert.assertEquals(201, up.getResponseCode());
+        Assert.assertTrue(Arrays.equals(data, server.getContent("/up/chunked")));
+        Assert.assertEquals(Arrays.asList("bytes 0-29999/100000", "bytes 30000-59999/100000", 
+            "bytes 60000-89999/100000", "bytes 90000-99999/100000"), server.contentRanges);
+        Assert.assertEquals(data.length, up.getBytesTransferred());
+    }
+
+    @Test
+    public void testChunkedUploadResume()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(100000);
+        File src = createFile("resume", data);
+        server.contentRanges.clear();
+        server.putCount.set(0);
+        server.breakPut = 2; // fail half way through the second chunk
+        try
+        {
+            RetryPolicy rp = new RetryPolicy();
+            rp.setBackoff(10L, 100L);
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/resume"));
+            up.setChunkSize(30000L);
+            up.setRetryPolicy(rp);
+            up.run();
+
+            Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, server.getContent("/up/resume")));
+            log.debug("ranges: " + server.contentRanges);
+            Assert.assertEquals(Arrays.asList("bytes 0-29999/100000", "bytes 30000-59999/100000",
+                "bytes */100000", "bytes 45000-74999/100000", "bytes 75000-99999/100000"), server.contentRanges);
+            Assert.assertEquals(data.length - 45000, up.getBytesTransferred());
+        }
+        finally
+        {
+            server.breakPut = -1;
+        }
+    }
+
+    @Test
+    public void testChunkedUploadOffsetMismatch()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("mismatch", data);
+        // server already has the first part from a previous (abandoned) upload
+        server.setContent("/up/mismatch", Arrays.copyOf(data, 20000));
+        server.contentRanges.clear();
+
+        HttpUpload up = new HttpUpload(src, server.getURL("/up/mismatch"));
+        up.setChunkSize(40000L);
+        up.run();
+
+        Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+        Assert.assertTrue(Arrays.equals(data, server.getContent("/up/mismatch")));
+        Assert.assertEquals(Arrays.asList("bytes 0-39999/50000", "bytes 20000-49999/50000"), server.contentRanges);
+    }
+
+    @Test
+    public void testChunkedUploadNoRangeInResponse()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("norange", data);
+        server.contentRanges.clear();
+        server.putCount.set(0);
+        server.shortPut = 1; // first chunk: half stored, success without Range
+        try
+        {
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/norange"));
+            up.setChunkSize(20000L);
+            up.run();
+
+            Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+            Assert.assertTrue(Arrays.equals(data, server.getContent("/up/norange")));
+            Assert.assertEquals(Arrays.asList("bytes 0-19999/50000", "bytes */50000",
+                "bytes 10000-29999/50000", "bytes 30000-49999/50000"), server.contentRanges);
+        }
+        finally
+        {
+            server.shortPut = -1;
+        }
+    }
+
+    @Test
+    public void testChunkedUploadNoRetry()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("noretry", data);
+        server.putCount.set(0);
+        server.breakPut = 1;
+        try
+        {
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/noretry"));
+            up.setChunkSize(20000L);
+            up.setRetry(0, 0, HttpTransfer.RetryReason.NONE);
+            up.run();
+            Assert.assertNotNull(up.getThrowable());
+        }
+        finally
+        {
+            server.breakPut = -1;
+        }
+    }
+
+    @Test
+    public void testChunkedCompleteAfterFailure()
+        throws Exception
+    {
+        // all chunks stored but the server failed to complete the upload
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("complete-after-failure", data);
+        server.putMD5 = true;
+        server.putCount.set(0);
+        server.failCompletePut = 3;
+        try
+        {
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/complete-after-failure"));
+            up.setChunkSize(20000L);
+            up.run();
+            Assert.assertNotNull(up.getThrowable());
+
+            // new upload: first chunk rejected with all bytes committed, completed by a status query
+            server.contentRanges.clear();
+            up = new HttpUpload(src, server.getURL("/up/complete-after-failure"));
+            up.setChunkSize(20000L);
+            up.setVerifyChecksum(true);
+            up.run();
+            Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+            Assert.assertEquals(201, up.getResponseCode());
+            Assert.assertEquals(TestHttpServer.md5(data), up.getContentMD5());
+            Assert.assertEquals(Arrays.asList("bytes 0-19999/50000", "bytes */50000"), server.contentRanges);
+        }
+        finally
+        {
+            server.putMD5 = false;
+            server.failCompletePut = -1;
+        }
+    }
+
+    @Test
+    public void testChunkedNotCompleted()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("not-completed", data);
+        server.holdComplete = true;
+        try
+        {
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/not-completed"));
+            up.setChunkSize(20000L);
+            up.run();
+            Assert.assertNotNull("expected failure", up.getThrowable());
+            Assert.assertTrue(up.getThrowable().getMessage().contains("not completed"));
+        }
+        finally
+        {
+            server.holdComplete = false;
+        }
+    }
+
+    @Test
+    public void testChunkedCommittedTooLong()
+        throws Exception
+    {
+        // stale content on the server larger than the upload
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("too-long", data);
+        server.setContent("/up/too-long", TestHttpServer.randomContent(60000));
+        HttpUpload up = new HttpUpload(src, server.getURL("/up/too-long"));
+        up.setChunkSize(20000L);
+        up.run();
+        Assert.assertNotNull("expected failure", up.getThrowable());
+        Assert.assertTrue(up.getThrowable().getMessage().contains("exceeds upload length"));
+    }
+
+    @Test
+    public void testVerifyChecksum()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(50000);
+        File src = createFile("verify", data);
+        server.putMD5 = true;
+        try
+        {
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/verify"));
+            up.setVerifyChecksum(true);
+            up.run();
+            Assert.assertNull(up.getThrowable());
+            Assert.assertEquals(TestHttpServer.md5(data), up.getContentMD5());
+
+            server.corruptPut = true;
+            up = new HttpUpload(src, server.getURL("/up/verify-corrupt"));
+            up.setVerifyChecksum(true);
+            up.run();
+            Assert.assertTrue(up.getThrowable() instanceof IncorrectContentChecksumException);
+        }
+        finally
+        {
+            server.putMD5 = false;
+            server.corruptPut = false;
+        }
+    }
+
+    @Test
+    public void testVerifyChecksumHead()
+        throws Exception
+    {
+        // server does not include Content-MD5 in the PUT response: checked with HEAD
+        byte[] data = TestHttpServer.randomContent(20000);
+        File src = createFile("verify-head", data);
+        server.corruptPut = true;
+        try
+        {
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/verify-head"));
+            up.setVerifyChecksum(true);
+            up.run();
+            Assert.assertTrue(up.getThrowable() instanceof IncorrectContentChecksumException);
+        }
+        finally
+        {
+            server.corruptPut = false;
+        }
+
+        HttpUpload up = new HttpUpload(new ByteArrayInputStream(data), server.getURL("/up/verify-head"));
+        up.setVerifyChecksum(true);
+        up.run();
+        Assert.assertNull(up.getThrowable());
+        Assert.assertEquals(TestHttpServer.md5(data), up.getContentMD5());
+    }
+
+    @Test
+    public void testVerifyChecksumChunkedResume()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(100000);
+        File src = createFile("verify-chunked", data);
+        server.putMD5 = true;
+        server.putCount.set(0);
+        server.breakPut = 2;
+        try
+        {
+            RetryPolicy rp = new RetryPolicy();
+            rp.setBackoff(10L, 100L);
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/verify-chunked"));
+            up.setChunkSize(30000L);
+            up.setRetryPolicy(rp);
+            up.setVerifyChecksum(true);
+            up.run();
+            Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+            Assert.assertArrayEquals(data, server.getContent("/up/verify-chunked"));
+            Assert.assertEquals(TestHttpServer.md5(data), up.getContentMD5());
+        }
+        finally
+        {
+            server.putMD5 = false;
+            server.breakPut = -1;
+        }
+    }
+
+    @Test
+    public void testThrottledWrapperChecksum()
+        throws Exception
+    {
+        final byte[] data = TestHttpServer.randomContent(300000);
+        BandwidthLimiter lim = new BandwidthLimiter();
+        lim.setGlobalLimit(1000000L); // burst: 100000 bytes
+        server.putMD5 = true;
+        try
+        {
+            OutputStreamWrapper src = new OutputStreamWrapper()
+            {
+                public void write(OutputStream out)
+                    throws IOException
+                {
+                    out.write(data);
+                }
+            };
+            HttpUpload up = new HttpUpload(src, server.getURL("/up/throttled-checksum"));
+            up.setBandwidthLimiter(lim);
+            up.setVerifyChecksum(true);
+            long start = System.currentTimeMillis();
+            up.run();
+            long dt = System.currentTimeMillis() - start;
+            log.info("throttled upload: " + dt + "ms");
+            Assert.assertNull("failure: " + up.getThrowable(), up.getThrowable());
+            Assert.assertEquals(TestHttpServer.md5(data), up.getContentMD5());
+            Assert.assertArrayEquals(data, server.getContent("/up/throttled-checksum"));
+            Assert.assertTrue("elapsed: " + dt, dt >= 150L);
+        }
+        finally
+        {
+            server.putMD5 = false;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.FileMetadata;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.FileNotFoundException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MetadataProbeTest
+{
+    private static final Logger log = Logger.getLogger(MetadataProbeTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testProbe()
+        throws Exception
+    {
+        MetadataProbe probe = new MetadataProbe(4);
+        try
+        {
+            List<URL> urls = new ArrayList<URL>();
+            List<byte[]> data = new ArrayList<byte[]>();
+            for (int i = 0; i < 50; i++)
+            {
+                byte[] d = TestHttpServer.randomContent(100 + i);
+                data.add(d);
+                server.setContent("/probe/" + i + ".dat", d);
+                urls.add(server.getURL("/probe/" + i + ".dat"));
+            }
+            URL missing = server.getURL("/probe/none");
+            urls.add(10, missing);
+            urls.add(urls.get(0)); // duplicate
+            // same address, different host name: not a duplicate
+            URL alias = new URL(urls.get(0).toExternalForm().replace("localhost", "127.0.0.1"));
+            urls.add(alias);
+
+            int requests = server.requestCount.get();
+            Map<String,MetadataProbe.Result> results = probe.probe(urls);
+            Assert.assertEquals(52, results.size());
+            Assert.assertEquals(requests + 52, server.requestCount.get());
+
+            // input order
+            Iterator<String> iter = results.keySet().iterator();
+            for (int i = 0; i < 51; i++)
+            {
+                Assert.assertEquals(urls.get(i).toExternalForm(), iter.next());
+            }
+
+            MetadataProbe.Result r = results.get(missing.toExternalForm());
+            Assert.assertFalse(r.isSuccessful());
+            Assert.assertEquals(404, r.getResponseCode());
+            Assert.assertNull(r.getMetadata());
+            Assert.assertTrue(r.getThrowable() instanceof FileNotFoundException);
+
+            for (int i = 0; i < 50; i++)
+            {
+                r = results.get(server.getURL("/probe/" + i + ".dat").toExternalForm());
+                log.debug(r);
+                Assert.assertTrue(r.isSuccessful());
+                Assert.assertEquals(200, r.getResponseCode());
+                FileMetadata meta = r.getMetadata();
+                Assert.assertEquals(data.get(i).length, meta.getContentLength().longValue());
+                Assert.assertEquals(TestHttpServer.md5(data.get(i)), meta.getMd5Sum());
+                Assert.assertEquals(i + ".dat", meta.getFileName());
+            }
+
+            r = results.get(alias.toExternalForm());
+            Assert.assertTrue(r.isSuccessful());
+            Assert.assertEquals(alias, r.getURL());
+
+            MetadataProbe.Stats stats = probe.getStats();
+            log.debug(stats);
+            Assert.assertEquals(52, stats.getRequests());
+            Assert.assertEquals(1, stats.getFailures());
+            Assert.assertNotNull(stats.getMeanLatency());
+            Assert.assertTrue(stats.getRequestRate() > 0.0);
+        }
+        finally
+        {
+            probe.shutdown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for MirrorSelector.
+ */
+public class MirrorSelectorTest
+{
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    @Test
+    public void testOrder() throws Exception
+    {
+        URL a = new URL("http://a.example.net/file");
+        URL b = new URL("http://b.example.net/file");
+        URL c = new URL("http://c.example.net/file");
+        List<URL> urls = Arrays.asList(a, b, c);
+
+        MirrorSelector sel = new MirrorSelector();
+        Assert.assertEquals(urls, sel.order(urls));
+        Assert.assertEquals(0.0, sel.getCost("a.example.net"), 0.0);
+
+        // unmeasured hosts first, then by estimated time
+        sel.recordLatency("a.example.net", 100L);
+        sel.recordSuccess("a.example.net", 10 * 1024 * 1024L, 10000L);
+        sel.recordLatency("b.example.net", 100L);
+        sel.recordSuccess("b.example.net", 10 * 1024 * 1024L, 1000L);
+        Assert.assertEquals(Arrays.asList(c, b, a), sel.order(urls));
+
+        sel.recordLatency("c.example.net", 10L);
+        sel.recordSuccess("c.example.net", 1000L, 1L); // too small to measure throughput
+        Assert.assertEquals(Arrays.asList(b, a, c), sel.order(urls));
+
+        // failure penalty
+        sel.recordFailure("b.example.net");
+        Assert.assertEquals(Arrays.asList(a, c, b), sel.order(urls));
+        sel.recordSuccess("b.example.net", 10 * 1024 * 1024L, 1000L);
+        Assert.assertEquals(b, sel.order(urls).get(0));
+    }
+
+    @Test
+    public void testOrderVirtualHosts() throws Exception
+    {
+        // names of the same address are different mirrors (compared as strings: URL.equals
+        // treats them as equal)
+        URL a = new URL("http://localhost:8080/file");
+        URL b = new URL("http://127.0.0.1:8080/file");
+        List<URL> urls = Arrays.asList(a, b);
+
+        MirrorSelector sel = new MirrorSelector();
+        sel.recordFailure("localhost");
+        Assert.assertEquals(b.toExternalForm(), sel.order(urls).get(0).toExternalForm());
+        sel.recordSuccess("localhost", 1000L, 1L);
+        sel.recordFailure("127.0.0.1");
+        Assert.assertEquals(a.toExternalForm(), sel.order(urls).get(0).toExternalForm());
+    }
+
+    @Test
+    public void testMovingAverage() throws Exception
+    {
+        MirrorSelector sel = new MirrorSelector();
+        sel.recordLatency("a.example.net", 100L);
+        sel.recordSuccess("a.example.net", MirrorSelector.REFERENCE_BYTES, 1000L);
+        double c1 = sel.getCost("a.example.net");
+        Assert.assertEquals(1100.0, c1, 0.001);
+
+        // one slow transfer does not dominate
+        sel.recordSuccess("a.example.net", MirrorSelector.REFERENCE_BYTES, 11000L);
+        double c2 = sel.getCost("a.example.net");
+        Assert.assertTrue(c2 > c1);
+        Assert.assertTrue(c2 < 11100.0);
+    }
+}
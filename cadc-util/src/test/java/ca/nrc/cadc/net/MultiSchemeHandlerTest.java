@@ -70,9 +70,15 @@
 package ca.nrc.cadc.net;
 
 import ca.nrc.cadc.util.Log4jInit;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.junit.Assert;
@@ -165,4 +171,55 @@ public class MultiSchemeHandlerTest
             Assert.fail("unexpected exception: " + unexpected);
         }
     }
+
+    @Test
+    public void testBulk()
+        throws Exception
+    {
+        final List<Integer> batches = new ArrayList<Integer>();
+        MultiSchemeHandler msh = new MultiSchemeHandler();
+        msh.addSchemeHandler("bulk", new BulkSchemeHandler()
+        {
+            public List<URL> toURL(URI uri)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public Map<URI,List<URL>> toURL(Collection<URI> uris)
+            {
+                batches.add(uris.size());
+                Map<URI,List<URL>> ret = new HashMap<URI,List<URL>>();
+                for (URI u : uris)
+                {
+                    try
+                    {
+                        ret.put(u, Arrays.asList(new URL("http://bulk.example.com/" + u.getSchemeSpecificPart())));
+                    }
+                    catch (MalformedURLException ex)
+                    {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                return ret;
+            }
+        });
+
+        List<URI> uris = new ArrayList<URI>();
+        for (int i = 0; i < 5; i++)
+        {
+            uris.add(new URI("bulk:file" + i));
+            uris.add(new URI("test://www.example.com/file" + i));
+        }
+        uris.add(new URI("http://www.example.com/foo"));
+        uris.add(new URI("unknown:foo"));
+        uris.add(null);
+
+        Map<URI,List<URL>> urls = msh.toURL(uris);
+        Assert.assertEquals(11, urls.size());
+        Assert.assertEquals(Arrays.asList(5), batches);
+        Assert.assertEquals(new URL("http://bulk.example.com/file3"), urls.get(new URI("bulk:file3")).get(0));
+        Assert.assertEquals(new URL("http://www.example.com/file3"), urls.get(new URI("test://www.example.com/file3")).get(0));
+        Assert.assertEquals(new URL("http://www.example.com/foo"), urls.get(new URI("http://www.example.com/foo")).get(0));
+        Assert.assertFalse(urls.containsKey(new URI("unknown:foo")));
+    }
 }
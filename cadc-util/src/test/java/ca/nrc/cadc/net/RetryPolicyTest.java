@@ -0,0 +1,269 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RetryPolicyTest
+{
+    private static final Logger log = Logger.getLogger(RetryPolicyTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static TestHttpServer server;
+
+    @BeforeClass
+    public static void setup()
+        throws Exception
+    {
+        server = new TestHttpServer();
+    }
+
+    @AfterClass
+    public static void teardown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testBackoff()
+    {
+        RetryPolicy rp = new RetryPolicy();
+        rp.setBackoff(100L, 1000L);
+        for (int n = 0; n < 12; n++)
+        {
+            long cap = Math.min(1000L, 100L << n);
+            for (int i = 0; i < 100; i++)
+            {
+                long dt = rp.getRetryDelay(n, 0L);
+                Assert.assertTrue("delay " + dt + " retry " + n, dt >= 0L && dt < cap);
+            }
+        }
+
+        // Retry-After is the minimum
+        for (int i = 0; i < 100; i++)
+        {
+            long dt = rp.getRetryDelay(3, 2000L);
+            Assert.assertTrue("delay " + dt, dt >= 2000L && dt < 2100L);
+        }
+    }
+
+    @Test
+    public void testRetryBudget()
+    {
+        RetryPolicy rp = new RetryPolicy();
+        rp.setRetryBudget(2, 0.0);
+        Assert.assertTrue(rp.tryAcquireRetry("a"));
+        Assert.assertTrue(rp.tryAcquireRetry("a"));
+        Assert.assertFalse(rp.tryAcquireRetry("a"));
+        Assert.assertTrue(rp.tryAcquireRetry("b"));
+    }
+
+    @Test
+    public void testCircuitBreaker()
+        throws Exception
+    {
+        RetryPolicy rp = new RetryPolicy();
+        rp.setCircuitBreaker(2, 200L);
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        rp.recordFailure("h");
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        rp.recordFailure("h");
+        Assert.assertTrue(rp.checkHost("h") > 0L);
+        Assert.assertEquals(0L, rp.checkHost("other"));
+
+        // half-open: one trial request, failure re-opens
+        Thread.sleep(250L);
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        Assert.assertTrue(rp.checkHost("h") > 0L);
+        rp.recordFailure("h");
+        Assert.assertTrue(rp.checkHost("h") > 100L);
+
+        // half-open: success closes
+        Thread.sleep(250L);
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        rp.recordSuccess("h");
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        Assert.assertEquals(0L, rp.checkHost("h"));
+    }
+
+    @Test
+    public void testCircuitBreakerTrialTimeout()
+        throws Exception
+    {
+        RetryPolicy rp = new RetryPolicy();
+        rp.setCircuitBreaker(1, 200L);
+        rp.recordFailure("h");
+        Thread.sleep(250L);
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        Assert.assertTrue(rp.checkHost("h") > 0L);
+
+        // outcome of the trial never recorded: another trial after the open time
+        Thread.sleep(250L);
+        Assert.assertEquals(0L, rp.checkHost("h"));
+        Assert.assertTrue(rp.checkHost("h") > 0L);
+    }
+
+    @Test
+    public void testPostConnectFailure()
+        throws Exception
+    {
+        ServerSocket ss = new ServerSocket(0);
+        int port = ss.getLocalPort();
+        ss.close();
+
+        RetryPolicy rp = new RetryPolicy();
+        rp.setCircuitBreaker(1, 60000L);
+        HttpPost post = new HttpPost(new URL("http://localhost:" + port + "/post"), "content", "text/plain", false);
+        post.setRetry(0, 1, HttpTransfer.RetryReason.TRANSIENT);
+        post.setRetryPolicy(rp);
+        post.run();
+        Assert.assertNotNull(post.getThrowable());
+
+        // failure to send the request body is recorded
+        Assert.assertTrue(rp.checkHost("localhost") > 0L);
+    }
+
+    @Test
+    public void testDownloadRetry()
+        throws Exception
+    {
+        byte[] data = TestHttpServer.randomContent(1000);
+        server.setContent("/retry", data);
+        server.unavailable.set(2);
+        server.requestCount.set(0);
+
+        RetryPolicy rp = new RetryPolicy();
+        rp.setBackoff(10L, 100L);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpDownload dl = new HttpDownload(server.getURL("/retry"), bos);
+        dl.setRetry(3, 1, HttpTransfer.RetryReason.TRANSIENT);
+        dl.setRetryPolicy(rp);
+        long start = System.currentTimeMillis();
+        dl.run();
+        long dt = System.currentTimeMillis() - start;
+        log.debug("testDownloadRetry: " + dt + "ms");
+
+        Assert.assertNull("failure: " + dl.getThrowable(), dl.getThrowable());
+        Assert.assertEquals(200, dl.getResponseCode());
+        Assert.assertEquals(3, server.requestCount.get());
+        Assert.assertEquals(data.length, bos.size());
+        Assert.assertTrue("jittered backoff instead of retryDelay: " + dt, dt < 1000L);
+    }
+
+    @Test
+    public void testDownloadCircuitOpen()
+        throws Exception
+    {
+        server.setContent("/circuit", TestHttpServer.randomContent(1000));
+        server.unavailable.set(5);
+        server.requestCount.set(0);
+        try
+        {
+            RetryPolicy rp = new RetryPolicy();
+            rp.setBackoff(10L, 100L);
+            rp.setCircuitBreaker(2, 60000L);
+
+            HttpDownload dl = new HttpDownload(server.getURL("/circuit"), new ByteArrayOutputStream());
+            dl.setRetry(1, 1, HttpTransfer.RetryReason.TRANSIENT);
+            dl.setRetryPolicy(rp);
+            dl.run();
+            Assert.assertNotNull(dl.getThrowable());
+            Assert.assertEquals(503, dl.getResponseCode());
+            Assert.assertEquals(2, server.requestCount.get());
+
+            // circuit is open: fail without a request
+            HttpDownload dl2 = new HttpDownload(server.getURL("/circuit"), new ByteArrayOutputStream());
+            dl2.setRetry(0, 1, HttpTransfer.RetryReason.TRANSIENT);
+            dl2.setRetryPolicy(rp);
+            dl2.run();
+            Assert.assertTrue(dl2.getThrowable() instanceof IOException);
+            Assert.assertTrue(dl2.getThrowable().getMessage().contains("circuit"));
+            Assert.assertEquals(2, server.requestCount.get());
+        }
+        finally
+        {
+            server.unavailable.set(0);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.HexUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Minimal in-process HTTP server for unit tests of the transfer classes. Content
+ * is served from memory with optional support for byte range requests.
+ */
+public class TestHttpServer implements HttpHandler
+{
+    private static final Logger log = Logger.getLogger(TestHttpServer.class);
+
+    private final HttpServer server;
+    private final Map<String,byte[]> content = Collections.synchronizedMap(new TreeMap<String,byte[]>());
+
+    boolean supportRanges = true;
+    boolean sendMD5 = true;
+    volatile boolean wrongMD5 = false; // send a Content-MD5 that does not match the content
+    volatile long delay = 0L; // milliseconds before each response
+    volatile String delayHost = null; // only delay requests to this host name (Host header)
+    volatile long bodyDelay = 0L; // milliseconds between the two halves of each response body
+    final AtomicInteger unavailable = new AtomicInteger(); // number of 503 responses to send
+    volatile String retryAfter = null;
+    final AtomicInteger requestCount = new AtomicInteger();
+    final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> ifRanges = Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean unknownTotal = false; // Content-Range without the total length ("/*")
+    volatile boolean shiftRanges = false; // serve ranges starting one byte after the requested start
+    final List<String> contentRanges = Collections.synchronizedList(new ArrayList<String>());
+    volatile int breakPut = -1; // PUT request number to break after half the body
+    final AtomicInteger putCount = new AtomicInteger();
+    volatile int shortPut = -1; // PUT request number to store half the chunk and respond without Range
+    volatile boolean putMD5 = false; // include Content-MD5 of the stored content in PUT responses
+    volatile boolean corruptPut = false; // store PUT content with the first byte modified
+    volatile int failCompletePut = -1; // PUT request number to store the last chunk and respond 500
+    volatile boolean holdComplete = false; // respond 204 instead of 201 when all chunks are stored
+    final List<String> postHeaders = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> getHeaders = Collections.synchronizedList(new ArrayList<String>()); // User-Agent and X-Test of GET
+    volatile String postRedirect = null; // Location for a 303 response to POST
+    volatile boolean encodeContent = false; // gzip or deflate responses as allowed by Accept-Encoding
+    volatile boolean sendETag = false; // ETag of the content and 304 for a matching If-None-Match
+    final AtomicInteger notModified = new AtomicInteger(); // number of 304 responses sent
+
+    public TestHttpServer()
+        throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+    }
+
+    public void setContent(String path, byte[] data)
+    {
+        content.put(path, data);
+    }
+
+    public URL getURL(String path)
+        throws IOException
+    {
+        return new URL("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    static byte[] randomContent(int len)
+    {
+        byte[] ret = new byte[len];
+        new java.util.Random(len).nextBytes(ret);
+        return ret;
+    }
+
+    static String md5(byte[] data)
+        throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        return HexUtil.toHex(md.digest(data));
+    }
+
+    @Override
+    public void handle(HttpExchange ex)
+        throws IOException
+    {
+        requestCount.incrementAndGet();
+        try
+        {
+            String host = ex.getRequestHeaders().getFirst("Host");
+            if (delay > 0 && (delayHost == null || (host != null && host.startsWith(delayHost + ":"))))
+            {
+                Thread.sleep(delay);
+            }
+            if (unavailable.get() > 0 && unavailable.decrementAndGet() >= 0)
+            {
+                readAll(ex.getRequestBody(), Long.MAX_VALUE);
+                if (retryAfter != null)
+                {
+                    ex.getResponseHeaders().add("Retry-After", retryAfter);
+                }
+                ex.sendResponseHeaders(503, -1);
+                return;
+            }
+            String path = ex.getRequestURI().getPath();
+            if ("PUT".equals(ex.getRequestMethod()))
+            {
+                handlePut(path, ex);
+                return;
+            }
+            if ("POST".equals(ex.getRequestMethod()))
+            {
+                handlePost(path, ex);
+                return;
+            }
+            // HttpServer closes the connection if the request body is not read
+            readAll(ex.getRequestBody(), Long.MAX_VALUE);
+            getHeaders.add("User-Agent: " + ex.getRequestHeaders().getFirst("User-Agent"));
+            getHeaders.add("X-Test: " + ex.getRequestHeaders().getFirst("X-Test"));
+            byte[] data = content.get(path);
+            if (data == null)
+            {
+                ex.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            String range = ex.getRequestHeaders().getFirst("Range");
+            String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+            if (ifRange != null)
+            {
+                ifRanges.add(ifRange);
+            }
+            if (sendETag)
+            {
+                String etag = "\"" + md5(data) + "\"";
+                ex.getResponseHeaders().add("ETag", etag);
+                if (ifRange != null && !ifRange.equals(etag))
+                {
+                    range = null; // changed: send the whole content
+                }
+                if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match")))
+                {
+                    notModified.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                    return;
+                }
+            }
+            boolean head = "HEAD".equals(ex.getRequestMethod());
+            String enc = getContentEncoding(ex);
+            if (enc != null)
+            {
+                data = encode(data, enc);
+                ex.getResponseHeaders().add("Content-Encoding", enc);
+            }
+            long start = 0;
+            long end = data.length - 1;
+            int code = 200;
+            if (range != null && supportRanges && enc == null)
+            {
+                ranges.add(range);
+                String[] se = range.substring("bytes=".length()).split("-");
+                start = Long.parseLong(se[0]);
+                if (shiftRanges)
+                {
+                    start++;
+                }
+                if (se.length > 1 && se[1].length() > 0)
+                {
+                    end = Math.min(end, Long.parseLong(se[1]));
+                }
+                String total = (unknownTotal ? "*" : Integer.toString(data.length));
+                if (start >= data.length)
+                {
+                    if (!unknownTotal)
+                    {
+                        ex.getResponseHeaders().add("Content-Range", "bytes */" + total);
+                    }
+                    ex.sendResponseHeaders(416, -1);
+                    return;
+                }
+                code = 206;
+                ex.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + total);
+            }
+            if (sendMD5)
+            {
+                String md5 = md5(data);
+                if (wrongMD5)
+                {
+                    md5 = md5(new byte[0]);
+                }
+                ex.getResponseHeaders().add("Content-MD5", md5);
+            }
+            ex.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            ex.getResponseHeaders().add("Accept-Ranges", "bytes");
+
+            long len = end - start + 1;
+            if (head)
+            {
+                ex.getResponseHeaders().add("Content-Length", Long.toString(len));
+                ex.sendResponseHeaders(code, -1);
+                return;
+            }
+            ex.sendResponseHeaders(code, len);
+            OutputStream out = ex.getResponseBody();
+            if (bodyDelay > 0)
+            {
+                int half = (int) (len / 2);
+                out.write(data, (int) start, half);
+                out.flush();
+                Thread.sleep(bodyDelay);
+                out.write(data, (int) start + half, (int) len - half);
+            }
+            else
+            {
+                out.write(data, (int) start, (int) len);
+            }
+            out.close();
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            log.error("test server failure", e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            ex.close();
+        }
+    }
+
+    byte[] getContent(String path)
+    {
+        return content.get(path);
+    }
+
+    // resumable upload protocol: see HttpUpload.setChunkSize
+    private void handlePut(String path, HttpExchange ex)
+        throws Exception
+    {
+        int num = putCount.incrementAndGet();
+        InputStream in = ex.getRequestBody();
+        String cr = ex.getRequestHeaders().getFirst("Content-Range");
+        if (cr == null)
+        {
+            byte[] data = readAll(in, Long.MAX_VALUE);
+            if (corruptPut && data.length > 0)
+            {
+                data[0]++;
+            }
+            content.put(path, data);
+            if (putMD5)
+            {
+                ex.getResponseHeaders().add("Content-MD5", md5(data));
+            }
+            ex.sendResponseHeaders(201, -1);
+            return;
+        }
+        contentRanges.add(cr);
+        byte[] cur = content.get(path);
+        if (cur == null)
+        {
+            cur = new byte[0];
+        }
+        String[] rt = cr.substring("bytes ".length()).split("/");
+        long total = Long.parseLong(rt[1]);
+        int code = 204;
+        boolean omitRange = false;
+        if (!"*".equals(rt[0]))
+        {
+            String[] se = rt[0].split("-");
+            long start = Long.parseLong(se[0]);
+            long end = Long.parseLong(se[1]);
+            if (start != cur.length)
+            {
+                code = 416;
+            }
+            else
+            {
+                long len = end - start + 1;
+                boolean broken = (num == breakPut);
+                boolean isShort = (num == shortPut);
+                if (isShort)
+                {
+                    omitRange = true;
+                }
+                byte[] chunk = readAll(in, broken || isShort ? len / 2 : len);
+                byte[] next = new byte[cur.length + chunk.length];
+                System.arraycopy(cur, 0, next, 0, cur.length);
+                System.arraycopy(chunk, 0, next, cur.length, chunk.length);
+                cur = next;
+                content.put(path, cur);
+                if (broken)
+                {
+                    throw new IOException("test: broken connection after " + chunk.length + " bytes");
+                }
+            }
+        }
+        readAll(in, Long.MAX_VALUE); // consume the rest of the body
+        if (cur.length == total && code != 416)
+        {
+            if (num == failCompletePut)
+            {
+                ex.sendResponseHeaders(500, -1);
+                return;
+            }
+            code = (holdComplete ? 204 : 201);
+        }
+        if (cur.length > 0 && !omitRange)
+        {
+            ex.getResponseHeaders().add("Range", "bytes=0-" + (cur.length - 1));
+        }
+        if (code == 201 && putMD5)
+        {
+            ex.getResponseHeaders().add("Content-MD5", md5(cur));
+        }
+        ex.sendResponseHeaders(code, -1);
+    }
+
+    // store the request body at path and echo it back or redirect
+    private void handlePost(String path, HttpExchange ex)
+        throws IOException
+    {
+        String len = ex.getRequestHeaders().getFirst("Content-Length");
+        String te = ex.getRequestHeaders().getFirst("Transfer-Encoding");
+        postHeaders.add(len != null ? "Content-Length: " + len : "Transfer-Encoding: " + te);
+        byte[] body = readAll(ex.getRequestBody(), Long.MAX_VALUE);
+        content.put(path, body);
+        if (postRedirect != null)
+        {
+            ex.getResponseHeaders().add("Location", postRedirect);
+            ex.sendResponseHeaders(303, -1);
+            return;
+        }
+        String enc = getContentEncoding(ex);
+        if (enc != null)
+        {
+            body = encode(body, enc);
+            ex.getResponseHeaders().add("Content-Encoding", enc);
+        }
+        ex.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        ex.sendResponseHeaders(200, body.length);
+        OutputStream out = ex.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private String getContentEncoding(HttpExchange ex)
+    {
+        String ae = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (!encodeContent || ae == null)
+        {
+            return null;
+        }
+        if (ae.contains("gzip"))
+        {
+            return "gzip";
+        }
+        if (ae.contains("deflate"))
+        {
+            return "deflate";
+        }
+        return null;
+    }
+
+    static byte[] encode(byte[] data, String enc)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream out;
+        if ("gzip".equals(enc))
+        {
+            out = new GZIPOutputStream(bos);
+        }
+        else
+        {
+            out = new DeflaterOutputStream(bos);
+        }
+        out.write(data);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in, long max)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        long remaining = max;
+        while (remaining > 0)
+        {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n == -1)
+            {
+                break;
+            }
+            bos.write(buf, 0, n);
+            remaining -= n;
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2020.                            (c) 2020.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.net;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransferJournalTest
+{
+    private static final Logger log = Logger.getLogger(TransferJournalTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.net", Level.INFO);
+    }
+
+    private static File createFile(File dir, String name, int len)
+        throws Exception
+    {
+        File f = new File(dir, name);
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(TestHttpServer.randomContent(len));
+        fos.close();
+        return f;
+    }
+
+    private static File createDir()
+        throws Exception
+    {
+        File dir = File.createTempFile("TransferJournalTest", "");
+        dir.delete();
+        Assert.assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    private static void delete(File dir)
+    {
+        for (File f : dir.listFiles())
+        {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRecord()
+        throws Exception
+    {
+        File dir = createDir();
+        try
+        {
+            File jf = new File(dir, "journal");
+            URL u1 = new URL("http://example.net/data/a.fits");
+            URL u2 = new URL("http://example.net/data/b.fits");
+            URL u3 = new URL("http://example.net/data/c.fits");
+            File f1 = createFile(dir, "a.fits", 1000);
+            File f2 = createFile(dir, "b\tweird%name", 2000);
+
+            TransferJournal j = new TransferJournal(jf);
+            Assert.assertEquals(0, j.size());
+            Assert.assertFalse(j.isComplete(u1));
+            j.record(u1, f1, "0123456789abcdef0123456789abcdef", "\"etag-1\"");
+            j.record(u2, f2, null, null);
+            Assert.assertTrue(j.isComplete(u1));
+            Assert.assertTrue(j.isComplete(u2));
+            Assert.assertFalse(j.isComplete(u3));
+            j.close();
+
+            j = new TransferJournal(jf);
+            Assert.assertEquals(2, j.size());
+            TransferJournal.Entry e = j.get(u1);
+            log.debug(e);
+            Assert.assertEquals(u1.toExternalForm(), e.getURL());
+            Assert.assertEquals(f1.getAbsoluteFile(), e.getFile());
+            Assert.assertEquals(1000, e.getSize());
+            Assert.assertEquals("0123456789abcdef0123456789abcdef", e.getMD5());
+            Assert.assertEquals("\"etag-1\"", e.getETag());
+            e = j.get(u2);
+            Assert.assertEquals(f2.getAbsoluteFile(), e.getFile());
+            Assert.assertNull(e.getMD5());
+            Assert.assertNull(e.getETag());
+            Assert.assertTrue(j.isComplete(u2));
+
+            // changed or missing file
+            createFile(dir, "a.fits", 999);
+            Assert.assertFalse(j.isComplete(u1));
+            f2.delete();
+            Assert.assertFalse(j.isComplete(u2));
+
+            j.remove(u1);
+            Assert.assertNull(j.get(u1));
+            j.close();
+            j = new TransferJournal(jf);
+            Assert.assertNull(j.get(u1));
+            Assert.assertNotNull(j.get(u2));
+            j.close();
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testPartialRecord()
+        throws Exception
+    {
+        File dir = createDir();
+        try
+        {
+            File jf = new File(dir, "journal");
+            URL u1 = new URL("http://example.net/data/a.fits");
+            URL u2 = new URL("http://example.net/data/b.fits");
+            File f1 = createFile(dir, "a.fits", 1000);
+            File f2 = createFile(dir, "b.fits", 2000);
+
+            TransferJournal j = new TransferJournal(jf);
+            j.setSync(true);
+            j.record(u1, f1, null, null);
+            j.record(u2, f2, null, null);
+            j.close();
+
+            // process died while writing the second record
+            RandomAccessFile raf = new RandomAccessFile(jf, "rw");
+            raf.setLength(raf.length() - 5);
+            raf.close();
+
+            j = new TransferJournal(jf);
+            Assert.assertEquals(1, j.size());
+            Assert.assertTrue(j.isComplete(u1));
+            Assert.assertFalse(j.isComplete(u2));
+            j.record(u2, f2, null, null);
+            j.close();
+
+            j = new TransferJournal(jf);
+            Assert.assertEquals(2, j.size());
+            Assert.assertTrue(j.isComplete(u2));
+            j.close();
+
+            // corrupt record
+            raf = new RandomAccessFile(jf, "rw");
+            raf.seek(2);
+            raf.write('X');
+            raf.close();
+            j = new TransferJournal(jf);
+            Assert.assertEquals(1, j.size());
+            Assert.assertFalse(j.isComplete(u1));
+            Assert.assertTrue(j.isComplete(u2));
+            j.close();
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testCompact()
+        throws Exception
+    {
+        File dir = createDir();
+        try
+        {
+            File jf = new File(dir, "journal");
+            URL u1 = new URL("http://example.net/data/a.fits");
+            URL u2 = new URL("http://example.net/data/b.fits");
+            File f1 = createFile(dir, "a.fits", 1000);
+            File f2 = createFile(dir, "b.fits", 2000);
+
+            TransferJournal j = new TransferJournal(jf);
+            j.record(u1, f1, null, null);
+            j.record(u2, f2, null, null);
+            long len = jf.length();
+            for (int i = 0; i < 5; i++)
+            {
+                j.record(u1, f1, null, null);
+            }
+            Assert.assertTrue(jf.length() > len);
+            j.compact();
+            Assert.assertEquals(len, jf.length());
+            Assert.assertEquals(2, j.size());
+
+            // still writable after compaction
+            j.remove(u1);
+            j.close();
+
+            // mostly obsolete: compacted when opened
+            j = new TransferJournal(jf);
+            Assert.assertEquals(1, j.size());
+            Assert.assertNotNull(j.get(u2));
+            Assert.assertTrue(jf.length() < len);
+            j.close();
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+}